@@ -4,6 +4,7 @@
 package foundationdb_fslayer;
 
 import com.apple.foundationdb.FDB;
+import foundationdb_fslayer.fdb.AsyncFoundationFileOperations;
 import foundationdb_fslayer.fdb.FoundationFileOperations;
 import foundationdb_fslayer.fdb.FoundationLayer;
 import foundationdb_fslayer.fuse.FuseLayer;
@@ -17,14 +18,15 @@ public class App {
 
 
   public static void main(String[] args) {
-    FoundationFileOperations dbOps = new FoundationLayer(630);
+    MountOptions options = MountOptions.fromSystemProperties();
+    AsyncFoundationFileOperations dbOps = new FoundationLayer(630, options);
 
     dbOps.initRootIfNeeded();
 
     login(dbOps).ifPresent(pm -> {
         System.out.println("Logged in (ID " + pm.getId() + ").");
 
-        FuseLayer fuseLayer = new FuseLayer(dbOps, pm.getId());
+        FuseLayer fuseLayer = new FuseLayer(dbOps, pm.getId(), options.getReadaheadBytes());
 
         try {
           fuseLayer.mount(Paths.get(args[0]), true, true);
@@ -0,0 +1,240 @@
+package foundationdb_fslayer;
+
+import foundationdb_fslayer.cache.FsCacheSingleton;
+import foundationdb_fslayer.cache.VersionWatcher;
+import foundationdb_fslayer.fdb.object.ChunkCodec;
+import foundationdb_fslayer.fdb.object.FileSchema;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Settings that apply to a single mount of the file system.
+ * Each mount runs in its own process, so these are read from system properties
+ * (e.g. JAVA_OPTS="-Dfslayer.chunkSize=65536" make run).
+ */
+public class MountOptions {
+    public static final long DEFAULT_DISK_CACHE_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_READAHEAD_BYTES = 2 * 1024 * 1024;
+
+    private int chunkSize = FileSchema.DEFAULT_CHUNK_SIZE_BYTES;
+    private ChunkCodec codec = ChunkCodec.NONE;
+    private boolean deduplicated = false;
+    private int inlineThreshold = 4096;
+    private long cacheBytes = FsCacheSingleton.DEFAULT_MAX_BYTES;
+    private boolean offHeapCache = false;
+    private int maxWatches = VersionWatcher.DEFAULT_MAX_WATCHES;
+    private long stalenessMillis = 0;
+    private Path diskCacheDirectory = null;
+    private long diskCacheBytes = DEFAULT_DISK_CACHE_BYTES;
+    private long statsSeconds = 0;
+    private long readaheadBytes = DEFAULT_READAHEAD_BYTES;
+
+    public static MountOptions fromSystemProperties() {
+        return new MountOptions()
+                .setChunkSize(Integer.getInteger("fslayer.chunkSize", FileSchema.DEFAULT_CHUNK_SIZE_BYTES))
+                .setCodec(ChunkCodec.valueOf(System.getProperty("fslayer.compression", "none").toUpperCase()))
+                .setDeduplicated(Boolean.getBoolean("fslayer.dedup"))
+                .setInlineThreshold(Integer.getInteger("fslayer.inlineThreshold", 4096))
+                .setCacheBytes(Long.getLong("fslayer.cacheBytes", FsCacheSingleton.DEFAULT_MAX_BYTES))
+                .setOffHeapCache(Boolean.getBoolean("fslayer.offHeapCache"))
+                .setMaxWatches(Integer.getInteger("fslayer.maxWatches", VersionWatcher.DEFAULT_MAX_WATCHES))
+                .setStalenessMillis(Long.getLong("fslayer.stalenessMillis", 0))
+                .setDiskCacheDirectory(System.getProperty("fslayer.diskCache") == null
+                        ? null
+                        : Paths.get(System.getProperty("fslayer.diskCache")))
+                .setDiskCacheBytes(Long.getLong("fslayer.diskCacheBytes", DEFAULT_DISK_CACHE_BYTES))
+                .setStatsSeconds(Long.getLong("fslayer.statsSeconds", 0))
+                .setReadaheadBytes(Long.getLong("fslayer.readaheadBytes", DEFAULT_READAHEAD_BYTES));
+    }
+
+    /**
+     * Chunk size given to new files when their parent directory has no chunk size policy
+     */
+    public MountOptions setChunkSize(int chunkSize) {
+        if (!FileSchema.isValidChunkSize(chunkSize)) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and "
+                    + FileSchema.MAX_CHUNK_SIZE_BYTES + " bytes: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Codec used to compress the chunks of files created by this mount
+     */
+    public MountOptions setCodec(ChunkCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public ChunkCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Whether files created by this mount store their chunks once per distinct content in the shared ChunkStore
+     */
+    public MountOptions setDeduplicated(boolean deduplicated) {
+        this.deduplicated = deduplicated;
+        return this;
+    }
+
+    public boolean isDeduplicated() {
+        return deduplicated;
+    }
+
+    /**
+     * Size up to which new files keep their data inline, next to their attributes, instead of in chunks.
+     * 0 stores every file in chunks.
+     */
+    public MountOptions setInlineThreshold(int inlineThreshold) {
+        if (inlineThreshold < 0 || inlineThreshold > FileSchema.MAX_CHUNK_SIZE_BYTES) {
+            throw new IllegalArgumentException("Inline threshold must be between 0 and "
+                    + FileSchema.MAX_CHUNK_SIZE_BYTES + " bytes: " + inlineThreshold);
+        }
+        this.inlineThreshold = inlineThreshold;
+        return this;
+    }
+
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+
+    /**
+     * Bytes the client cache may hold, including cached file data
+     */
+    public MountOptions setCacheBytes(long cacheBytes) {
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative: " + cacheBytes);
+        }
+        this.cacheBytes = cacheBytes;
+        return this;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Whether cached file data is kept in direct memory instead of on the heap, so large caches do not
+     * lengthen garbage collection. The JVM's -XX:MaxDirectMemorySize must leave room for the cache.
+     */
+    public MountOptions setOffHeapCache(boolean offHeapCache) {
+        this.offHeapCache = offHeapCache;
+        return this;
+    }
+
+    public boolean isOffHeapCache() {
+        return offHeapCache;
+    }
+
+    /**
+     * How many cached nodes the mount watches for changes, so their cache hits need no reads.
+     * Counts against the database's limit on watches per client. 0 validates every hit by reading.
+     */
+    public MountOptions setMaxWatches(int maxWatches) {
+        if (maxWatches < 0) {
+            throw new IllegalArgumentException("Watch count must not be negative: " + maxWatches);
+        }
+        this.maxWatches = maxWatches;
+        return this;
+    }
+
+    public int getMaxWatches() {
+        return maxWatches;
+    }
+
+    /**
+     * How long cached entries are trusted after they were last checked, without reading their version again.
+     * Other clients' changes can take that long to be seen, while this mount's own are seen at once.
+     * 0 keeps the mount strict, trusting only watched entries.
+     */
+    public MountOptions setStalenessMillis(long stalenessMillis) {
+        if (stalenessMillis < 0) {
+            throw new IllegalArgumentException("Staleness window must not be negative: " + stalenessMillis);
+        }
+        this.stalenessMillis = stalenessMillis;
+        return this;
+    }
+
+    public long getStalenessMillis() {
+        return stalenessMillis;
+    }
+
+    /**
+     * Local directory cached file data is also kept in, so it survives remounts. Null keeps it in memory only.
+     * Each mount needs a directory of its own.
+     */
+    public MountOptions setDiskCacheDirectory(Path diskCacheDirectory) {
+        this.diskCacheDirectory = diskCacheDirectory;
+        return this;
+    }
+
+    public Path getDiskCacheDirectory() {
+        return diskCacheDirectory;
+    }
+
+    /**
+     * Bytes the disk cache may take up
+     */
+    public MountOptions setDiskCacheBytes(long diskCacheBytes) {
+        if (diskCacheBytes < 0) {
+            throw new IllegalArgumentException("Disk cache size must not be negative: " + diskCacheBytes);
+        }
+        this.diskCacheBytes = diskCacheBytes;
+        return this;
+    }
+
+    public long getDiskCacheBytes() {
+        return diskCacheBytes;
+    }
+
+    /**
+     * How often cache stats are printed, in seconds. 0 leaves them to JMX only.
+     */
+    public MountOptions setStatsSeconds(long statsSeconds) {
+        if (statsSeconds < 0) {
+            throw new IllegalArgumentException("Stats interval must not be negative: " + statsSeconds);
+        }
+        this.statsSeconds = statsSeconds;
+        return this;
+    }
+
+    public long getStatsSeconds() {
+        return statsSeconds;
+    }
+
+    /**
+     * Most bytes prefetched ahead of a file being read sequentially. 0 prefetches nothing.
+     */
+    public MountOptions setReadaheadBytes(long readaheadBytes) {
+        if (readaheadBytes < 0) {
+            throw new IllegalArgumentException("Readahead window must not be negative: " + readaheadBytes);
+        }
+        this.readaheadBytes = readaheadBytes;
+        return this;
+    }
+
+    public long getReadaheadBytes() {
+        return readaheadBytes;
+    }
+
+    /**
+     * The consistency the mount gives reads of other clients' changes, as reported when it is mounted.
+     * Only a mount that neither watches nor has a staleness window reads every change as soon as it commits.
+     * Watched entries are trusted until their watch fires, a moment after the change commits.
+     */
+    public String describeConsistency() {
+        String watched = maxWatches > 0 ? "watched" : null;
+        if (stalenessMillis == 0) {
+            return watched != null ? watched : "strict";
+        }
+        String bounded = "bounded staleness (" + stalenessMillis + " ms)";
+        return watched != null ? bounded + ", " + watched : bounded;
+    }
+}
@@ -2,6 +2,8 @@ package foundationdb_fslayer;
 
 import foundationdb_fslayer.fdb.object.Attr;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -13,6 +15,25 @@ public class Util {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Returns the path of the directory containing the given path
+     */
+    public static String getParentPath(String path) {
+        String parentPath = path.substring(0, path.lastIndexOf("/"));
+        return parentPath.equals("") ? "/" : parentPath;
+    }
+
+    /**
+     * Encodes a value as the 8 byte little-endian integer FoundationDB's atomic mutations operate on
+     */
+    public static byte[] encodeLittleEndian(long value) {
+        return ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
+    }
+
+    public static long decodeLittleEndian(byte[] bytes) {
+        return ByteBuffer.wrap(Arrays.copyOf(bytes, Long.BYTES)).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    }
+
     public static boolean checkPermission(long storedMode,
                                           long storedUser,
                                           long userId,
@@ -0,0 +1,125 @@
+package foundationdb_fslayer.cache;
+
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.directory.DirectoryLayer;
+import foundationdb_fslayer.fdb.object.AbstractSchema;
+import foundationdb_fslayer.fdb.object.Attr;
+
+import java.util.Arrays;
+
+/**
+ * Caches the attributes of a file or directory apart from its contents,
+ * so stat and permission checks never load data chunks.
+ * Reloading replaces what was loaded as a whole, and every check hands back the State it checked,
+ * so callers always read attributes along with the version they were read at.
+ */
+public class AttrCacheEntry implements CacheEntry {
+    /** What one load read, never changed once loaded */
+    public static final class State {
+        private final Attr metadata;
+        private final long version;
+        // Identifies the node that was loaded, in case another node has since taken its path
+        private final byte[] nodeKey;
+        private final byte[] versionKey;
+
+        private State(Attr metadata, long version, byte[] nodeKey, byte[] versionKey) {
+            this.metadata = metadata;
+            this.version = version;
+            this.nodeKey = nodeKey;
+            this.versionKey = versionKey;
+        }
+
+        public Attr getMetadata() {
+            return metadata;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    private volatile State state;
+    private AbstractSchema schema;
+
+    private AttrCacheEntry() {}
+
+    public static AttrCacheEntry loadFromDB(
+            AbstractSchema schema,
+            DirectoryLayer directoryLayer,
+            ReadTransaction rt) {
+        AttrCacheEntry entry = new AttrCacheEntry();
+        entry.schema = schema;
+        entry.reload(directoryLayer, rt);
+        return entry;
+    }
+
+    /**
+     * What was loaded, if the node can be taken as unchanged since without reading its version,
+     * because a watch vouches for it or it was checked within the mount's staleness window.
+     * Returns null otherwise.
+     */
+    public State getTrusted() {
+        State current = state;
+        if (!schema.isPathTrusted(current.nodeKey)
+                || !VersionWatcher.isUnchanged(current.versionKey, current.version)) {
+            return null;
+        }
+        CacheMetrics.ATTRIBUTES.trustedHit();
+        return current;
+    }
+
+    /**
+     * What was loaded, if it is still current in the given transaction. Returns null otherwise.
+     */
+    public State getCurrent(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        State current = state;
+        boolean isCurrent = current.version == this.schema.getVersion(directoryLayer, rt)
+                && Arrays.equals(current.nodeKey, this.schema.getNodeKey(directoryLayer, rt));
+        CacheMetrics.ATTRIBUTES.validated();
+        if (!isCurrent) {
+            CacheMetrics.ATTRIBUTES.miss();
+            return null;
+        }
+        CacheMetrics.ATTRIBUTES.hit();
+        // Trusted again without reading, while it is watched or within the staleness window
+        VersionWatcher.checked(current.versionKey, current.version);
+        return current;
+    }
+
+    public State reload(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        long version = schema.getVersion(directoryLayer, rt);
+        byte[] nodeKey = schema.getNodeKey(directoryLayer, rt);
+        byte[] versionKey = schema.getVersionKey(directoryLayer, rt);
+        State loaded = new State(schema.loadMetadata(directoryLayer, rt), version, nodeKey, versionKey);
+        CacheMetrics.ATTRIBUTES.loaded(state != null, getLoadedBytes(loaded.metadata));
+        this.state = loaded;
+        VersionWatcher.checked(versionKey, version);
+        return loaded;
+    }
+
+    /**
+     * What was loaded if it is still current in the given transaction, or what reloading it in the transaction reads
+     */
+    public State reloadIfOutdated(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        State current = getCurrent(directoryLayer, rt);
+        return current != null ? current : reload(directoryLayer, rt);
+    }
+
+    /** Bytes of the stored values the attributes were read from: the INODE record, and the size and version */
+    private static long getLoadedBytes(Attr metadata) {
+        if (metadata == null || metadata.getObjectType() == null) {
+            return 0;
+        }
+        return metadata.toRecord().length + 2 * Long.BYTES;
+    }
+
+    /** What was last loaded, for an entry not yet shared with other threads */
+    State getLoaded() {
+        return state;
+    }
+
+    @Override
+    public long getWeight() {
+        return ENTRY_OVERHEAD_BYTES;
+    }
+}
@@ -0,0 +1,12 @@
+package foundationdb_fslayer.cache;
+
+/**
+ * Something held in the FsCacheSingleton, which counts it against the cache's byte budget
+ */
+interface CacheEntry {
+    /** Rough heap cost of an entry beyond the chunks and names it holds */
+    long ENTRY_OVERHEAD_BYTES = 256;
+
+    /** Approximate bytes of memory this entry keeps alive, on or off the heap */
+    long getWeight();
+}
@@ -0,0 +1,127 @@
+package foundationdb_fslayer.cache;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts how each of the client's caches is used, and exports the counts through JMX under
+ * foundationdb_fslayer:type=Cache, one bean per cache along with one for the mount as a whole.
+ * They can also be printed periodically, for mounts nobody attaches a JMX client to.
+ */
+public class CacheMetrics implements CacheMetricsMBean {
+    public static final CacheStats ATTRIBUTES = new CacheStats("attributes");
+    public static final CacheStats DIRECTORIES = new CacheStats("directories");
+    public static final CacheStats CHUNKS = new CacheStats("chunks");
+    public static final CacheStats MISSING = new CacheStats("missing");
+    public static final CacheStats DISK = new CacheStats("disk");
+    public static final CacheStats SUBSPACES = new CacheStats("subspaces");
+    // Hits are sequential reads that were prefetched, misses those that outran the window
+    public static final CacheStats READAHEAD = new CacheStats("readahead");
+    private static final List<CacheStats> ALL =
+            Arrays.asList(ATTRIBUTES, DIRECTORIES, CHUNKS, MISSING, DISK, SUBSPACES, READAHEAD);
+
+    private static final CacheMetrics INSTANCE = new CacheMetrics();
+    private static volatile String consistency = "strict";
+    private static ScheduledExecutorService dumper;
+
+    private CacheMetrics() {}
+
+    /**
+     * Exports the metrics through JMX, and prints them every dumpSeconds unless that is 0.
+     * The consistency is reported as given.
+     */
+    public static synchronized void start(String consistency, long dumpSeconds) {
+        CacheMetrics.consistency = consistency;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName("foundationdb_fslayer:type=Cache"), INSTANCE);
+            for (CacheStats stats : ALL) {
+                register(server, new ObjectName("foundationdb_fslayer:type=Cache,name=" + stats.getName()), stats);
+            }
+        } catch (JMException e) {
+            System.err.println("Failed to export cache metrics through JMX");
+            e.printStackTrace();
+        }
+
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+        if (dumpSeconds > 0) {
+            dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fslayer-cache-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> System.out.print(INSTANCE.dumpStats()),
+                    dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public String getConsistency() {
+        return consistency;
+    }
+
+    @Override
+    public long getStalenessMillis() {
+        return VersionWatcher.getStalenessMillis();
+    }
+
+    @Override
+    public long getStaleHits() {
+        return VersionWatcher.getStaleHits();
+    }
+
+    @Override
+    public int getWatchedKeys() {
+        return VersionWatcher.getWatchedKeys();
+    }
+
+    @Override
+    public long getResidentBytes() {
+        return FsCacheSingleton.getResidentBytes();
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return FsCacheSingleton.getOffHeapBytes();
+    }
+
+    @Override
+    public long getDiskBytes() {
+        return FsCacheSingleton.getDiskBytes();
+    }
+
+    @Override
+    public String dumpStats() {
+        StringBuilder dump = new StringBuilder(String.format(
+                "Cache stats: %s consistency, %,d stale hits, %,d keys watched, "
+                        + "%,d KB resident, %,d KB off heap, %,d KB on disk%n",
+                getConsistency(),
+                getStaleHits(),
+                getWatchedKeys(),
+                getResidentBytes() >> 10,
+                getOffHeapBytes() >> 10,
+                getDiskBytes() >> 10));
+        for (CacheStats stats : ALL) {
+            dump.append("  ").append(stats).append(String.format("%n"));
+        }
+        return dump.toString();
+    }
+
+    private static void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        // Mounting again in the same process replaces the beans
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+    }
+}
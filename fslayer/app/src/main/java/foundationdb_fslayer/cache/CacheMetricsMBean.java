@@ -0,0 +1,30 @@
+package foundationdb_fslayer.cache;
+
+/**
+ * What JMX shows of the mount's caches as a whole
+ */
+public interface CacheMetricsMBean {
+    /** The consistency the mount gives reads of other clients' changes */
+    String getConsistency();
+
+    /** How long entries are trusted after being checked, 0 when only watches are trusted */
+    long getStalenessMillis();
+
+    /** Hits trusted only because they were checked within the staleness window */
+    long getStaleHits();
+
+    /** Version keys currently watched */
+    int getWatchedKeys();
+
+    /** Bytes the in-memory cache holds, on and off the heap */
+    long getResidentBytes();
+
+    /** Bytes of direct memory held for off-heap chunks */
+    long getOffHeapBytes();
+
+    /** Bytes the disk cache takes up */
+    long getDiskBytes();
+
+    /** Every cache's stats, as the periodic dump prints them */
+    String dumpStats();
+}
@@ -0,0 +1,143 @@
+package foundationdb_fslayer.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counts how one cache is used. Counting is cheap and never blocks, so it is done on every lookup.
+ * Entries and bytes resident are only tallied when asked for.
+ */
+public class CacheStats implements CacheStatsMBean {
+    private final String name;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder trustedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder validations = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder loadedBytes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // Entries and bytes resident
+    private volatile Supplier<long[]> resident = () -> new long[2];
+
+    CacheStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void hit() {
+        hits.increment();
+    }
+
+    public void trustedHit() {
+        trustedHits(1);
+    }
+
+    public void trustedHits(long count) {
+        hits.add(count);
+        trustedHits.add(count);
+    }
+
+    public void miss() {
+        misses.increment();
+    }
+
+    public void validated() {
+        validations.increment();
+    }
+
+    /**
+     * Counts an entry loaded from the database, reload saying whether it replaced an outdated one
+     */
+    public void loaded(boolean reload, long bytes) {
+        (reload ? reloads : loads).increment();
+        loadedBytes.add(bytes);
+    }
+
+    public void evicted(long count) {
+        evictions.add(count);
+    }
+
+    void setResident(Supplier<long[]> resident) {
+        this.resident = resident;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getTrustedHits() {
+        return trustedHits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getValidations() {
+        return validations.sum();
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    @Override
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    @Override
+    public long getLoadedBytes() {
+        return loadedBytes.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getEntries() {
+        return resident.get()[0];
+    }
+
+    @Override
+    public long getResidentBytes() {
+        return resident.get()[1];
+    }
+
+    @Override
+    public String toString() {
+        long[] entriesAndBytes = resident.get();
+        return String.format("%-11s hits %,d (%.1f%%, %,d trusted), misses %,d, validations %,d, "
+                        + "loads %,d, reloads %,d, %,d KB loaded, evictions %,d, %,d entries, %,d KB resident",
+                name,
+                getHits(),
+                100 * getHitRatio(),
+                getTrustedHits(),
+                getMisses(),
+                getValidations(),
+                getLoads(),
+                getReloads(),
+                getLoadedBytes() >> 10,
+                getEvictions(),
+                entriesAndBytes[0],
+                entriesAndBytes[1] >> 10);
+    }
+}
@@ -0,0 +1,37 @@
+package foundationdb_fslayer.cache;
+
+/**
+ * What JMX shows of each cache's CacheStats
+ */
+public interface CacheStatsMBean {
+    /** Lookups served from the cache, whether checked by reading a version or trusted without */
+    long getHits();
+
+    /** Hits trusted without reading anything, because a watch or the staleness window vouched for them */
+    long getTrustedHits();
+
+    /** Lookups that found nothing cached, or an outdated entry */
+    long getMisses();
+
+    /** Hits over all lookups, or 0 before the first lookup */
+    double getHitRatio();
+
+    /** Reads made to check a cached entry was still current */
+    long getValidations();
+
+    /** Entries loaded from the database for the first time */
+    long getLoads();
+
+    /** Entries loaded from the database again, after they were found outdated */
+    long getReloads();
+
+    /** Bytes of entries loaded or reloaded from the database */
+    long getLoadedBytes();
+
+    /** Entries dropped to make room */
+    long getEvictions();
+
+    long getEntries();
+
+    long getResidentBytes();
+}
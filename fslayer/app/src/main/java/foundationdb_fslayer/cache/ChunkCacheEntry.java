@@ -0,0 +1,67 @@
+package foundationdb_fslayer.cache;
+
+import java.util.Arrays;
+
+/**
+ * A cached chunk of a file, along with the stamp writers gave the chunk when they last changed it.
+ * Each chunk is checked against its own stamp, so a write to one chunk of a file leaves the rest cached.
+ * The file version the chunk was read at is kept too, so while a watch vouches for that version
+ * the chunk can be used without reading its stamp.
+ * Immutable, so can be shared between threads.
+ */
+public class ChunkCacheEntry implements CacheEntry {
+    // Prefix of the subspace the chunk was read from, which changes when a file's chunks are replaced wholesale
+    private final byte[] chunkSpaceKey;
+    private final byte[] stamp;
+    private final long fileVersion;
+    private final byte[] data;
+
+    public ChunkCacheEntry(byte[] chunkSpaceKey, byte[] stamp, long fileVersion, byte[] data) {
+        this.chunkSpaceKey = chunkSpaceKey;
+        this.stamp = stamp;
+        this.fileVersion = fileVersion;
+        this.data = data;
+    }
+
+    /**
+     * Whether this is still the chunk stored in the given subspace with the given stamp
+     */
+    public boolean isCurrent(byte[] chunkSpaceKey, byte[] stamp) {
+        return Arrays.equals(this.chunkSpaceKey, chunkSpaceKey) && Arrays.equals(this.stamp, stamp);
+    }
+
+    /**
+     * Whether this chunk was read from the given subspace while the file was at the given version
+     */
+    public boolean isAtVersion(byte[] chunkSpaceKey, long fileVersion) {
+        return this.fileVersion == fileVersion && Arrays.equals(this.chunkSpaceKey, chunkSpaceKey);
+    }
+
+    /** The same chunk, found to still be current at a later version of the file */
+    public ChunkCacheEntry atVersion(long fileVersion) {
+        return new ChunkCacheEntry(chunkSpaceKey, stamp, fileVersion, data);
+    }
+
+    byte[] getChunkSpaceKey() {
+        return chunkSpaceKey;
+    }
+
+    byte[] getStamp() {
+        return stamp;
+    }
+
+    public long getFileVersion() {
+        return fileVersion;
+    }
+
+    /** Shared with every reader of the chunk, so must not be modified */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public long getWeight() {
+        // Chunks are much smaller than other entries' fixed overhead, besides their data
+        return 64 + chunkSpaceKey.length + stamp.length + data.length;
+    }
+}
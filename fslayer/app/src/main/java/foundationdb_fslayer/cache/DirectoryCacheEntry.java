@@ -5,47 +5,137 @@ import com.apple.foundationdb.directory.DirectoryLayer;
 import foundationdb_fslayer.fdb.object.Attr;
 import foundationdb_fslayer.fdb.object.DirectorySchema;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-public class DirectoryCacheEntry {
-    private long version;
+/**
+ * Caches a directory's attributes and listing.
+ * Reloading replaces what was loaded as a whole, and every check hands back the State it checked,
+ * so callers always read a listing along with the version it was read at.
+ */
+public class DirectoryCacheEntry implements CacheEntry {
+    /** What one load read, never changed once loaded */
+    public static final class State {
+        private final long version;
+        // Identifies the node that was loaded, in case another node has since taken its path
+        private final byte[] nodeKey;
+        private final byte[] versionKey;
+        private final Attr metadata;
+        private final List<String> children;
+
+        private State(long version, byte[] nodeKey, byte[] versionKey, Attr metadata, List<String> children) {
+            this.version = version;
+            this.nodeKey = nodeKey;
+            this.versionKey = versionKey;
+            this.metadata = metadata;
+            this.children = children;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Attr getMetadata() {
+            return metadata;
+        }
+
+        public List<String> getChildren() {
+            return children;
+        }
+    }
+
+    private volatile State state;
     private DirectorySchema schema;
-    private Attr metadata;
-    private List<String> children;
+    private String path;
 
     private DirectoryCacheEntry() {}
 
     public static DirectoryCacheEntry loadFromDB(
+            String path,
             List<String> children,
             DirectorySchema schema,
             DirectoryLayer directoryLayer,
             ReadTransaction rt) {
         DirectoryCacheEntry entry = new DirectoryCacheEntry();
         entry.schema = schema;
-        return entry.reload(directoryLayer, rt, children);
+        entry.path = path;
+        entry.reload(directoryLayer, rt, children);
+        return entry;
     }
 
-    public DirectoryCacheEntry reload(DirectoryLayer directoryLayer, ReadTransaction rt, List<String> children) {
-        this.version = schema.getVersion(directoryLayer, rt);
-        this.metadata = schema.loadMetadata(directoryLayer, rt);
-        this.children = children;
+    public State reload(DirectoryLayer directoryLayer, ReadTransaction rt, List<String> children) {
+        State previous = state;
+        State loaded = new State(
+                schema.getVersion(directoryLayer, rt),
+                schema.getNodeKey(directoryLayer, rt),
+                schema.getVersionKey(directoryLayer, rt),
+                schema.loadMetadata(directoryLayer, rt),
+                Collections.unmodifiableList(new ArrayList<>(children)));
+        this.state = loaded;
+        CacheMetrics.DIRECTORIES.loaded(previous != null, getWeight());
+        VersionWatcher.checked(loaded.versionKey, loaded.version);
+        if (previous != null && previous.children.size() != children.size()) {
+            FsCacheSingleton.dirResized(path);
+        }
+
+        return loaded;
+    }
 
-        return this;
+    /**
+     * What was loaded, if the directory can be taken as unchanged since without reading its version,
+     * because a watch vouches for it or it was checked within the mount's staleness window.
+     * Returns null otherwise.
+     */
+    public State getTrusted() {
+        State current = state;
+        if (!schema.isPathTrusted(current.nodeKey)
+                || !VersionWatcher.isUnchanged(current.versionKey, current.version)) {
+            return null;
+        }
+        CacheMetrics.DIRECTORIES.trustedHit();
+        return current;
     }
 
-    public boolean isCurrent(DirectoryLayer directoryLayer, ReadTransaction rt)  {
-        return this.version == schema.getVersion(directoryLayer, rt);
+    /**
+     * What was loaded, if it is still current in the given transaction. Returns null otherwise.
+     */
+    public State getCurrent(DirectoryLayer directoryLayer, ReadTransaction rt)  {
+        State current = state;
+        boolean isCurrent = current.version == schema.getVersion(directoryLayer, rt)
+                && Arrays.equals(current.nodeKey, schema.getNodeKey(directoryLayer, rt));
+        CacheMetrics.DIRECTORIES.validated();
+        if (!isCurrent) {
+            CacheMetrics.DIRECTORIES.miss();
+            return null;
+        }
+        CacheMetrics.DIRECTORIES.hit();
+        // Trusted again without reading, while it is watched or within the staleness window
+        VersionWatcher.checked(current.versionKey, current.version);
+        return current;
     }
 
-    public long getVersion() {
-        return version;
+    /**
+     * What was loaded, if it is trusted or still current in the given transaction. Returns null otherwise.
+     */
+    public State getValid(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        State trusted = getTrusted();
+        return trusted != null ? trusted : getCurrent(directoryLayer, rt);
     }
 
-    public Attr getMetadata() {
-        return metadata;
+    /** What was last loaded, for an entry not yet shared with other threads */
+    State getLoaded() {
+        return state;
     }
 
-    public List<String> getChildren() {
-        return children;
+    @Override
+    public long getWeight() {
+        long weight = ENTRY_OVERHEAD_BYTES;
+        for (String child : state.children) {
+            // Two bytes per char, plus the String and its array
+            weight += 2L * child.length() + 56;
+        }
+        return weight;
     }
 }
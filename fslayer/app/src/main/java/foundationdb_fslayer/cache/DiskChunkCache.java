@@ -0,0 +1,452 @@
+package foundationdb_fslayer.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps cached chunks in a local directory, so they outlive the process and a remounted client can take its
+ * working set from disk instead of the database.
+ *
+ * Chunks are appended to memory mapped segment files of SEGMENT_BYTES, and found through an index held in memory.
+ * Once the directory is full, the oldest segment is deleted, chunks and all. Each record is checksummed, so when
+ * a directory is opened the index is rebuilt by scanning its segments oldest first, up to the first record a
+ * crash left incomplete.
+ *
+ * Chunks are keyed by the subspace they were read from and their number, and stored with their stamp. Stamps are
+ * versionstamps, so a stamp only ever names one content of a chunk, and a chunk found here is only used once its
+ * stamp matches the one the database holds. What changed while the directory sat on disk is never read back.
+ *
+ * Chunks are written on a thread of the cache's own, so putting one never waits for the disk. Its space in a
+ * segment is reserved under the lock, its record copied in with the lock released, and it is only indexed once
+ * whole, so reads are never held up by a copy. Chunks put faster than they can be written are not stored.
+ *
+ * The directory is created readable by its owner only, as are the files in it, since chunks hold file contents
+ * other users may not be allowed to read.
+ *
+ * Only one process may use a directory at a time, which a lock file enforces. Thread safe.
+ */
+class DiskChunkCache {
+    static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final int MAGIC = 0x46534443;
+    // Magic, checksum, chunk number, key length, stamp length and data length
+    private static final int HEADER_BYTES = 20;
+    // Bytes of chunks waiting to be written, past which more are not stored
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+    // How long closing waits for chunks already put to be written
+    private static final long CLOSE_WAIT_SECONDS = 10;
+    private static final Set<StandardOpenOption> SEGMENT_OPTIONS =
+            EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        // Where the next record is appended
+        private int end = 0;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class ChunkKey {
+        private final byte[] chunkSpaceKey;
+        private final int chunkNum;
+
+        private ChunkKey(byte[] chunkSpaceKey, int chunkNum) {
+            this.chunkSpaceKey = chunkSpaceKey;
+            this.chunkNum = chunkNum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) o;
+            return chunkNum == other.chunkNum && Arrays.equals(chunkSpaceKey, other.chunkSpaceKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(chunkSpaceKey) + chunkNum;
+        }
+    }
+
+    /** Where the latest copy of a chunk is stored */
+    private static final class Location {
+        private final Segment segment;
+        private final int dataOffset;
+        private final int dataLength;
+        private final byte[] stamp;
+
+        private Location(Segment segment, int dataOffset, int dataLength, byte[] stamp) {
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.stamp = stamp;
+        }
+    }
+
+    private final Path directory;
+    private final int maxSegments;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    // Reads copy chunks out under the read lock, so they can page in from disk side by side
+    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final HashMap<ChunkKey, Location> index = new HashMap<>();
+    // Oldest first. The last one is appended to.
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId = 0;
+    private boolean closed = false;
+    // Appends every record, so segments are only ever added and dropped by it once the cache is open
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fslayer-disk-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    private DiskChunkCache(Path directory, long maxBytes, FileChannel lockChannel, FileLock lock) {
+        this.directory = directory;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / SEGMENT_BYTES));
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens the cache in the given directory, creating it if needed, and indexes the chunks already in it.
+     * Fails if another process has the directory open.
+     */
+    static DiskChunkCache open(Path directory, long maxBytes) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            Path parent = directory.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.createDirectory(directory, ownerOnly(directory, "rwx------"));
+        }
+        FileChannel lockChannel = FileChannel.open(directory.resolve("lock"),
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE),
+                ownerOnly(directory, "rw-------"));
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Already open in this process
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Disk cache " + directory + " is in use by another mount");
+        }
+
+        DiskChunkCache cache = new DiskChunkCache(directory, maxBytes, lockChannel, lock);
+        try {
+            cache.load();
+        } catch (IOException e) {
+            cache.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the chunk stored under the given key, if its stamp is the given one, or null
+     */
+    byte[] get(byte[] chunkSpaceKey, int chunkNum, byte[] stamp) {
+        rwLock.readLock().lock();
+        try {
+            Location location = index.get(new ChunkKey(chunkSpaceKey, chunkNum));
+            if (location == null || !Arrays.equals(location.stamp, stamp)) {
+                CacheMetrics.DISK.miss();
+                return null;
+            }
+            CacheMetrics.DISK.hit();
+            byte[] data = new byte[location.dataLength];
+            ByteBuffer view = location.segment.buffer.duplicate();
+            view.position(location.dataOffset);
+            view.get(data);
+            return data;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queues a chunk to be stored, unless it is already stored with the same stamp, and returns without waiting
+     * for it to be written. Chunks too large for a segment, or put while too many are waiting, are not stored.
+     */
+    void put(byte[] chunkSpaceKey, int chunkNum, byte[] stamp, byte[] data) {
+        long length = (long) HEADER_BYTES + chunkSpaceKey.length + stamp.length + data.length;
+        if (length > SEGMENT_BYTES || chunkSpaceKey.length > 0xffff || stamp.length > 0xffff) {
+            return;
+        }
+        if (pendingBytes.addAndGet(length) > MAX_PENDING_BYTES) {
+            pendingBytes.addAndGet(-length);
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    append(chunkSpaceKey, chunkNum, stamp, data, (int) length);
+                } finally {
+                    pendingBytes.addAndGet(-length);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+            pendingBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * Writes a chunk's record at the end of the newest segment, and indexes it once it is whole.
+     * Only called on the writer thread.
+     */
+    private void append(byte[] chunkSpaceKey, int chunkNum, byte[] stamp, byte[] data, int length) {
+        ChunkKey key = new ChunkKey(chunkSpaceKey, chunkNum);
+        Segment segment;
+        int offset;
+        rwLock.writeLock().lock();
+        try {
+            Location existing = index.get(key);
+            if (closed || (existing != null && Arrays.equals(existing.stamp, stamp))) {
+                return;
+            }
+            segment = segments.peekLast();
+            if (segment == null || segment.end + length > SEGMENT_BYTES) {
+                segment = addSegment();
+            }
+            offset = segment.end;
+            segment.end += length;
+        } catch (IOException e) {
+            System.err.println("Failed to write chunk to disk cache " + directory);
+            e.printStackTrace();
+            return;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+
+        // Nothing reads the reserved space until it is indexed, and only this thread drops segments
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(MAGIC)
+                .putInt(0)
+                .putInt(chunkNum)
+                .putShort((short) chunkSpaceKey.length)
+                .putShort((short) stamp.length)
+                .putInt(data.length)
+                .put(chunkSpaceKey)
+                .put(stamp)
+                .put(data);
+        record.putInt(4, checksum(record.array()));
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset);
+        view.put(record.array());
+
+        rwLock.writeLock().lock();
+        try {
+            if (!closed) {
+                index.put(key, new Location(segment, offset + length - data.length, data.length, stamp));
+            }
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    /** Bytes the cache's segment files take up on disk */
+    long getDiskBytes() {
+        rwLock.readLock().lock();
+        try {
+            return (long) segments.size() * SEGMENT_BYTES;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /** Chunks indexed, and bytes the cache's segment files take up */
+    long[] getResident() {
+        rwLock.readLock().lock();
+        try {
+            return new long[] {index.size(), (long) segments.size() * SEGMENT_BYTES};
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stops using the directory once the chunks already put are written, leaving them for the next mount to open it
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("Gave up waiting for chunks to be written to disk cache " + directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rwLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+            index.clear();
+            segments.clear();
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close disk cache " + directory);
+            e.printStackTrace();
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path file : files) {
+                try {
+                    ids.add(Long.parseLong(file.getFileName().toString().substring(SEGMENT_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring unknown file in disk cache: " + file);
+                }
+            }
+        }
+        ids.sort(null);
+
+        for (long id : ids) {
+            Path path = segmentPath(id);
+            if (Files.size(path) != SEGMENT_BYTES) {
+                // Left behind by a crash while it was being created
+                Files.delete(path);
+                continue;
+            }
+            Segment segment = new Segment(path, map(path, ownerOnly(directory, "rw-------")));
+            scan(segment);
+            segments.add(segment);
+            nextSegmentId = id + 1;
+        }
+        while (segments.size() > maxSegments) {
+            dropOldestSegment();
+        }
+    }
+
+    /**
+     * Indexes the segment's records, stopping at the first that is not whole, where appending carries on.
+     * Later records replace earlier ones.
+     */
+    private void scan(Segment segment) {
+        ByteBuffer view = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset + HEADER_BYTES <= SEGMENT_BYTES) {
+            view.position(offset);
+            if (view.getInt() != MAGIC) {
+                break;
+            }
+            int storedChecksum = view.getInt();
+            int chunkNum = view.getInt();
+            int keyLength = view.getShort() & 0xffff;
+            int stampLength = view.getShort() & 0xffff;
+            int dataLength = view.getInt();
+            long length = (long) HEADER_BYTES + keyLength + stampLength + dataLength;
+            if (dataLength < 0 || offset + length > SEGMENT_BYTES) {
+                break;
+            }
+
+            byte[] record = new byte[(int) length];
+            view.position(offset);
+            view.get(record);
+            ByteBuffer.wrap(record).putInt(4, 0);
+            if (checksum(record) != storedChecksum) {
+                break;
+            }
+            byte[] chunkSpaceKey = Arrays.copyOfRange(record, HEADER_BYTES, HEADER_BYTES + keyLength);
+            byte[] stamp = Arrays.copyOfRange(record, HEADER_BYTES + keyLength, HEADER_BYTES + keyLength + stampLength);
+            index.put(new ChunkKey(chunkSpaceKey, chunkNum),
+                    new Location(segment, offset + (int) length - dataLength, dataLength, stamp));
+            offset += (int) length;
+        }
+        segment.end = offset;
+    }
+
+    private Segment addSegment() throws IOException {
+        while (segments.size() >= maxSegments) {
+            dropOldestSegment();
+        }
+        long id = nextSegmentId++;
+        Path path = segmentPath(id);
+        Segment segment = new Segment(path, map(path, ownerOnly(directory, "rw-------")));
+        segments.add(segment);
+        return segment;
+    }
+
+    private void dropOldestSegment() throws IOException {
+        Segment oldest = segments.poll();
+        int indexed = index.size();
+        index.values().removeIf(location -> location.segment == oldest);
+        CacheMetrics.DISK.evicted(indexed - index.size());
+        // Its mapping is let go once nothing references it
+        Files.deleteIfExists(oldest.path);
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(SEGMENT_PREFIX + id);
+    }
+
+    private static MappedByteBuffer map(Path path, FileAttribute<?>... createAttributes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, SEGMENT_OPTIONS, createAttributes)) {
+            // Mapping past the end of the file grows it, with zeros that never read as a record
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        }
+    }
+
+    /**
+     * Permissions to create files in the directory with, such as "rw-------", or none where the file system
+     * does not have POSIX permissions
+     */
+    private static FileAttribute<?>[] ownerOnly(Path directory, String permissions) {
+        if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+        return new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))};
+    }
+
+    /** Checksum of a record whose checksum field is zero */
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+}
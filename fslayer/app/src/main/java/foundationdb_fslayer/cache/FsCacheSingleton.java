@@ -2,49 +2,408 @@ package foundationdb_fslayer.cache;
 
 import com.apple.foundationdb.ReadTransaction;
 import com.apple.foundationdb.directory.DirectoryLayer;
+import foundationdb_fslayer.Util;
 import foundationdb_fslayer.fdb.object.DirectorySchema;
 import foundationdb_fslayer.fdb.object.FileSchema;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Predicate;
 
+/**
+ * Caches file attributes, file chunks, directory listings and paths known not to exist, evicting the least recently used once they
+ * take up more than a byte budget.
+ *
+ * Entries are spread over lock stripes, each with an equal share of the budget, so FUSE threads working on
+ * different paths, or different chunks of one file, rarely wait for each other. Entries are loaded from the
+ * database without holding a lock, and are safe to share between threads once loaded.
+ *
+ * Chunk data can instead be kept off the heap, in an OffHeapArena, so a cache of many gigabytes does not
+ * lengthen garbage collection pauses. Off-heap chunks are copied in before their stripe's lock is taken, and
+ * copied back out after it is released, so a copy never holds up other readers of the stripe. Their memory is
+ * freed once they have left the cache and the last reader has copied them out.
+ *
+ * Chunks can also be kept in a DiskChunkCache, so they outlive the mount. Disk is only looked at for chunks
+ * missing from memory, and only for the stamp the database holds, so nothing needs removing from it.
+ */
 public class FsCacheSingleton {
-    private static final HashMap<String, FileCacheEntry> FILE_CACHE = new HashMap<>();
-    private static final HashMap<String, DirectoryCacheEntry> DIR_CACHE = new HashMap<>();
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int STRIPES = 16;
 
-    public static void loadFileToCache(String path, DirectoryLayer directoryLayer, ReadTransaction rt) {
-        FileSchema schema = new FileSchema(path);
-        FILE_CACHE.put(path, FileCacheEntry.loadFromDB(schema, directoryLayer, rt));
+    private enum Kind {
+        CHUNK(CacheMetrics.CHUNKS),
+        DIR(CacheMetrics.DIRECTORIES),
+        ATTR(CacheMetrics.ATTRIBUTES),
+        MISSING(CacheMetrics.MISSING);
+
+        private final CacheStats stats;
+
+        Kind(CacheStats stats) {
+            this.stats = stats;
+        }
+    }
+
+    private static final class Key {
+        private final Kind kind;
+        private final String path;
+        // Only set for chunks
+        private final int chunkNum;
+
+        private Key(Kind kind, String path) {
+            this(kind, path, -1);
+        }
+
+        private Key(Kind kind, String path, int chunkNum) {
+            this.kind = kind;
+            this.path = path;
+            this.chunkNum = chunkNum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return kind == other.kind && chunkNum == other.chunkNum && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, path, chunkNum);
+        }
+    }
+
+    // File chunks count against the same budget as everything else, so large files push out small entries.
+    // Each stripe is locked by synchronizing on it.
+    private static final List<LruCache<Key, CacheEntry>> CACHES = new ArrayList<>();
+    static {
+        for (int i = 0; i < STRIPES; ++i) {
+            CACHES.add(new LruCache<>(DEFAULT_MAX_BYTES / STRIPES, CacheEntry::getWeight, (key, entry) -> {
+                if (entry instanceof OffHeapChunkEntry) {
+                    ((OffHeapChunkEntry) entry).release();
+                }
+            }, (key, entry) -> key.kind.stats.evicted(1)));
+        }
+        for (Kind kind : Kind.values()) {
+            kind.stats.setResident(() -> residentOf(kind));
+        }
+        CacheMetrics.DISK.setResident(() -> {
+            DiskChunkCache disk = FsCacheSingleton.diskCache;
+            return disk == null ? new long[2] : disk.getResident();
+        });
+    }
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+    // Null while chunks are kept on the heap
+    private static volatile OffHeapArena offHeapArena;
+    // Null unless chunks are kept on disk too
+    private static volatile DiskChunkCache diskCache;
+
+    /**
+     * Sets how many bytes the cache may use, evicting entries if it is already over
+     */
+    public static synchronized void setMaxBytes(long maxBytes) {
+        FsCacheSingleton.maxBytes = maxBytes;
+        for (LruCache<Key, CacheEntry> cache : CACHES) {
+            synchronized (cache) {
+                cache.setMaxWeight(maxBytes / STRIPES);
+            }
+        }
+        if (offHeapArena != null) {
+            offHeapArena.setCapacity(maxBytes);
+        }
+    }
+
+    /**
+     * Sets whether chunk data is kept off the heap. Chunks already cached are dropped.
+     */
+    public static synchronized void setOffHeap(boolean offHeap) {
+        if (offHeap == (offHeapArena != null)) {
+            return;
+        }
+        offHeapArena = offHeap ? new OffHeapArena(maxBytes) : null;
+        removeIf(key -> key.kind == Kind.CHUNK);
+    }
+
+    /**
+     * Keeps chunks in the given local directory too, up to maxBytes, so a remount finds them there.
+     * Null stops using the current directory, leaving its chunks for the next mount.
+     * Returns false if the directory cannot be used, such as when another mount has it open.
+     */
+    public static synchronized boolean setDiskCache(Path directory, long maxBytes) {
+        if (diskCache != null) {
+            diskCache.close();
+            diskCache = null;
+        }
+        if (directory == null) {
+            return true;
+        }
+        try {
+            diskCache = DiskChunkCache.open(directory, maxBytes);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to open disk cache " + directory + ", caching chunks in memory only");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /** Bytes the disk cache takes up, used or not */
+    public static long getDiskBytes() {
+        DiskChunkCache disk = diskCache;
+        return disk == null ? 0 : disk.getDiskBytes();
+    }
+
+    /** Bytes of direct memory held for off-heap chunks, used or not */
+    public static long getOffHeapBytes() {
+        OffHeapArena arena = offHeapArena;
+        return arena == null ? 0 : arena.getAllocatedBytes();
+    }
+
+    /** Approximate bytes the cache currently holds, on and off the heap */
+    public static long getResidentBytes() {
+        long residentBytes = 0;
+        for (LruCache<Key, CacheEntry> cache : CACHES) {
+            synchronized (cache) {
+                residentBytes += cache.getWeight();
+            }
+        }
+        return residentBytes;
+    }
+
+    public static Optional<ChunkCacheEntry> getChunk(String path, int chunkNum) {
+        Key key = new Key(Kind.CHUNK, path, chunkNum);
+        LruCache<Key, CacheEntry> cache = stripe(key);
+        OffHeapChunkEntry offHeapEntry;
+        synchronized (cache) {
+            CacheEntry entry = cache.get(key);
+            if (!(entry instanceof OffHeapChunkEntry)) {
+                return Optional.ofNullable((ChunkCacheEntry) entry);
+            }
+            // Keeps its memory from being freed once the lock is released
+            offHeapEntry = (OffHeapChunkEntry) entry;
+            offHeapEntry.retain();
+        }
+        try {
+            return Optional.of(offHeapEntry.load());
+        } finally {
+            offHeapEntry.release();
+        }
+    }
+
+    /**
+     * Returns the chunk cached for the path if it is still the one stored in the given subspace with the given stamp.
+     * A chunk not in memory is looked for on disk, and kept in memory if found. Chunks from disk may have been
+     * read by an earlier mount, so carry no file version until they are tagged with one.
+     */
+    public static Optional<ChunkCacheEntry> getCurrentChunk(String path, int chunkNum, byte[] chunkSpaceKey, byte[] stamp) {
+        Optional<ChunkCacheEntry> cached = getChunk(path, chunkNum).filter(entry -> entry.isCurrent(chunkSpaceKey, stamp));
+        if (cached.isPresent()) {
+            CacheMetrics.CHUNKS.hit();
+            return cached;
+        }
+        CacheMetrics.CHUNKS.miss();
+        DiskChunkCache disk = diskCache;
+        if (disk == null) {
+            return cached;
+        }
+        byte[] data = disk.get(chunkSpaceKey, chunkNum, stamp);
+        if (data == null) {
+            return Optional.empty();
+        }
+        ChunkCacheEntry entry = new ChunkCacheEntry(chunkSpaceKey, stamp, -1, data);
+        putChunkInMemory(path, chunkNum, entry);
+        return Optional.of(entry);
+    }
+
+    /**
+     * Caches a chunk in memory, and on disk if there is a disk cache
+     */
+    public static void putChunk(String path, int chunkNum, ChunkCacheEntry entry) {
+        putChunkInMemory(path, chunkNum, entry);
+        DiskChunkCache disk = diskCache;
+        if (disk != null) {
+            // Chunks only tagged with a newer file version are already on disk
+            disk.put(entry.getChunkSpaceKey(), chunkNum, entry.getStamp(), entry.getData());
+        }
     }
 
+    private static void putChunkInMemory(String path, int chunkNum, ChunkCacheEntry entry) {
+        OffHeapArena arena = offHeapArena;
+        if (arena == null) {
+            put(new Key(Kind.CHUNK, path, chunkNum), entry);
+            return;
+        }
+        OffHeapChunkEntry offHeapEntry = OffHeapChunkEntry.store(arena, entry);
+        // A chunk the arena has no room for is not cached, rather than being kept on the heap after all
+        if (offHeapEntry != null) {
+            put(new Key(Kind.CHUNK, path, chunkNum), offHeapEntry);
+        }
+    }
+
+    /**
+     * Removes a file's attributes and every chunk cached for it
+     */
     public static void removeFileFromCache(String path) {
-        FILE_CACHE.remove(path);
+        remove(new Key(Kind.ATTR, path));
+        // A file's chunks can be in any stripe
+        removeIf(key -> key.kind == Kind.CHUNK && key.path.equals(path));
+    }
+
+    public static AttrCacheEntry.State loadAttrToCache(String path, DirectoryLayer directoryLayer, ReadTransaction rt) {
+        FileSchema schema = new FileSchema(path);
+        AttrCacheEntry entry = AttrCacheEntry.loadFromDB(schema, directoryLayer, rt);
+        // Taken before the entry is shared, so it is what this transaction read
+        AttrCacheEntry.State loaded = entry.getLoaded();
+        put(new Key(Kind.ATTR, path), entry);
+        return loaded;
+    }
+
+    public static Optional<AttrCacheEntry> getAttr(String path) {
+        return Optional.ofNullable((AttrCacheEntry) getCounted(new Key(Kind.ATTR, path)));
     }
 
-    public static Optional<FileCacheEntry> getFile(String path) {
-        return Optional.ofNullable(FILE_CACHE.getOrDefault(path, null));
+    /**
+     * Remembers that a path was just found not to exist in the given transaction
+     */
+    public static void loadMissingToCache(String path, DirectoryLayer directoryLayer, ReadTransaction rt) {
+        MissingCacheEntry entry = MissingCacheEntry.loadFromDB(Util.getParentPath(path), directoryLayer, rt);
+        if (entry != null) {
+            put(new Key(Kind.MISSING, path), entry);
+        }
     }
 
-    public static boolean fileInCache(String path) {
-        return FILE_CACHE.containsKey(path);
+    public static Optional<MissingCacheEntry> getMissing(String path) {
+        return Optional.ofNullable((MissingCacheEntry) get(new Key(Kind.MISSING, path)));
     }
 
-    public static DirectoryCacheEntry loadDirToCache(String path, DirectoryLayer directoryLayer, ReadTransaction rt, List<String> children) {
+    /**
+     * Whether the path is known not to exist, checking its parent's version unless a watch vouches for it.
+     * Entries found to be outdated are dropped.
+     */
+    public static boolean isMissing(String path, DirectoryLayer directoryLayer, ReadTransaction rt) {
+        Optional<MissingCacheEntry> entry = getMissing(path);
+        if (!entry.isPresent()) {
+            CacheMetrics.MISSING.miss();
+            return false;
+        }
+        if (entry.get().isTrusted() || entry.get().isCurrent(directoryLayer, rt)) {
+            return true;
+        }
+        removeMissingFromCache(path);
+        return false;
+    }
+
+    public static void removeMissingFromCache(String path) {
+        remove(new Key(Kind.MISSING, path));
+    }
+
+    public static DirectoryCacheEntry.State loadDirToCache(String path, DirectoryLayer directoryLayer, ReadTransaction rt, List<String> children) {
         DirectorySchema schema = new DirectorySchema(path);
-        DIR_CACHE.put(path, DirectoryCacheEntry.loadFromDB(children, schema, directoryLayer, rt));
-        return DIR_CACHE.get(path);
+        DirectoryCacheEntry entry = DirectoryCacheEntry.loadFromDB(path, children, schema, directoryLayer, rt);
+        // Taken before the entry is shared, so it is what this transaction read
+        DirectoryCacheEntry.State loaded = entry.getLoaded();
+        put(new Key(Kind.DIR, path), entry);
+        return loaded;
+    }
+
+    /**
+     * Accounts for a cached directory's listing changing length
+     */
+    static void dirResized(String path) {
+        Key key = new Key(Kind.DIR, path);
+        LruCache<Key, CacheEntry> cache = stripe(key);
+        synchronized (cache) {
+            cache.reweigh(key);
+        }
     }
 
     public static void removeDirFromCache(String path) {
-        DIR_CACHE.remove(path);
+        remove(new Key(Kind.DIR, path));
     }
 
     public static boolean dirInCache(String path) {
-        return DIR_CACHE.containsKey(path);
+        Key key = new Key(Kind.DIR, path);
+        LruCache<Key, CacheEntry> cache = stripe(key);
+        synchronized (cache) {
+            return cache.containsKey(key);
+        }
+    }
+
+    /**
+     * Removes everything cached at or below the given path
+     */
+    public static void removeTreeFromCache(String path) {
+        String childPrefix = path.endsWith("/") ? path : path + "/";
+        Predicate<String> inTree = key -> key.equals(path) || key.startsWith(childPrefix);
+        removeIf(key -> inTree.test(key.path));
     }
 
     public static Optional<DirectoryCacheEntry> getDir(String path) {
-        return Optional.ofNullable(DIR_CACHE.getOrDefault(path, null));
+        return Optional.ofNullable((DirectoryCacheEntry) getCounted(new Key(Kind.DIR, path)));
+    }
+
+    private static LruCache<Key, CacheEntry> stripe(Key key) {
+        return CACHES.get(Math.floorMod(key.hashCode(), STRIPES));
+    }
+
+    private static CacheEntry get(Key key) {
+        LruCache<Key, CacheEntry> cache = stripe(key);
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    /**
+     * Like get, but counts a miss if nothing is cached. Hits are counted once the entry is checked.
+     */
+    private static CacheEntry getCounted(Key key) {
+        CacheEntry entry = get(key);
+        if (entry == null) {
+            key.kind.stats.miss();
+        }
+        return entry;
+    }
+
+    /** Entries and bytes of the given kind the cache holds */
+    private static long[] residentOf(Kind kind) {
+        long[] entriesAndBytes = new long[2];
+        for (LruCache<Key, CacheEntry> cache : CACHES) {
+            synchronized (cache) {
+                cache.forEachWeight((key, weight) -> {
+                    if (key.kind == kind) {
+                        ++entriesAndBytes[0];
+                        entriesAndBytes[1] += weight;
+                    }
+                });
+            }
+        }
+        return entriesAndBytes;
+    }
+
+    private static void put(Key key, CacheEntry entry) {
+        LruCache<Key, CacheEntry> cache = stripe(key);
+        synchronized (cache) {
+            cache.put(key, entry);
+        }
+    }
+
+    private static void remove(Key key) {
+        LruCache<Key, CacheEntry> cache = stripe(key);
+        synchronized (cache) {
+            cache.remove(key);
+        }
+    }
+
+    private static void removeIf(Predicate<Key> predicate) {
+        for (LruCache<Key, CacheEntry> cache : CACHES) {
+            synchronized (cache) {
+                cache.removeIf(predicate);
+            }
+        }
     }
 }
@@ -0,0 +1,136 @@
+package foundationdb_fslayer.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Holds entries up to a total weight, such as their size in bytes, evicting the least recently used first.
+ * Evicted entries are only dropped from the cache, so anything still using one can carry on with it.
+ * Not thread safe.
+ */
+class LruCache<K, V> {
+    // Iterates from the least to the most recently used
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<K, Long> weights = new HashMap<>();
+    private final ToLongFunction<V> weigher;
+    private final BiConsumer<K, V> onRemoval;
+    private final BiConsumer<K, V> onEviction;
+    private long maxWeight;
+    private long weight = 0;
+
+    LruCache(long maxWeight, ToLongFunction<V> weigher) {
+        this(maxWeight, weigher, (key, value) -> {});
+    }
+
+    /**
+     * onRemoval is called, with the lock held, for each entry that leaves the cache,
+     * whether it is evicted, removed or replaced.
+     */
+    LruCache(long maxWeight, ToLongFunction<V> weigher, BiConsumer<K, V> onRemoval) {
+        this(maxWeight, weigher, onRemoval, (key, value) -> {});
+    }
+
+    /**
+     * onEviction is also called, with the lock held and before onRemoval, for each entry evicted to make room
+     */
+    LruCache(long maxWeight, ToLongFunction<V> weigher, BiConsumer<K, V> onRemoval, BiConsumer<K, V> onEviction) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.onRemoval = onRemoval;
+        this.onEviction = onEviction;
+    }
+
+    V get(K key) {
+        return entries.get(key);
+    }
+
+    /** Unlike get, does not count as a use */
+    boolean containsKey(K key) {
+        return entries.containsKey(key);
+    }
+
+    void put(K key, V value) {
+        remove(key);
+        entries.put(key, value);
+        long entryWeight = weigher.applyAsLong(value);
+        weights.put(key, entryWeight);
+        weight += entryWeight;
+        evict();
+    }
+
+    void remove(K key) {
+        V value = entries.remove(key);
+        Long entryWeight = weights.remove(key);
+        if (entryWeight != null) {
+            weight -= entryWeight;
+            onRemoval.accept(key, value);
+        }
+    }
+
+    /** Removes the key only if it still maps to the given value, without counting as a use */
+    void remove(K key, V value) {
+        if (entries.remove(key, value)) {
+            weight -= weights.remove(key);
+            onRemoval.accept(key, value);
+        }
+    }
+
+    void removeIf(Predicate<K> predicate) {
+        Iterator<Map.Entry<K, V>> all = entries.entrySet().iterator();
+        while (all.hasNext()) {
+            Map.Entry<K, V> entry = all.next();
+            if (predicate.test(entry.getKey())) {
+                all.remove();
+                weight -= weights.remove(entry.getKey());
+                onRemoval.accept(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Weighs an entry again after it has changed size, evicting others if it grew past the limit
+     */
+    void reweigh(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            return;
+        }
+        long entryWeight = weigher.applyAsLong(value);
+        weight += entryWeight - weights.put(key, entryWeight);
+        evict();
+    }
+
+    void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    long getWeight() {
+        return weight;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /** Calls the consumer with each key and the weight it was last weighed at, without counting as a use */
+    void forEachWeight(BiConsumer<K, Long> consumer) {
+        weights.forEach(consumer);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            Map.Entry<K, V> entry = eldest.next();
+            eldest.remove();
+            weight -= weights.remove(entry.getKey());
+            onEviction.accept(entry.getKey(), entry.getValue());
+            onRemoval.accept(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package foundationdb_fslayer.cache;
+
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.directory.DirectoryLayer;
+import foundationdb_fslayer.fdb.object.DirectorySchema;
+
+import java.util.Arrays;
+
+/**
+ * Remembers that a path does not exist, so repeated lookups of it skip walking the DirectoryLayer.
+ * Creating, removing or renaming anything in a directory bumps the directory's version,
+ * so the entry is checked against the version of the parent directory it was missing from.
+ * Immutable, so can be shared between threads.
+ */
+public class MissingCacheEntry implements CacheEntry {
+    private final DirectorySchema parent;
+    private final long parentVersion;
+    // Identifies the parent that was checked, in case another directory has since taken its path
+    private final byte[] parentNodeKey;
+    private final byte[] parentVersionKey;
+
+    private MissingCacheEntry(DirectorySchema parent, long parentVersion, byte[] parentNodeKey, byte[] parentVersionKey) {
+        this.parent = parent;
+        this.parentVersion = parentVersion;
+        this.parentNodeKey = parentNodeKey;
+        this.parentVersionKey = parentVersionKey;
+    }
+
+    /**
+     * Records the parent's version for a path just found to be missing in the same transaction.
+     * Returns null if the parent does not exist either, as there is then no version to check.
+     */
+    public static MissingCacheEntry loadFromDB(String parentPath, DirectoryLayer directoryLayer, ReadTransaction rt) {
+        DirectorySchema parent = new DirectorySchema(parentPath);
+        long version = parent.getVersion(directoryLayer, rt);
+        byte[] nodeKey = parent.getNodeKey(directoryLayer, rt);
+        if (version < 0 || nodeKey == null) {
+            return null;
+        }
+        byte[] versionKey = parent.getVersionKey(directoryLayer, rt);
+        VersionWatcher.checked(versionKey, version);
+        CacheMetrics.MISSING.loaded(false, ENTRY_OVERHEAD_BYTES);
+        return new MissingCacheEntry(parent, version, nodeKey, versionKey);
+    }
+
+    /**
+     * Whether the path can be taken as still missing without reading the parent's version,
+     * because a watch vouches for it or it was checked within the mount's staleness window
+     */
+    public boolean isTrusted() {
+        boolean isTrusted = parent.isPathTrusted(parentNodeKey)
+                && VersionWatcher.isUnchanged(parentVersionKey, parentVersion);
+        if (isTrusted) {
+            CacheMetrics.MISSING.trustedHit();
+        }
+        return isTrusted;
+    }
+
+    public boolean isCurrent(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        boolean isCurrent = parentVersion == parent.getVersion(directoryLayer, rt)
+                && Arrays.equals(parentNodeKey, parent.getNodeKey(directoryLayer, rt));
+        CacheMetrics.MISSING.validated();
+        if (isCurrent) {
+            CacheMetrics.MISSING.hit();
+            // Trusted again without reading, while it is watched or within the staleness window
+            VersionWatcher.checked(parentVersionKey, parentVersion);
+        } else {
+            CacheMetrics.MISSING.miss();
+        }
+        return isCurrent;
+    }
+
+    @Override
+    public long getWeight() {
+        return ENTRY_OVERHEAD_BYTES;
+    }
+}
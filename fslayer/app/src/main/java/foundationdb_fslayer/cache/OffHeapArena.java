@@ -0,0 +1,167 @@
+package foundationdb_fslayer.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Memory outside the Java heap for cached chunks, so a large cache adds nothing for the garbage collector to scan.
+ *
+ * Memory is allocated as direct slabs of SLAB_BYTES, each split into equal slots of one power of two size,
+ * from 1KB to 128KB. A chunk takes the smallest slot it fits in. Slabs are allocated as needed, up to the
+ * capacity, and kept. A slab whose slots are all free again can be split for any size.
+ *
+ * Allocating and freeing are thread safe. A slot's memory is only read and written by whoever holds the slot.
+ */
+class OffHeapArena {
+    static final int SLAB_BYTES = 1 << 20;
+    private static final int MIN_SLOT_SHIFT = 10;
+    private static final int MAX_SLOT_SHIFT = 17;
+    static final int MAX_SLOT_BYTES = 1 << MAX_SLOT_SHIFT;
+
+    private static final class Slab {
+        private final ByteBuffer memory = ByteBuffer.allocateDirect(SLAB_BYTES);
+        private int slotShift;
+        // Stack of the indexes of free slots
+        private int[] freeSlots;
+        private int freeCount;
+
+        private void split(int slotShift) {
+            this.slotShift = slotShift;
+            freeCount = SLAB_BYTES >> slotShift;
+            freeSlots = new int[freeCount];
+            for (int i = 0; i < freeCount; ++i) {
+                freeSlots[i] = freeCount - 1 - i;
+            }
+        }
+
+        private boolean isEmpty() {
+            return freeCount == freeSlots.length;
+        }
+    }
+
+    /** A chunk's place in the arena */
+    static final class Slot {
+        private final Slab slab;
+        private final int index;
+        private final int length;
+
+        private Slot(Slab slab, int index, int length) {
+            this.slab = slab;
+            this.index = index;
+            this.length = length;
+        }
+
+        /** Bytes the slot takes up, which can be more than the chunk in it */
+        int getSize() {
+            return 1 << slab.slotShift;
+        }
+
+        int getLength() {
+            return length;
+        }
+    }
+
+    private final List<Slab> slabs = new ArrayList<>();
+    private final ArrayDeque<Slab> emptySlabs = new ArrayDeque<>();
+    // Slabs with free slots, by slot size
+    private final List<LinkedHashSet<Slab>> partialSlabs = new ArrayList<>();
+    private int maxSlabs;
+
+    OffHeapArena(long capacityBytes) {
+        for (int shift = MIN_SLOT_SHIFT; shift <= MAX_SLOT_SHIFT; ++shift) {
+            partialSlabs.add(new LinkedHashSet<>());
+        }
+        setCapacity(capacityBytes);
+    }
+
+    /**
+     * Sets how much memory the arena may allocate. Slabs over a lowered capacity are let go once they are empty.
+     */
+    synchronized void setCapacity(long capacityBytes) {
+        // One spare slab per slot size, since every size can have a slab that is only partly used
+        maxSlabs = (int) Math.min(Integer.MAX_VALUE, (capacityBytes + SLAB_BYTES - 1) / SLAB_BYTES + partialSlabs.size());
+        while (slabs.size() > maxSlabs && !emptySlabs.isEmpty()) {
+            slabs.remove(emptySlabs.poll());
+        }
+    }
+
+    /**
+     * Copies a chunk into a free slot. Returns null if the chunk is too large, or there is no room left.
+     */
+    Slot store(byte[] chunk) {
+        Slot slot = allocate(chunk.length);
+        if (slot != null) {
+            ByteBuffer view = slot.slab.memory.duplicate();
+            view.position(slot.index << slot.slab.slotShift);
+            view.put(chunk);
+        }
+        return slot;
+    }
+
+    /**
+     * Copies a chunk back onto the heap. The slot must not have been freed.
+     */
+    byte[] load(Slot slot) {
+        byte[] chunk = new byte[slot.length];
+        ByteBuffer view = slot.slab.memory.duplicate();
+        view.position(slot.index << slot.slab.slotShift);
+        view.get(chunk);
+        return chunk;
+    }
+
+    synchronized void free(Slot slot) {
+        Slab slab = slot.slab;
+        LinkedHashSet<Slab> partial = partialSlabs.get(slab.slotShift - MIN_SLOT_SHIFT);
+        slab.freeSlots[slab.freeCount++] = slot.index;
+        if (slab.isEmpty()) {
+            partial.remove(slab);
+            if (slabs.size() > maxSlabs) {
+                slabs.remove(slab);
+            } else {
+                emptySlabs.push(slab);
+            }
+        } else if (slab.freeCount == 1) {
+            partial.add(slab);
+        }
+    }
+
+    /** Bytes of direct memory the arena holds, whether in use or not */
+    synchronized long getAllocatedBytes() {
+        return (long) slabs.size() * SLAB_BYTES;
+    }
+
+    private synchronized Slot allocate(int length) {
+        if (length > MAX_SLOT_BYTES) {
+            return null;
+        }
+        int slotShift = Math.max(MIN_SLOT_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(length - 1, 0)));
+        LinkedHashSet<Slab> partial = partialSlabs.get(slotShift - MIN_SLOT_SHIFT);
+
+        Slab slab;
+        Iterator<Slab> withRoom = partial.iterator();
+        if (withRoom.hasNext()) {
+            slab = withRoom.next();
+        } else {
+            slab = emptySlabs.poll();
+            if (slab == null) {
+                if (slabs.size() >= maxSlabs) {
+                    return null;
+                }
+                slab = new Slab();
+                slabs.add(slab);
+            }
+            slab.split(slotShift);
+            partial.add(slab);
+        }
+
+        int index = slab.freeSlots[--slab.freeCount];
+        if (slab.freeCount == 0) {
+            partial.remove(slab);
+        }
+        return new Slot(slab, index, length);
+    }
+}
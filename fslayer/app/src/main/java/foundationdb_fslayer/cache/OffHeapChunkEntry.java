@@ -0,0 +1,71 @@
+package foundationdb_fslayer.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cached chunk whose data is kept in an OffHeapArena, with only its stamps left on the heap.
+ * The data's slot is freed once the entry has left the cache and no reader holds it, so readers retain it
+ * while holding the lock of the cache stripe it is in, then copy it out with the lock released.
+ */
+class OffHeapChunkEntry implements CacheEntry {
+    private final OffHeapArena arena;
+    private final byte[] chunkSpaceKey;
+    private final byte[] stamp;
+    private final long fileVersion;
+    // Null for empty chunks, which need no memory
+    private final OffHeapArena.Slot slot;
+    // The cache's hold on the slot, plus one per reader copying it out
+    private final AtomicInteger holds = new AtomicInteger(1);
+
+    private OffHeapChunkEntry(OffHeapArena arena,
+                              byte[] chunkSpaceKey,
+                              byte[] stamp,
+                              long fileVersion,
+                              OffHeapArena.Slot slot) {
+        this.arena = arena;
+        this.chunkSpaceKey = chunkSpaceKey;
+        this.stamp = stamp;
+        this.fileVersion = fileVersion;
+        this.slot = slot;
+    }
+
+    /**
+     * Moves a chunk's data into the arena. Returns null if the arena has no room for it.
+     */
+    static OffHeapChunkEntry store(OffHeapArena arena, ChunkCacheEntry entry) {
+        OffHeapArena.Slot slot = null;
+        if (entry.getData().length > 0) {
+            slot = arena.store(entry.getData());
+            if (slot == null) {
+                return null;
+            }
+        }
+        return new OffHeapChunkEntry(arena, entry.getChunkSpaceKey(), entry.getStamp(), entry.getFileVersion(), slot);
+    }
+
+    /**
+     * Keeps the slot from being freed until released. Must be called with the lock of the entry's stripe held,
+     * while the entry is still in the cache.
+     */
+    void retain() {
+        holds.incrementAndGet();
+    }
+
+    /** Copies the chunk back onto the heap. Must only be called between retain and release. */
+    ChunkCacheEntry load() {
+        return new ChunkCacheEntry(chunkSpaceKey, stamp, fileVersion, slot == null ? new byte[0] : arena.load(slot));
+    }
+
+    /** Drops a reader's hold, or the cache's once the entry leaves it, freeing the slot when none are left */
+    void release() {
+        if (holds.decrementAndGet() == 0 && slot != null) {
+            arena.free(slot);
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        // The slot counts in full, as the rest of it cannot be used by other chunks
+        return 64 + chunkSpaceKey.length + stamp.length + (slot == null ? 0 : slot.getSize());
+    }
+}
@@ -0,0 +1,246 @@
+package foundationdb_fslayer.cache;
+
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.directory.DirectoryLayer;
+import com.apple.foundationdb.directory.DirectorySubspace;
+import foundationdb_fslayer.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Caches the DirectorySubspace each path resolves to, so opening a path does not
+ * walk the DirectoryLayer's node tree one read per path component.
+ *
+ * Every operation that can change what an existing path resolves to (delete and rename) bumps the namespace
+ * version of the node the path is removed from: a NAMESPACE key in that node's own subspace, or for the root,
+ * a NAMESPACE_VERSION key in the root metadata subspace. A cached path records the namespace version of each
+ * node above it, and is only used while all of them are unchanged, so paths resolved by other clients' caches
+ * never go stale, and a delete only drops the paths under the node it removes from.
+ * Creating a path does not bump any version, so only committed paths should be opened through the cache.
+ *
+ * Namespace versions are checked with snapshot reads, issued together, so opening a path never conflicts with
+ * deletes and renames elsewhere in the tree. Writers still conflict with a concurrent delete of what they modify
+ * through the keys they read. While the VersionWatcher holds a watch on a namespace version, opens trust it
+ * instead of reading it.
+ *
+ * Safe to use from many threads: transactions at different versions never see each other's subspaces.
+ */
+public class SubspaceCache {
+    /** Key of the namespace version in each node's subspace, bumped when something is removed from under it */
+    public static final String NAMESPACE = "NAMESPACE";
+    private static final List<String> ROOT_META_PATH = Collections.singletonList(".");
+    private static final String NAMESPACE_VERSION = "NAMESPACE_VERSION";
+    // Paths resolved, least recently used dropped first
+    private static final int MAX_PATHS = 65536;
+
+    private static final class Resolved {
+        private final DirectorySubspace subspace;
+        // Bumped when a node under this one is removed or renamed
+        private final byte[] namespaceKey;
+        // The namespace keys of the nodes above this one, root first, and their versions when it was resolved
+        private final byte[][] parentKeys;
+        private final long[] parentVersions;
+
+        private Resolved(DirectorySubspace subspace, byte[] namespaceKey, byte[][] parentKeys, long[] parentVersions) {
+            this.subspace = subspace;
+            this.namespaceKey = namespaceKey;
+            this.parentKeys = parentKeys;
+            this.parentVersions = parentVersions;
+        }
+
+        /** A path resolved under this one, whose namespace version was read as the given version */
+        private Resolved child(DirectorySubspace subspace, long namespaceVersion) {
+            byte[][] keys = Arrays.copyOf(parentKeys, parentKeys.length + 1);
+            keys[parentKeys.length] = namespaceKey;
+            long[] versions = Arrays.copyOf(parentVersions, parentVersions.length + 1);
+            versions[parentVersions.length] = namespaceVersion;
+            return new Resolved(subspace, subspace.pack(NAMESPACE), keys, versions);
+        }
+    }
+
+    // Only ever used with its lock held
+    private static final LruCache<List<String>, Resolved> SUBSPACES = new LruCache<>(
+            MAX_PATHS, resolved -> 1, (path, resolved) -> {}, (path, resolved) -> CacheMetrics.SUBSPACES.evicted(1));
+    static {
+        // Subspaces are not counted against the cache budget, so are not weighed either
+        CacheMetrics.SUBSPACES.setResident(() -> {
+            synchronized (SUBSPACES) {
+                return new long[] {SUBSPACES.size(), 0};
+            }
+        });
+    }
+    private static volatile DirectorySubspace rootMetaSpace;
+
+    /**
+     * Drop-in replacement for DirectoryLayer.open that answers from the cache when it can
+     */
+    public static CompletableFuture<DirectorySubspace> open(DirectoryLayer directoryLayer,
+                                                            ReadTransaction rt,
+                                                            List<String> path) {
+        if (path.isEmpty()) {
+            return directoryLayer.open(rt, path);
+        }
+        return getRootMetaSpace(directoryLayer, rt)
+                .handle((root, error) -> root)
+                // Until the root is initialized there are no namespace versions, so the cache is not used
+                .thenCompose(root -> root == null
+                        ? directoryLayer.open(rt, path)
+                        : lookup(directoryLayer, rt, getRoot(root), path).thenApply(resolved -> resolved.subspace));
+    }
+
+    /**
+     * Whether the path can be taken as still resolving to the subspace with the given key, without reading
+     * anything, because the namespace versions above it are watched, or were read within the staleness window.
+     * Lets cache entries of the node at the path be trusted, which only reads do.
+     */
+    public static boolean isTrusted(List<String> path, byte[] subspaceKey) {
+        Resolved cached;
+        synchronized (SUBSPACES) {
+            cached = SUBSPACES.get(path);
+        }
+        if (cached == null || !Arrays.equals(cached.subspace.getKey(), subspaceKey)) {
+            return false;
+        }
+        for (int i = 0; i < cached.parentKeys.length; ++i) {
+            if (!VersionWatcher.isWatched(cached.parentKeys[i], cached.parentVersions[i])
+                    && !VersionWatcher.isRecent(cached.parentKeys[i], cached.parentVersions[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that the node at the given path, and everything below it, is being removed or renamed,
+     * by bumping the namespace version of its parent.
+     * Other clients drop their caches of paths under the parent when this transaction commits.
+     */
+    public static void invalidate(DirectoryLayer directoryLayer, Transaction tr, String path) {
+        List<String> parsedPath = Util.parsePath(path);
+        try {
+            byte[] namespaceKey = parsedPath.size() <= 1
+                    ? getRoot(getRootMetaSpace(directoryLayer, tr).get()).namespaceKey
+                    : open(directoryLayer, tr, parsedPath.subList(0, parsedPath.size() - 1)).get().pack(NAMESPACE);
+            tr.mutate(MutationType.ADD, namespaceKey, Util.encodeLittleEndian(1));
+            VersionWatcher.written(namespaceKey);
+        } catch (Exception e) {
+            System.err.println("Failed to bump namespace version for " + path);
+            e.printStackTrace();
+        }
+        synchronized (SUBSPACES) {
+            SUBSPACES.removeIf(key -> key.size() >= parsedPath.size()
+                    && key.subList(0, parsedPath.size()).equals(parsedPath));
+        }
+    }
+
+    /**
+     * Resolves the path from the cache if every namespace version above it is unchanged, resolving it and the
+     * paths above it otherwise. Never blocks, so can be composed in asynchronous transactions.
+     */
+    private static CompletableFuture<Resolved> lookup(DirectoryLayer directoryLayer,
+                                                      ReadTransaction rt,
+                                                      Resolved root,
+                                                      List<String> path) {
+        Resolved cached;
+        synchronized (SUBSPACES) {
+            cached = SUBSPACES.get(path);
+        }
+        if (cached == null) {
+            return load(directoryLayer, rt, root, path, false);
+        }
+        return validate(rt, cached).thenCompose(valid -> {
+            if (valid) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            synchronized (SUBSPACES) {
+                SUBSPACES.remove(path, cached);
+            }
+            return load(directoryLayer, rt, root, path, true);
+        });
+    }
+
+    /**
+     * Opens the path, along with its parent's namespace version, caching it under the versions it was opened at
+     */
+    private static CompletableFuture<Resolved> load(DirectoryLayer directoryLayer,
+                                                    ReadTransaction rt,
+                                                    Resolved root,
+                                                    List<String> path,
+                                                    boolean reload) {
+        CacheMetrics.SUBSPACES.miss();
+        // Opened alongside the lookup of its parent, rather than after it
+        CompletableFuture<DirectorySubspace> opened = directoryLayer.open(rt, path);
+        CompletableFuture<Resolved> parent = path.size() == 1
+                ? CompletableFuture.completedFuture(root)
+                : lookup(directoryLayer, rt, root, path.subList(0, path.size() - 1));
+        return parent.thenCompose(resolvedParent -> rt.snapshot().get(resolvedParent.namespaceKey)
+                .thenCombine(opened, (rawVersion, subspace) -> {
+                    long namespaceVersion = decodeNamespaceVersion(rawVersion);
+                    VersionWatcher.checkedNamespace(resolvedParent.namespaceKey, namespaceVersion);
+                    Resolved resolved = resolvedParent.child(subspace, namespaceVersion);
+                    CacheMetrics.SUBSPACES.loaded(reload, 0);
+                    synchronized (SUBSPACES) {
+                        SUBSPACES.put(new ArrayList<>(path), resolved);
+                    }
+                    return resolved;
+                }));
+    }
+
+    /**
+     * Checks the namespace versions above a cached path, reading those not watched with one snapshot read each,
+     * all issued at once. Completes with whether they are all unchanged.
+     */
+    private static CompletableFuture<Boolean> validate(ReadTransaction rt, Resolved cached) {
+        List<CompletableFuture<Boolean>> checks = new ArrayList<>();
+        for (int i = 0; i < cached.parentKeys.length; ++i) {
+            byte[] namespaceKey = cached.parentKeys[i];
+            long namespaceVersion = cached.parentVersions[i];
+            if (VersionWatcher.isWatched(namespaceKey, namespaceVersion)) {
+                continue;
+            }
+            checks.add(rt.snapshot().get(namespaceKey).thenApply(rawVersion -> {
+                boolean unchanged = decodeNamespaceVersion(rawVersion) == namespaceVersion;
+                if (unchanged) {
+                    VersionWatcher.checkedNamespace(namespaceKey, namespaceVersion);
+                }
+                return unchanged;
+            }));
+        }
+        if (checks.isEmpty()) {
+            CacheMetrics.SUBSPACES.trustedHit();
+            return CompletableFuture.completedFuture(true);
+        }
+        CacheMetrics.SUBSPACES.validated();
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture[0])).thenApply(done -> {
+            boolean unchanged = checks.stream().allMatch(CompletableFuture::join);
+            if (unchanged) {
+                CacheMetrics.SUBSPACES.hit();
+            }
+            return unchanged;
+        });
+    }
+
+    /** Namespace versions start out unset */
+    static long decodeNamespaceVersion(byte[] rawVersion) {
+        return rawVersion == null ? 0 : Util.decodeLittleEndian(rawVersion);
+    }
+
+    /** The root, which is not a subspace of its own, with the namespace version kept in the root metadata */
+    private static Resolved getRoot(DirectorySubspace rootMeta) {
+        return new Resolved(null, rootMeta.pack(NAMESPACE_VERSION), new byte[0][], new long[0]);
+    }
+
+    private static CompletableFuture<DirectorySubspace> getRootMetaSpace(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        // The root metadata directory is created once and never moved, so it is resolved only once
+        if (rootMetaSpace != null) {
+            return CompletableFuture.completedFuture(rootMetaSpace);
+        }
+        return directoryLayer.open(rt, ROOT_META_PATH).thenApply(root -> rootMetaSpace = root);
+    }
+}
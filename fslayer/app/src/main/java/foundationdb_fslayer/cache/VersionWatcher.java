@@ -0,0 +1,337 @@
+package foundationdb_fslayer.cache;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.FDBException;
+import foundationdb_fslayer.fdb.object.AbstractSchema;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Watches the VERSION keys of cached nodes, so cached entries can be trusted without reading their version back.
+ * Each watch is armed at the version its entry was loaded at, and FoundationDB fires it once the key changes.
+ *
+ * The namespace versions of the nodes above cached paths are watched too, since renaming or deleting a parent
+ * changes what a path refers to without touching the node's own version. An entry is only trusted while the
+ * SubspaceCache also trusts its path.
+ *
+ * Watches are bounded, because each one holds a slot on the database's watch limit, and the least recently used
+ * are cancelled to make room. If the database refuses a watch first, the bound is lowered to what it took, then
+ * raised back towards the configured bound a step at a time once no watch has been refused for a while, since
+ * other clients' watches may have been released since. An entry without an armed watch, because the limit was hit,
+ * its watch fired or watching is disabled, is validated by reading its version as before.
+ *
+ * A watch fires a moment after the change commits, so for that moment other clients can still trust what they
+ * cached. A client's own writes drop its watches on the versions they bump as soon as they commit, so it
+ * always sees its own writes. Only reads trust watches: writes always validate what they build on by reading it.
+ *
+ * A mount can also be given a staleness window, which trusts an entry for that long after its version was last
+ * read, watched or not. Other clients' changes, renames included, can then take up to the window to be seen,
+ * but this client's own writes still forget what they bump as soon as they commit. With no window, only watches
+ * are trusted. Opening a path only trusts namespace versions while they are watched, since writers open paths
+ * too, but reads trust cached paths within the window like any other entry.
+ */
+public class VersionWatcher {
+    public static final int DEFAULT_MAX_WATCHES = 1000;
+    // FoundationDB's error for a client holding more watches than the database allows
+    private static final int TOO_MANY_WATCHES = 1032;
+    // Versions remembered for the staleness window, one per version key, least recently checked dropped first
+    private static final int MAX_VALIDATED = 65536;
+    // How long the database must take every watch before the bound is raised a step, and the step as a fraction
+    private static final long REGROW_QUIET_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int REGROW_STEP_DIVISOR = 10;
+
+    private static final class Watch {
+        private final long version;
+        private volatile boolean armed = false;
+        private volatile boolean done = false;
+        private CompletableFuture<Void> future;
+
+        private Watch(long version) {
+            this.version = version;
+        }
+
+        private boolean isArmed() {
+            return armed && !done;
+        }
+
+        private synchronized void arm(CompletableFuture<Void> future) {
+            if (done) {
+                future.cancel(true);
+            } else {
+                this.future = future;
+                armed = true;
+            }
+        }
+
+        /** Called once the watch has fired, failed or been cancelled */
+        private synchronized void finish() {
+            done = true;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /** A version read from the database, and when */
+    private static final class Validation {
+        private final long version;
+        private final long nanos;
+
+        private Validation(long version, long nanos) {
+            this.version = version;
+            this.nanos = nanos;
+        }
+
+        private boolean isFresh(long version) {
+            return this.version == version && System.nanoTime() - nanos < stalenessNanos;
+        }
+    }
+
+    // Only ever used with its lock held. Watches are cancelled as they leave it.
+    private static final LruCache<ByteBuffer, Watch> WATCHES =
+            new LruCache<>(0, watch -> 1, (key, watch) -> watch.finish());
+    private static volatile Database db;
+    // The bound the mount was started with, and the bound in force, lower while the database refuses watches
+    private static volatile int configuredWatchLimit = 0;
+    private static volatile int watchLimit = 0;
+    // When the bound was last lowered or raised
+    private static volatile long limitChangedNanos = System.nanoTime();
+    // Version keys the transaction running on each thread bumps, which are forgotten once it commits
+    private static final ThreadLocal<List<ByteBuffer>> WRITTEN = ThreadLocal.withInitial(ArrayList::new);
+
+    // Only ever used with its lock held
+    private static final LruCache<ByteBuffer, Validation> VALIDATED = new LruCache<>(MAX_VALIDATED, validation -> 1);
+    private static volatile long stalenessNanos = 0;
+    // Entries trusted only because they were checked within the staleness window
+    private static final AtomicLong STALE_HITS = new AtomicLong();
+
+    /**
+     * Starts arming watches on the given database, holding up to maxWatches at once.
+     * Until this is called, or if maxWatches is 0, nothing is watched.
+     */
+    public static void start(Database database, int maxWatches) {
+        synchronized (WATCHES) {
+            WATCHES.setMaxWeight(maxWatches);
+            configuredWatchLimit = maxWatches;
+            watchLimit = maxWatches;
+            limitChangedNanos = System.nanoTime();
+        }
+        db = maxWatches > 0 ? database : null;
+    }
+
+    /**
+     * Sets how long an entry is trusted after its version was last read, 0 for only as long as it is watched
+     */
+    public static void setStaleness(long stalenessMillis) {
+        stalenessNanos = TimeUnit.MILLISECONDS.toNanos(stalenessMillis);
+        synchronized (VALIDATED) {
+            VALIDATED.removeIf(key -> true);
+        }
+    }
+
+    public static long getStalenessMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stalenessNanos);
+    }
+
+    /** Version keys currently watched, armed or being armed */
+    public static int getWatchedKeys() {
+        synchronized (WATCHES) {
+            return WATCHES.size();
+        }
+    }
+
+    /** How many times an entry was trusted only because it was checked within the staleness window */
+    public static long getStaleHits() {
+        return STALE_HITS.get();
+    }
+
+    /**
+     * Whether the node version at the given key is known to still be the given version, without reading it,
+     * or was read as it within the staleness window
+     */
+    public static boolean isUnchanged(byte[] versionKey, long version) {
+        if (versionKey == null) {
+            return false;
+        }
+        if (isWatched(versionKey, version)) {
+            return true;
+        }
+        if (isRecent(versionKey, version)) {
+            STALE_HITS.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether an armed watch vouches for the version at the given key still being the given version
+     */
+    static boolean isWatched(byte[] versionKey, long version) {
+        Watch watch;
+        synchronized (WATCHES) {
+            watch = WATCHES.get(ByteBuffer.wrap(versionKey));
+        }
+        return watch != null && watch.isArmed() && watch.version == version;
+    }
+
+    /**
+     * Whether the version at the given key was read as the given version within the staleness window
+     */
+    static boolean isRecent(byte[] versionKey, long version) {
+        if (stalenessNanos <= 0) {
+            return false;
+        }
+        Validation validation;
+        synchronized (VALIDATED) {
+            validation = VALIDATED.get(ByteBuffer.wrap(versionKey));
+        }
+        return validation != null && validation.isFresh(version);
+    }
+
+    /**
+     * Records that the node version at the given key was just read as the given version,
+     * and watches it. Does nothing more if the key is already watched at that version.
+     */
+    public static void checked(byte[] versionKey, long version) {
+        if (versionKey == null || version < 0) {
+            return;
+        }
+        checked(versionKey, version, value -> value == null ? -1 : AbstractSchema.decodeVersion(value));
+    }
+
+    /**
+     * Like checked, for the namespace version at the given key, which starts out unset
+     */
+    static void checkedNamespace(byte[] namespaceKey, long namespaceVersion) {
+        checked(namespaceKey, namespaceVersion, SubspaceCache::decodeNamespaceVersion);
+    }
+
+    private static void checked(byte[] versionKey, long version, ToLongFunction<byte[]> decoder) {
+        ByteBuffer key = ByteBuffer.wrap(versionKey);
+        if (stalenessNanos > 0) {
+            synchronized (VALIDATED) {
+                VALIDATED.put(key, new Validation(version, System.nanoTime()));
+            }
+        }
+        Database database = db;
+        if (database == null) {
+            return;
+        }
+
+        Watch watch = new Watch(version);
+        synchronized (WATCHES) {
+            regrowIfQuiet();
+            Watch previous = WATCHES.get(key);
+            if (previous != null && !previous.done && previous.version == version) {
+                return;
+            }
+            // Cancels the previous watch, and evicts the least recently used if there is no room
+            WATCHES.put(key, watch);
+        }
+
+        arm(database, versionKey, watch, decoder, () -> {
+            synchronized (WATCHES) {
+                WATCHES.remove(key, watch);
+            }
+        });
+    }
+
+    /**
+     * Records that the transaction running on this thread bumps the version at the given key
+     */
+    public static void written(byte[] versionKey) {
+        if (db != null || stalenessNanos > 0) {
+            WRITTEN.get().add(ByteBuffer.wrap(versionKey));
+        }
+    }
+
+    /**
+     * Drops the watches on, and forgets when it last read, every version the transaction that just ran on this
+     * thread bumped. Called once it has committed, or given up, so this client sees its writes without waiting
+     * for the watches or the staleness window.
+     */
+    public static void forgetWritten() {
+        List<ByteBuffer> written = WRITTEN.get();
+        if (written.isEmpty()) {
+            return;
+        }
+        for (ByteBuffer key : written) {
+            Watch watch;
+            synchronized (WATCHES) {
+                watch = WATCHES.get(key);
+            }
+            if (watch != null) {
+                watch.finish();
+            }
+            synchronized (VALIDATED) {
+                VALIDATED.remove(key);
+            }
+        }
+        written.clear();
+    }
+
+    /**
+     * Arms the watch in its own transaction, which first checks the key still holds the watched version,
+     * as it may have changed since it was read. Runs onDone once the watch fires or cannot be armed.
+     */
+    private static void arm(Database database,
+                            byte[] key,
+                            Watch watch,
+                            ToLongFunction<byte[]> decoder,
+                            Runnable onDone) {
+        database.runAsync(tr -> tr.get(key).thenApply(value ->
+                        decoder.applyAsLong(value) == watch.version ? tr.watch(key) : null))
+                .whenComplete((future, error) -> {
+                    if (error != null || future == null) {
+                        watch.finish();
+                        onDone.run();
+                        return;
+                    }
+                    watch.arm(future);
+                    future.whenComplete((fired, watchError) -> {
+                        if (watchError instanceof FDBException
+                                && ((FDBException) watchError).getCode() == TOO_MANY_WATCHES) {
+                            System.err.println("Database watch limit reached, validating more cache entries by reading");
+                            shrinkToFit();
+                        }
+                        watch.finish();
+                        onDone.run();
+                    });
+                });
+    }
+
+    /**
+     * Lowers the limit to the watches already armed, since the database will not take any more
+     */
+    private static void shrinkToFit() {
+        synchronized (WATCHES) {
+            watchLimit = Math.max(WATCHES.size() - 1, 0);
+            WATCHES.setMaxWeight(watchLimit);
+            limitChangedNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Raises a lowered limit a step towards the configured one, if the database has taken every watch for a while.
+     * Called with the lock on WATCHES held. If the database refuses again, shrinkToFit lowers it back.
+     */
+    private static void regrowIfQuiet() {
+        if (watchLimit >= configuredWatchLimit) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - limitChangedNanos < REGROW_QUIET_NANOS) {
+            return;
+        }
+        int step = Math.max(configuredWatchLimit / REGROW_STEP_DIVISOR, 1);
+        watchLimit = Math.min(watchLimit + step, configuredWatchLimit);
+        WATCHES.setMaxWeight(watchLimit);
+        limitChangedNanos = now;
+    }
+}
@@ -0,0 +1,46 @@
+package foundationdb_fslayer.fdb;
+
+import foundationdb_fslayer.fdb.object.Attr;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking versions of the file operations that run without tying up a thread while FoundationDB answers,
+ * that run in the background, or that split their reads to run side by side, along with writes.
+ * The other operations only have their blocking versions, in FoundationFileOperations.
+ * Each completes with what its blocking counterpart returns.
+ */
+public interface AsyncFoundationFileOperations extends FoundationFileOperations {
+  /**
+   * Loads the given range of a file into the cache, so reads of it that follow need not wait on the database.
+   * Runs on threads of its own, so prefetching never holds up other operations.
+   * Completes with how many bytes of chunks were loaded for the range, 0 if they were all found cached without
+   * reading, or -1 on error.
+   */
+  CompletableFuture<Long> prefetchAsync(String path, long offset, long size, long userId);
+
+  /**
+   * Loads the chunks of the range that are not cached side by side, rather than one run after another
+   */
+  CompletableFuture<byte[]> readAsync(String path, long offset, long size, long userId);
+
+  /**
+   * Runs on threads of its own, so the caller can wait on it alongside other operations
+   */
+  CompletableFuture<Boolean> writeAsync(String path, byte[] data, long offset, long userId);
+
+  /**
+   * Like writeAsync, runs on threads of its own
+   */
+  CompletableFuture<Boolean> appendAsync(String path, byte[] data, long userId);
+
+  /**
+   * Reads nodes that have an INODE record in one pipelined transaction, without tying up a thread
+   */
+  CompletableFuture<Attr> getAttrAsync(String path);
+
+  /**
+   * Like getAttrAsync, does not tie up a thread for files that have an INODE record
+   */
+  CompletableFuture<Long> getFileSizeAsync(String path);
+}
@@ -85,15 +85,38 @@ public interface FoundationFileOperations {
   /**
    * Returns a file's size
    */
-  int getFileSize(String path);
+  long getFileSize(String path);
 
 
   /**
    *  Sets a file's size to the given length
-   *  Will delete data on shrink, and do nothing on grow
+   *  Will delete data on shrink, and leave a hole that reads as zeros on grow
    */
   boolean truncate(String path, long size, long userId);
 
+  /**
+   *  Appends data to the end of a file, for files opened with O_APPEND
+   *  Returns false on failure
+   */
+  boolean append(String path, byte[] data, long userId);
+
+  /**
+   *  Returns {logical, physical}: the bytes deduplicated files' chunks refer to, and the bytes stored for them
+   *  once per distinct chunk. Returns null on failure.
+   */
+  long[] getDedupUsage();
+
+  /**
+   *  Grows a file to at least offset + length bytes, without writing any data (fallocate)
+   */
+  boolean allocate(String path, long offset, long length, long userId);
+
+  /**
+   *  Sets the chunk size used by files later created in a directory.
+   *  Existing files keep the chunk size they were created with.
+   */
+  boolean setChunkSize(String path, int chunkSize, long userId);
+
   /**
    *  Sets a file's mode to the given value
    */
@@ -107,6 +130,10 @@ public interface FoundationFileOperations {
 
   int open(String path, int flags);
 
+  /**
+   *  Renames a file or directory. The node keeps its data and metadata,
+   *  so this costs the same no matter how much is stored under it.
+   */
   boolean move(String oldPath, String newPath, long userId);
 
   void initRootIfNeeded();
@@ -3,10 +3,19 @@ package foundationdb_fslayer.fdb;
 import com.apple.foundationdb.*;
 import com.apple.foundationdb.directory.DirectoryLayer;
 import com.apple.foundationdb.directory.DirectorySubspace;
+import com.apple.foundationdb.directory.NoSuchDirectoryException;
+import foundationdb_fslayer.MountOptions;
 import foundationdb_fslayer.Util;
+import foundationdb_fslayer.cache.AttrCacheEntry;
+import foundationdb_fslayer.cache.CacheMetrics;
 import foundationdb_fslayer.cache.DirectoryCacheEntry;
 import foundationdb_fslayer.cache.FsCacheSingleton;
+import foundationdb_fslayer.cache.MissingCacheEntry;
+import foundationdb_fslayer.cache.SubspaceCache;
+import foundationdb_fslayer.cache.VersionWatcher;
+import foundationdb_fslayer.fdb.object.AbstractSchema;
 import foundationdb_fslayer.fdb.object.Attr;
+import foundationdb_fslayer.fdb.object.ChunkStore;
 import foundationdb_fslayer.fdb.object.DirectorySchema;
 import foundationdb_fslayer.fdb.object.FileSchema;
 import foundationdb_fslayer.fdb.object.ObjectType;
@@ -16,20 +25,79 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static foundationdb_fslayer.Util.parsePath;
 
-public class FoundationLayer implements FoundationFileOperations {
+public class FoundationLayer implements AsyncFoundationFileOperations {
 
   private final FDB fdb;
   private final DirectoryLayer directoryLayer;
   private final Database db;
+  private final MountOptions options;
+
+  /**
+   * Runs the blocking fallbacks of getAttrAsync and getFileSizeAsync, for nodes without an INODE record,
+   * so they never block FoundationDB's network thread, along with the parallel chunk loads of readAsync
+   * and the transactions of writeAsync and appendAsync.
+   * Threads are daemons so they do not keep the process alive once it is unmounted.
+   */
+  private static final ExecutorService ASYNC_EXECUTOR = Executors.newFixedThreadPool(4, runnable -> {
+    Thread thread = new Thread(runnable, "fslayer-async");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /** Runs the transactions of staged writes, without keeping the process alive once it is unmounted */
+  private static final ExecutorService STAGING_EXECUTOR = Executors.newFixedThreadPool(4, runnable -> {
+    Thread thread = new Thread(runnable, "fslayer-staging");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /** Releases the chunks of deleted deduplicated files in the background, one batch at a time */
+  private static final ExecutorService CLEANUP_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "fslayer-cleanup");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /** Stages not written to for this long are taken as abandoned by their writer */
+  private static final long ABANDONED_STAGE_MILLIS = 10 * 60 * 1000;
+  /** Files already swept for leftover stages since they were first opened by this mount, forgotten once there are too many */
+  private static final Set<String> SWEPT_PATHS = ConcurrentHashMap.newKeySet();
+  private static final int MAX_SWEPT_PATHS = 65536;
+
+  /** Runs readahead transactions, apart from the operations FUSE is waiting on */
+  private static final ExecutorService READAHEAD_EXECUTOR = Executors.newFixedThreadPool(4, runnable -> {
+    Thread thread = new Thread(runnable, "fslayer-readahead");
+    thread.setDaemon(true);
+    return thread;
+  });
 
   public FoundationLayer(Integer apiVersion) {
+    this(apiVersion, new MountOptions());
+  }
+
+  public FoundationLayer(Integer apiVersion, MountOptions options) {
     this.fdb = FDB.selectAPIVersion(apiVersion);
     this.directoryLayer = new DirectoryLayer();
     this.db = fdb.open();
+    this.options = options;
+    FsCacheSingleton.setMaxBytes(options.getCacheBytes());
+    FsCacheSingleton.setOffHeap(options.isOffHeapCache());
+    FsCacheSingleton.setDiskCache(options.getDiskCacheDirectory(), options.getDiskCacheBytes());
+    VersionWatcher.start(db, options.getMaxWatches());
+    VersionWatcher.setStaleness(options.getStalenessMillis());
+    System.out.println("Consistency: " + options.describeConsistency());
+    CacheMetrics.start(options.describeConsistency(), options.getStatsSeconds());
   }
 
   private <T> T dbRead(Function<ReadTransaction, T> op){
@@ -37,7 +105,12 @@ public class FoundationLayer implements FoundationFileOperations {
   }
 
   private <T> T dbWrite(Function<Transaction, T> op){
-    return db.run(op);
+    try {
+      return db.run(op);
+    } finally {
+      // See our own writes now, rather than once the watches on what they changed fire
+      VersionWatcher.forgetWritten();
+    }
   }
 
   @Override
@@ -47,25 +120,41 @@ public class FoundationLayer implements FoundationFileOperations {
     return dbRead(transaction -> file.read(directoryLayer, transaction, offset, size, userId));
   }
 
+  @Override
+  public CompletableFuture<byte[]> readAsync(String path, long offset, long size, long userId) {
+    FileSchema file = new FileSchema(path);
+
+    return db.readAsync(transaction -> file.readAsync(directoryLayer, transaction, offset, size, userId, ASYNC_EXECUTOR));
+  }
+
   @Override
   public boolean rmdir(String path, long uid) {
     DirectorySchema dir = new DirectorySchema(path);
 
-    return dbWrite(transaction ->
+    boolean deleted = dbWrite(transaction ->
             canNodeBeCreatedOrRemoved(transaction, path, uid)
                     && dir.delete(directoryLayer, transaction));
+    if (deleted && dir.getTrashedName() != null) {
+      emptyTrash(dir.getTrashedName());
+    }
+    return deleted;
   }
 
   @Override
   public DirectorySubspace mkdir(String path, long mode, long uid) {
     DirectorySchema dir = new DirectorySchema(path);
 
-    return dbWrite(transaction -> {
+    DirectorySubspace created = dbWrite(transaction -> {
       if (!canNodeBeCreatedOrRemoved(transaction, path, uid)) {
         return null;
       }
-      return dir.create(directoryLayer, transaction, mode, uid);
+      // New directories inherit their parent's chunk size policy
+      Integer chunkSizePolicy = getDirectoryMetadata(Util.getParentPath(path), transaction).getChunkSize();
+      return dir.create(directoryLayer, transaction, mode, uid, chunkSizePolicy);
     });
+    // The parent's version has changed too, dropping the entry only saves checking it
+    FsCacheSingleton.removeMissingFromCache(path);
+    return created;
   }
 
 
@@ -73,7 +162,110 @@ public class FoundationLayer implements FoundationFileOperations {
   public boolean write(String path, byte[] data, long offset, long userId) {
     FileSchema file = new FileSchema(path);
 
-    return dbWrite(transaction -> file.write(directoryLayer, transaction, data, offset, userId));
+    if (data.length > FileSchema.STAGED_WRITE_BYTES) {
+      return stagedWrite(file, data, offset, userId);
+    }
+    return modifyChunks(file, transaction -> file.write(directoryLayer, transaction, data, offset, userId));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> writeAsync(String path, byte[] data, long offset, long userId) {
+    return async(() -> write(path, data, offset, userId));
+  }
+
+  /**
+   * Runs a transaction modifying the file's chunks once no staged write is still being moved into them,
+   * finishing moving one first if there is.
+   */
+  private boolean modifyChunks(FileSchema file, Function<Transaction, Boolean> modify) {
+    Boolean modified = dbWrite(tr -> file.hasPendingWrite(directoryLayer, tr) ? null : modify.apply(tr));
+    if (modified == null) {
+      finishStagedWrite(file);
+      modified = dbWrite(tr -> !file.hasPendingWrite(directoryLayer, tr) && modify.apply(tr));
+    }
+    return modified;
+  }
+
+  /**
+   * Writes data too large for one transaction in chunk-aligned batches, each in its own transaction.
+   * The batches are staged where readers never look, then committed by one last transaction that
+   * points readers at the stage, so readers see the whole write or none of it. The staged chunks are
+   * then moved into the file, a batch per transaction.
+   * Fails, leaving the file as it was, if the file changes while the write is staged.
+   */
+  private boolean stagedWrite(FileSchema file, byte[] data, long offset, long userId) {
+    // One staged write is moved into the file at a time
+    finishStagedWrite(file);
+    FileSchema.StagedWrite staged = dbWrite(tr -> file.beginStagedWrite(directoryLayer, tr, offset, data.length, userId));
+    if (staged == null) {
+      return false;
+    }
+
+    boolean committed = false;
+    try {
+      int batchSize = staged.getChunksPerBatch();
+      List<Supplier<Boolean>> writes = new ArrayList<>();
+      for (int start = staged.getFirstChunk(); start <= staged.getLastChunk(); start += batchSize) {
+        int batchStart = start;
+        int batchEnd = Math.min(start + batchSize - 1, staged.getLastChunk());
+        writes.add(() -> dbWrite(tr -> file.writeToStage(directoryLayer, tr, staged, data, batchStart, batchEnd)));
+      }
+
+      committed = runBatches(writes) && dbWrite(tr -> file.commitStagedWrite(directoryLayer, tr, staged));
+      return committed;
+    } finally {
+      if (committed) {
+        finishStagedWrite(file);
+      } else {
+        while (!dbWrite(tr -> file.discardStage(directoryLayer, tr, staged.getStageName(), FileSchema.RELEASE_BATCH_CHUNKS))) {
+          // Deduplicated chunks are released a batch at a time
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the chunks of a committed staged write into the file, if there is one, a batch per transaction
+   */
+  private void finishStagedWrite(FileSchema file) {
+    while (!dbWrite(tr -> file.rollForward(directoryLayer, tr))) {
+      // Each batch is moved in its own transaction
+    }
+  }
+
+  /**
+   * Runs staging transactions, a few at a time since batches never touch the same keys.
+   * Returns false if any of them fails.
+   */
+  private boolean runBatches(List<Supplier<Boolean>> batches) {
+    List<CompletableFuture<Boolean>> results = new ArrayList<>();
+    for (Supplier<Boolean> batch : batches) {
+      results.add(CompletableFuture.supplyAsync(batch, STAGING_EXECUTOR));
+    }
+    boolean succeeded = true;
+    for (CompletableFuture<Boolean> result : results) {
+      try {
+        succeeded &= result.get();
+      } catch (Exception e) {
+        System.err.println("Staging transaction failed");
+        e.printStackTrace();
+        succeeded = false;
+      }
+    }
+    return succeeded;
+  }
+
+
+  @Override
+  public boolean append(String path, byte[] data, long userId) {
+    FileSchema file = new FileSchema(path);
+
+    return modifyChunks(file, transaction -> file.append(directoryLayer, transaction, data, userId));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> appendAsync(String path, byte[] data, long userId) {
+    return async(() -> append(path, data, userId));
   }
 
 
@@ -86,10 +278,9 @@ public class FoundationLayer implements FoundationFileOperations {
     }
 
     Optional<List<String>> cacheValue = dbRead(rt ->
-            FsCacheSingleton.getDir(path).flatMap(entry ->
-                    entry.isCurrent(directoryLayer, rt)
-                            ? Optional.of(entry.getChildren())
-                            : Optional.empty()));
+            FsCacheSingleton.getDir(path)
+                    .map(entry -> entry.getValid(directoryLayer, rt))
+                    .map(DirectoryCacheEntry.State::getChildren));
     return cacheValue.orElseGet(() -> {
       try {
         List<String> children = directoryLayer.list(db, parsePath(path)).get();
@@ -117,32 +308,157 @@ public class FoundationLayer implements FoundationFileOperations {
 
   public boolean clearFileContent(String filepath, long userId) {
     FileSchema file = new FileSchema(filepath);
-    return dbWrite(transaction ->
+    boolean deleted = dbWrite(transaction ->
             canNodeBeCreatedOrRemoved(transaction, filepath, userId)
                     && file.delete(directoryLayer, transaction));
+    if (deleted && file.getTrashedName() != null) {
+      emptyTrash(file.getTrashedName());
+    }
+    return deleted;
+  }
+
+  /**
+   * Releases the chunks of a deduplicated file, or of those under a directory, moved into the trash, a batch per
+   * transaction, in the background. The node is already unlinked, so only the space it holds waits on this.
+   */
+  private void emptyTrash(String trashedName) {
+    CLEANUP_EXECUTOR.execute(() -> {
+      while (!dbWrite(tr -> FileSchema.releaseTrashed(directoryLayer, tr, trashedName, FileSchema.RELEASE_BATCH_CHUNKS))) {
+        // Deduplicated chunks are released a batch at a time
+      }
+    });
   }
 
   @Override
   public boolean createFile(String path, long userId) {
     FileSchema file = new FileSchema(path);
-    return dbWrite(transaction ->
-            canNodeBeCreatedOrRemoved(transaction, path, userId)
-                    && file.create(directoryLayer, transaction));
+    boolean created = dbWrite(transaction -> {
+      if (!canNodeBeCreatedOrRemoved(transaction, path, userId)) {
+        return false;
+      }
+      int chunkSize = getChunkSizeForNewFile(path, transaction);
+      Attr attr = new Attr()
+              .setUid(userId)
+              .setChunkSize(chunkSize)
+              .setCodec(options.getCodec())
+              .setDeduplicated(options.isDeduplicated())
+              // Inline data always fits in the first chunk, so it can be moved there as is
+              .setInlineLimit(options.getInlineThreshold() > 0
+                      ? Math.min(options.getInlineThreshold(), chunkSize)
+                      : null);
+      return file.create(directoryLayer, transaction, attr);
+    });
+    // The parent's version has changed too, dropping the entry only saves checking it
+    FsCacheSingleton.removeMissingFromCache(path);
+    return created;
+  }
+
+  /**
+   * Files take the chunk size policy of their directory, or the mount's default if it has none
+   */
+  private int getChunkSizeForNewFile(String path, ReadTransaction rt) {
+    return Optional.ofNullable(getDirectoryMetadata(Util.getParentPath(path), rt).getChunkSize())
+            .orElse(options.getChunkSize());
+  }
+
+  @Override
+  public boolean setChunkSize(String path, int chunkSize, long userId) {
+    return dbWrite(tr -> isDirectory(path, tr).orElse(false)
+            && Long.valueOf(userId).equals(getDirectoryMetadata(path, tr).getUid())
+            && new DirectorySchema(path).setChunkSize(directoryLayer, tr, chunkSize));
   }
 
   @Override
   public Attr getAttr(String path) {
-    return dbRead(rt -> {
-      Optional<Boolean> isDir = isDirectory(path, rt);
-      if (isDir.isPresent()) {
-        if (isDir.get()) {
-          return getDirectoryMetadata(path, rt);
-        } else {
-          return new FileSchema(path).getMetadata(directoryLayer, rt);
-        }
-      } else {
+    Optional<AttrCacheEntry> cached = FsCacheSingleton.getAttr(path);
+    AttrCacheEntry.State trusted = getTrustedAttrs(cached);
+    if (trusted != null) {
+      return trusted.getMetadata();
+    }
+    Attr attr = dbRead(rt -> {
+      // Paths probed over and over without existing cost at most a check of their parent's version
+      if (FsCacheSingleton.isMissing(path, directoryLayer, rt)) {
         return new Attr().setObjectType(ObjectType.NOT_FOUND);
       }
+      // A cached file costs a read of its version, unless it has changed
+      AttrCacheEntry.State current = cached.map(entry -> entry.getCurrent(directoryLayer, rt)).orElse(null);
+      if (current != null && current.getVersion() >= 0) {
+        return current.getMetadata();
+      }
+      // Nodes with an INODE record are read in one go, without checking what kind of node the path is
+      Attr node = AbstractSchema.readNode(directoryLayer, rt, path);
+      if (node != null && node.getObjectType() == ObjectType.NOT_FOUND) {
+        // The parent's version is read in the transaction the path was missing in,
+        // so a create committed in between is seen as a newer version
+        FsCacheSingleton.loadMissingToCache(path, directoryLayer, rt);
+      } else if (node != null && node.getObjectType() == ObjectType.FILE) {
+        // So stats of the file that follow are answered from the cache
+        return FsCacheSingleton.loadAttrToCache(path, directoryLayer, rt).getMetadata();
+      }
+      return node;
+    });
+    return attr != null ? attr : migrateNode(path);
+  }
+
+  /**
+   * The cached attributes of a file, if a watch on its version or the mount's staleness window vouches for them,
+   * so they are answered without reading anything. Returns null otherwise.
+   */
+  private static AttrCacheEntry.State getTrustedAttrs(Optional<AttrCacheEntry> cached) {
+    return cached.map(AttrCacheEntry::getTrusted)
+            .filter(state -> state.getVersion() >= 0)
+            .orElse(null);
+  }
+
+  @Override
+  public CompletableFuture<Attr> getAttrAsync(String path) {
+    Optional<AttrCacheEntry> cached = FsCacheSingleton.getAttr(path);
+    AttrCacheEntry.State trusted = getTrustedAttrs(cached);
+    if (trusted != null) {
+      return CompletableFuture.completedFuture(trusted.getMetadata());
+    }
+    if (cached.isPresent()) {
+      // Checking the entry's version blocks, so is only done off FoundationDB's network thread
+      return async(() -> getAttr(path));
+    }
+    Optional<MissingCacheEntry> missing = FsCacheSingleton.getMissing(path);
+    if (missing.isPresent()) {
+      // Checking the parent's version blocks, so is only done off FoundationDB's network thread
+      return missing.get().isTrusted()
+              ? CompletableFuture.completedFuture(new Attr().setObjectType(ObjectType.NOT_FOUND))
+              : async(() -> getAttr(path));
+    }
+    return db.readAsync(rt -> AbstractSchema.readNodeAsync(directoryLayer, rt, path))
+            .thenCompose(attr -> {
+              if (attr == null) {
+                return async(() -> migrateNode(path));
+              }
+              // Missing paths are looked up again to be cached, as the parent's version must be read alongside
+              if (attr.getObjectType() == ObjectType.NOT_FOUND) {
+                return async(() -> getAttr(path));
+              }
+              if (attr.getObjectType() == ObjectType.FILE) {
+                // Cached in the background, so stats of the file that follow read nothing while it is watched
+                async(() -> dbRead(rt -> FsCacheSingleton.loadAttrToCache(path, directoryLayer, rt)));
+              }
+              return CompletableFuture.completedFuture(attr);
+            });
+  }
+
+  /**
+   * Nodes created before INODE records existed are migrated the first time they are looked up
+   */
+  private Attr migrateNode(String path) {
+    return dbWrite(tr -> {
+      Optional<Boolean> isDir = isDirectory(path, tr);
+      if (!isDir.isPresent()) {
+        return new Attr().setObjectType(ObjectType.NOT_FOUND);
+      }
+      AbstractSchema node = isDir.get() ? new DirectorySchema(path) : new FileSchema(path);
+      // Another client may have migrated it since we looked
+      return node.loadRecord(directoryLayer, tr) != null
+              ? node.loadMetadata(directoryLayer, tr)
+              : node.migrateLegacyMetadata(directoryLayer, tr);
     });
   }
 
@@ -150,12 +466,21 @@ public class FoundationLayer implements FoundationFileOperations {
     List<String> paths = parsePath(path);
     List<String> listDotPath = new ArrayList<>(paths);
     listDotPath.add(DirectorySchema.Metadata.META_ROOT);
+    // Both paths are opened at once rather than one after the other
+    CompletableFuture<DirectorySubspace> node = SubspaceCache.open(directoryLayer, rt, paths);
+    CompletableFuture<DirectorySubspace> metadata = SubspaceCache.open(directoryLayer, rt, listDotPath);
     try {
-      directoryLayer.open(rt, paths).get();
-      return Optional.of(directoryLayer.exists(rt, listDotPath).get());
+      node.get();
     } catch (Exception e) {
       return Optional.empty();
     }
+    // Directories have a metadata subspace, files do not
+    try {
+      metadata.get();
+      return Optional.of(true);
+    } catch (Exception e) {
+      return e.getCause() instanceof NoSuchDirectoryException ? Optional.of(false) : Optional.empty();
+    }
   }
 
   private Optional<List<String>> loadDirectoryContents(String path) {
@@ -167,10 +492,11 @@ public class FoundationLayer implements FoundationFileOperations {
   }
 
   private Attr getDirectoryMetadata(String path, ReadTransaction rt) {
-    DirectoryCacheEntry entry = FsCacheSingleton.getDir(path)
+    DirectoryCacheEntry.State entry = FsCacheSingleton.getDir(path)
             .flatMap(storedEntry -> {
-              if (storedEntry.isCurrent(directoryLayer, rt)) {
-                return Optional.of(storedEntry);
+              DirectoryCacheEntry.State valid = storedEntry.getValid(directoryLayer, rt);
+              if (valid != null) {
+                return Optional.of(valid);
               } else {
                 return loadDirectoryContents(path)
                         .map(children -> storedEntry.reload(directoryLayer, rt, children));
@@ -182,7 +508,7 @@ public class FoundationLayer implements FoundationFileOperations {
                         path,
                         directoryLayer,
                         rt,
-                        directoryLayer.list(rt, parsePath(path)).get());
+                        directoryLayer.list(rt.snapshot(), parsePath(path)).get());
               } catch (Exception e) {
                 return null;
               }
@@ -200,13 +526,53 @@ public class FoundationLayer implements FoundationFileOperations {
   }
 
   @Override
-  public int getFileSize(String path) {
+  public long getFileSize(String path) {
     return dbRead(rt -> new FileSchema(path).size(directoryLayer, rt));
   }
 
+  @Override
+  public CompletableFuture<Long> getFileSizeAsync(String path) {
+    AttrCacheEntry.State trusted = getTrustedAttrs(FsCacheSingleton.getAttr(path));
+    if (trusted != null) {
+      return CompletableFuture.completedFuture(trusted.getMetadata().getSize());
+    }
+    return db.readAsync(rt -> AbstractSchema.readNodeAsync(directoryLayer, rt, path))
+            .thenCompose(attr -> {
+              if (attr != null && attr.getObjectType() == ObjectType.NOT_FOUND) {
+                return CompletableFuture.completedFuture(-1L);
+              }
+              return attr != null && attr.getObjectType() == ObjectType.FILE
+                      ? CompletableFuture.completedFuture(attr.getSize())
+                      : async(() -> getFileSize(path));
+            });
+  }
+
   @Override
   public boolean truncate(String path, long size, long userId) {
-    return dbWrite(tr -> new FileSchema(path).truncate(directoryLayer, tr, size, userId));
+    FileSchema file = new FileSchema(path);
+    return modifyChunks(file, tr -> file.truncate(directoryLayer, tr, size, userId));
+  }
+
+  @Override
+  public long[] getDedupUsage() {
+    try {
+      return dbRead(rt -> {
+        try {
+          return ChunkStore.getUsage(directoryLayer, rt);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    } catch (Exception e) {
+      System.err.println("Failed to read deduplicated chunk usage");
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  @Override
+  public boolean allocate(String path, long offset, long length, long userId) {
+    return dbWrite(tr -> new FileSchema(path).allocate(directoryLayer, tr, offset, length, userId));
   }
 
   @Override
@@ -228,59 +594,78 @@ public class FoundationLayer implements FoundationFileOperations {
 
   @Override
   public int open(String path, int flags) {
-    return dbWrite(tr -> new FileSchema(path).open(directoryLayer, tr, flags));
+    FileSchema file = new FileSchema(path);
+    if (SWEPT_PATHS.add(path)) {
+      sweepStages(file);
+    }
+    return dbWrite(tr -> file.open(directoryLayer, tr, flags));
+  }
+
+  /**
+   * Finishes, in the background, moving a staged write into the file if its writer stopped before it did,
+   * and removes stages left by writes that will never commit.
+   */
+  private void sweepStages(FileSchema file) {
+    if (SWEPT_PATHS.size() > MAX_SWEPT_PATHS) {
+      SWEPT_PATHS.clear();
+    }
+    CLEANUP_EXECUTOR.execute(() -> {
+      finishStagedWrite(file);
+      long touchedBefore = System.currentTimeMillis() - ABANDONED_STAGE_MILLIS;
+      for (String stage : dbRead(rt -> file.findAbandonedStages(directoryLayer, rt, touchedBefore))) {
+        while (!dbWrite(tr -> file.discardStage(directoryLayer, tr, stage, FileSchema.RELEASE_BATCH_CHUNKS))) {
+          // Deduplicated chunks are released a batch at a time
+        }
+      }
+    });
   }
 
   @Override
   public boolean move(String oldPath, String newPath, long userId) {
-    return dbWrite(tr-> {
+    // The file replaced at the destination, if any, set again each time the transaction is retried
+    AtomicReference<FileSchema> replaced = new AtomicReference<>();
+    boolean moved = dbWrite(tr -> {
+      replaced.set(null);
       String path = newPath;
+      // Moving onto a directory moves the node into it
       if (isDirectory(newPath, tr).orElse(false)) {
-        path += oldPath.substring(oldPath.lastIndexOf("/") + 1);
+        path = newPath + "/" + oldPath.substring(oldPath.lastIndexOf("/") + 1);
+      }
+      if (path.equals(oldPath)) {
+        return true;
       }
-      return recursiveMove(oldPath, path, tr, userId)
-              && new DirectorySchema(oldPath).delete(directoryLayer, tr);
-    });
-  }
 
-  public boolean recursiveMove(String oldPath, String newPath, Transaction transaction, long userId) {
-    System.out.printf("Renaming %s to %s\n", oldPath, newPath);
-    return isDirectory(oldPath, transaction).map(isDir -> {
-      if (isDir) {
-        // Grab the metadata from the old directory
-        Attr oldMetadata = getDirectoryMetadata(oldPath, transaction);
-
-        // Create the new directory
-        DirectorySchema newDir = new DirectorySchema(newPath);
-        newDir.create(directoryLayer, transaction, oldMetadata.getMode(), oldMetadata.getUid());
-
-        // Recur on all subdirectories, then on child files
-        List<String> childPaths = ls(oldPath, oldMetadata.getUid());
-        boolean subDirCopySuccess = childPaths.stream()
-                .filter(child -> isDirectory(oldPath + "/" + child, transaction).orElse(false))
-                .allMatch(subDir -> recursiveMove(
-                        oldPath + "/" + subDir,
-                        newPath + "/" + subDir,
-                        transaction, userId));
-
-         return subDirCopySuccess &&
-                childPaths.stream()
-                        .filter(child -> !isDirectory(oldPath + "/" + child, transaction).orElse(true))
-                        .filter(child -> !child.equals("."))
-                        .allMatch(file -> new FileSchema(oldPath + "/" + file)
-                                .move(directoryLayer, transaction, newPath + "/" + file) != null);
+      // The user needs to be able to remove the node from its old directory and add it to the new one
+      if (!canNodeBeCreatedOrRemoved(tr, oldPath, userId) || !canNodeBeCreatedOrRemoved(tr, path, userId)) {
+        return false;
+      }
 
+      Optional<Boolean> isDir = isDirectory(oldPath, tr);
+      if (!isDir.isPresent()) {
+        return false;
+      }
 
-      } else {
-        new FileSchema(oldPath).move(directoryLayer, transaction, newPath);
-        return true;
+      // Like rename(2), replace a file already at the destination
+      if (!isDirectory(path, tr).orElse(true)) {
+        replaced.set(new FileSchema(path));
+        if (!replaced.get().delete(directoryLayer, tr)) {
+          return false;
+        }
       }
-    }).orElse(false);
+
+      return isDir.get()
+              ? new DirectorySchema(oldPath).move(directoryLayer, tr, path)
+              : new FileSchema(oldPath).move(directoryLayer, tr, path);
+    });
+    if (moved && replaced.get() != null && replaced.get().getTrashedName() != null) {
+      emptyTrash(replaced.get().getTrashedName());
+    }
+    return moved;
   }
 
   @Override
   public void initRootIfNeeded() {
-    db.run(tr -> {
+    dbWrite(tr -> {
       try {
         if (!directoryLayer.exists(tr, Arrays.asList(DirectorySchema.Metadata.META_ROOT)).get()) {
           new DirectorySchema("/").initMetadata(directoryLayer, tr);
@@ -288,12 +673,24 @@ public class FoundationLayer implements FoundationFileOperations {
         } else {
           System.out.println("Root directory exists!");
         }
+        ChunkStore.initIfNeeded(directoryLayer, tr);
       } catch (Exception e) {
         System.err.println("Error checking if meta root exists to initialize");
         e.printStackTrace();
       }
       return null;
     });
+    // Files left in the trash by clients that stopped before emptying it
+    List<String> trash = dbRead(rt -> {
+      try {
+        return FileSchema.listTrash(directoryLayer, rt);
+      } catch (Exception e) {
+        System.err.println("Failed to list the trash");
+        e.printStackTrace();
+        return new ArrayList<String>();
+      }
+    });
+    trash.forEach(this::emptyTrash);
   }
 
   @Override
@@ -316,4 +713,20 @@ public class FoundationLayer implements FoundationFileOperations {
     return checkDirectoryPermission(parentPath, rt, userId, 0200, 0002)
             && checkDirectoryPermission(parentPath, rt, userId, 0400, 0004);
   }
+
+  /**
+   * Runs a blocking operation on the async executor
+   */
+  private static <T> CompletableFuture<T> async(Supplier<T> op) {
+    return CompletableFuture.supplyAsync(op, ASYNC_EXECUTOR);
+  }
+
+  @Override
+  public CompletableFuture<Long> prefetchAsync(String path, long offset, long size, long userId) {
+    FileSchema file = new FileSchema(path);
+    return CompletableFuture.supplyAsync(
+            () -> dbRead(transaction -> file.prefetch(directoryLayer, transaction, offset, size, userId)),
+            READAHEAD_EXECUTOR);
+  }
+
 }
@@ -1,21 +1,46 @@
 package foundationdb_fslayer.fdb.object;
 
+import com.apple.foundationdb.MutationType;
 import com.apple.foundationdb.ReadTransaction;
 import com.apple.foundationdb.Transaction;
 import com.apple.foundationdb.directory.DirectoryLayer;
 import com.apple.foundationdb.directory.DirectorySubspace;
+import com.apple.foundationdb.directory.NoSuchDirectoryException;
 import com.apple.foundationdb.tuple.Tuple;
+import foundationdb_fslayer.Util;
+import foundationdb_fslayer.cache.FsCacheSingleton;
+import foundationdb_fslayer.cache.SubspaceCache;
+import foundationdb_fslayer.cache.VersionWatcher;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.UnaryOperator;
 
 abstract public class AbstractSchema {
+    /** Key of the record holding a node's type, mode, owner, mtime and chunk size */
+    public static final String INODE = "INODE";
+
     protected abstract String getPath();
 
     protected abstract DirectorySubspace getMetadataSpace(DirectoryLayer directoryLayer, ReadTransaction rt);
 
+    /** The path of the subspace getMetadataSpace opens */
+    protected abstract List<String> getMetadataPath();
+
+    /** The subspace holding this node's INODE record */
+    protected abstract DirectorySubspace getNodeSpace(DirectoryLayer directoryLayer, ReadTransaction rt);
+
+    /** Loads attributes stored with one key per field, as nodes were before INODE records */
+    protected abstract Attr loadLegacyMetadata(DirectoryLayer directoryLayer, ReadTransaction rt);
+
+    /** Removes the one key per field attributes once the given attributes are moved into the INODE record */
+    protected abstract void clearLegacyMetadata(DirectoryLayer directoryLayer, Transaction tr, Attr legacy);
+
     protected abstract String getVersionKey();
 
+    public abstract Attr loadMetadata(DirectoryLayer directoryLayer, ReadTransaction rt);
+
     /**
      * Increments the read version of the directory above this file or directory
      * Called on create / delete to update cached list of children
@@ -33,22 +58,192 @@ abstract public class AbstractSchema {
         new DirectorySchema(parentPath).incrementVersion(dir, tr);
     }
 
+    /**
+     * Reads this node's INODE record, or returns null if it does not have one yet
+     */
+    public Attr loadRecord(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        try {
+            byte[] record = rt.get(getNodeSpace(directoryLayer, rt).pack(INODE)).get();
+            return record == null ? null : Attr.fromRecord(record);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads this node's attributes and writes them back after applying the given update.
+     * Nodes still using one key per field are migrated to an INODE record on the way.
+     */
+    public boolean updateRecord(DirectoryLayer directoryLayer, Transaction tr, UnaryOperator<Attr> update) {
+        try {
+            Attr attr = loadRecord(directoryLayer, tr);
+            if (attr == null) {
+                attr = migrateLegacyMetadata(directoryLayer, tr);
+            }
+            tr.set(getNodeSpace(directoryLayer, tr).pack(INODE), update.apply(attr).toRecord());
+            incrementVersion(directoryLayer, tr);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to update attributes of " + getPath());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Moves a node's one key per field attributes into an INODE record.
+     * The attributes themselves do not change, so the version is left alone and cached copies stay valid.
+     * Returns the migrated attributes.
+     */
+    public Attr migrateLegacyMetadata(DirectoryLayer directoryLayer, Transaction tr) {
+        Attr attr = loadLegacyMetadata(directoryLayer, tr);
+        tr.set(getNodeSpace(directoryLayer, tr).pack(INODE), attr.toRecord());
+        clearLegacyMetadata(directoryLayer, tr, attr);
+        return attr;
+    }
+
+    /**
+     * Reads the attributes of the node at the given path with point reads of its INODE record, and of the size
+     * and pending write keys next to it, issued together. The rest of its subspace, such as an inline file's data,
+     * is never read.
+     * Returns a NOT_FOUND Attr if nothing is at the path, or null if the node has no INODE record yet.
+     */
+    public static Attr readNode(DirectoryLayer directoryLayer, ReadTransaction rt, String path) {
+        return readNodeAsync(directoryLayer, rt, path).join();
+    }
+
+    /**
+     * Like readNode, but never blocks, so can run in an asynchronous transaction
+     */
+    public static CompletableFuture<Attr> readNodeAsync(DirectoryLayer directoryLayer, ReadTransaction rt, String path) {
+        return SubspaceCache.open(directoryLayer, rt, Util.parsePath(path))
+                .thenCompose(nodeSpace -> {
+                    CompletableFuture<byte[]> record = rt.get(nodeSpace.pack(INODE));
+                    CompletableFuture<byte[]> size = rt.get(nodeSpace.pack(FileSchema.Metadata.SIZE));
+                    CompletableFuture<byte[]> pending = rt.get(nodeSpace.pack(FileSchema.Metadata.PENDING));
+                    return CompletableFuture.allOf(record, size, pending)
+                            .thenApply(done -> parseNode(record.join(), size.join(), pending.join()))
+                            .exceptionally(e -> null);
+                })
+                // Only a path known not to exist is reported as not found, since that may be cached.
+                // Other errors fall back to the slow path, which checks what kind of node the path is.
+                .exceptionally(e -> (e instanceof CompletionException ? e.getCause() : e) instanceof NoSuchDirectoryException
+                        ? new Attr().setObjectType(ObjectType.NOT_FOUND)
+                        : null);
+    }
+
+    private static Attr parseNode(byte[] record, byte[] size, byte[] pending) {
+        if (record == null) {
+            return null;
+        }
+        Attr attr = Attr.fromRecord(record);
+        if (attr.getObjectType() != ObjectType.FILE) {
+            return attr;
+        }
+        // A file's record is only complete once its size has been recorded
+        if (size == null) {
+            return null;
+        }
+        return attr.setSize(Util.decodeLittleEndian(size))
+                .setPendingWrite(pending == null ? null : FileSchema.PendingWrite.fromValue(pending));
+    }
+
+    /**
+     * Returns the prefix the DirectoryLayer allocated for this node's metadata.
+     * Prefixes are never reused and do not change when a node is renamed, so this identifies the node itself
+     * rather than whatever is currently at its path. Returns null if the node does not exist.
+     */
+    public byte[] getNodeKey(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        try {
+            return getMetadataSpace(directoryLayer, rt).getKey();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether this path can be taken as still leading to the node with the given key without reading anything,
+     * because the SubspaceCache trusts the path to its metadata
+     */
+    public boolean isPathTrusted(byte[] nodeKey) {
+        return nodeKey != null && SubspaceCache.isTrusted(getMetadataPath(), nodeKey);
+    }
+
+    /**
+     * Renames this node, and everything under it, to the given path.
+     * The DirectoryLayer relinks the node under its new name without moving any of its keys,
+     * so this is a constant number of key updates no matter how large the subtree is.
+     * The parent of the new path must exist, and the new path must not.
+     */
+    public boolean move(DirectoryLayer directoryLayer, Transaction tr, String newPath) {
+        try {
+            directoryLayer.move(tr, Util.parsePath(getPath()), Util.parsePath(newPath)).get();
+            SubspaceCache.invalidate(directoryLayer, tr, getPath());
+            // Both parents' listings have changed
+            incrementParentVersion(directoryLayer, tr);
+            new DirectorySchema(newPath).incrementParentVersion(directoryLayer, tr);
+            // Anything cached under either path now refers to a different node, or none at all
+            FsCacheSingleton.removeTreeFromCache(getPath());
+            FsCacheSingleton.removeTreeFromCache(newPath);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to move " + getPath() + " to " + newPath);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * The key holding this node's version, which is what cached copies of the node are watched on.
+     * Returns null if the node does not exist.
+     */
+    public byte[] getVersionKey(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        try {
+            return getMetadataSpace(directoryLayer, rt).pack(getVersionKey());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the version used to validate cached copies of this node.
+     * This is a snapshot read, so checking a cache never conflicts with the atomic increments of other writers.
+     */
     public long getVersion(DirectoryLayer directoryLayer, ReadTransaction rt) {
         try {
-            return Tuple.fromBytes(rt.get(getMetadataSpace(directoryLayer, rt).pack(getVersionKey())).get())
-                    .getLong(0);
+            byte[] version = rt.snapshot().get(getMetadataSpace(directoryLayer, rt).pack(getVersionKey())).get();
+            return decodeVersion(version);
         } catch (Exception e) {
             return -1;
         }
     }
 
-    public long incrementVersion(DirectoryLayer directoryLayer, Transaction tr) {
-        long currentVersion = getVersion(directoryLayer, tr);
+    /**
+     * Versions are little-endian counters, but nodes created before atomic increments
+     * hold a tuple encoded value until their first increment.
+     */
+    public static long decodeVersion(byte[] version) {
+        return version.length == Long.BYTES
+                ? Util.decodeLittleEndian(version)
+                : Tuple.fromBytes(version).getLong(0);
+    }
+
+    public static byte[] initialVersion() {
+        return Util.encodeLittleEndian(0);
+    }
+
+    /**
+     * Increments the version with an atomic add, which adds no read conflict range,
+     * so concurrent writers to the same node or directory do not retry on each other.
+     */
+    public boolean incrementVersion(DirectoryLayer directoryLayer, Transaction tr) {
         try {
-            tr.set(getMetadataSpace(directoryLayer, tr).pack(getVersionKey()), Tuple.from(currentVersion + 1).pack());
-            return currentVersion + 1;
+            byte[] versionKey = getMetadataSpace(directoryLayer, tr).pack(getVersionKey());
+            tr.mutate(MutationType.ADD, versionKey, Util.encodeLittleEndian(1));
+            VersionWatcher.written(versionKey);
+            return true;
         } catch (Exception e) {
-            return -1;
+            return false;
         }
     }
 }
@@ -1,11 +1,19 @@
 package foundationdb_fslayer.fdb.object;
 
+import com.apple.foundationdb.tuple.Tuple;
+
 public class Attr {
     private ObjectType objectType;
     private Long timestamp;
     private Long mode;
     private Long uid;
     private Long gid;
+    private Integer chunkSize;
+    private Long size;
+    private ChunkCodec codec;
+    private Boolean deduplicated;
+    private Integer inlineLimit;
+    private FileSchema.PendingWrite pendingWrite;
 
     public Attr setObjectType(ObjectType objectType){
         this.objectType = objectType;
@@ -51,4 +59,124 @@ public class Attr {
         this.uid = uid;
         return this;
     }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public Attr setSize(Long size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * For files, the size of each data chunk in bytes.
+     * For directories, the chunk size given to new children, or null if none is set.
+     */
+    public Integer getChunkSize() {
+        return chunkSize;
+    }
+
+    public Attr setChunkSize(Integer chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * For files, how their chunks are encoded, or null for files created before codecs were recorded.
+     */
+    public ChunkCodec getCodec() {
+        return codec;
+    }
+
+    public Attr setCodec(ChunkCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * For files, whether their chunks are kept in the shared ChunkStore, with only hashes in the file itself.
+     * Null for files created before this was recorded, which keep their own chunks.
+     */
+    public Boolean getDeduplicated() {
+        return deduplicated;
+    }
+
+    public Attr setDeduplicated(Boolean deduplicated) {
+        this.deduplicated = deduplicated;
+        return this;
+    }
+
+    /**
+     * For files stored inline, how large their data can grow before it is moved into chunks.
+     * Null for files stored in chunks.
+     */
+    public Integer getInlineLimit() {
+        return inlineLimit;
+    }
+
+    public Attr setInlineLimit(Integer inlineLimit) {
+        this.inlineLimit = inlineLimit;
+        return this;
+    }
+
+    /**
+     * For files, a staged write that is committed but still being moved from its stage into the file's chunks,
+     * or null if there is none. Kept in its own key, like the size.
+     */
+    public FileSchema.PendingWrite getPendingWrite() {
+        return pendingWrite;
+    }
+
+    public Attr setPendingWrite(FileSchema.PendingWrite pendingWrite) {
+        this.pendingWrite = pendingWrite;
+        return this;
+    }
+
+    /**
+     * Packs the attributes kept in a node's INODE record into one tuple encoded value.
+     * Size and version are kept in their own keys, so writers can update them with atomic mutations.
+     */
+    public byte[] toRecord() {
+        return Tuple.from(
+                objectType.name(),
+                mode,
+                uid,
+                gid,
+                timestamp,
+                chunkSize == null ? null : chunkSize.longValue(),
+                codec == null ? null : codec.name(),
+                deduplicated,
+                inlineLimit == null ? null : inlineLimit.longValue()).pack();
+    }
+
+    public static Attr fromRecord(byte[] record) {
+        Tuple tuple = Tuple.fromBytes(record);
+        Attr attr = new Attr()
+                .setObjectType(ObjectType.valueOf(tuple.getString(0)))
+                .setUid(getNullableLong(tuple, 2))
+                .setGid(getNullableLong(tuple, 3));
+        Long mode = getNullableLong(tuple, 1);
+        if (mode != null) {
+            attr.setMode(mode);
+        }
+        Long timestamp = getNullableLong(tuple, 4);
+        if (timestamp != null) {
+            attr.setTimestamp(timestamp);
+        }
+        Long chunkSize = getNullableLong(tuple, 5);
+        // Older records end before the fields added since
+        Long inlineLimit = tuple.size() > 8 ? getNullableLong(tuple, 8) : null;
+        String codec = tuple.size() > 6 ? tuple.getString(6) : null;
+        return attr
+                .setChunkSize(chunkSize == null ? null : chunkSize.intValue())
+                .setCodec(codec == null ? null : ChunkCodec.valueOf(codec))
+                .setDeduplicated(tuple.size() > 7 ? (Boolean) tuple.get(7) : null)
+                .setInlineLimit(inlineLimit == null ? null : inlineLimit.intValue());
+    }
+
+    private static Long getNullableLong(Tuple tuple, int index) {
+        Object value = tuple.get(index);
+        return value == null ? null : ((Number) value).longValue();
+    }
 }
@@ -0,0 +1,75 @@
+package foundationdb_fslayer.fdb.object;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How a file's chunks are encoded before they are stored.
+ * The codec is chosen when the file is created and kept in its INODE record.
+ */
+public enum ChunkCodec {
+    /** Chunks are stored as they are, as every file was before codecs were recorded */
+    NONE,
+    /**
+     * Chunks are stored with a one byte header saying whether the rest is deflated,
+     * so chunks that do not get smaller are kept raw.
+     */
+    DEFLATE;
+
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+
+    public byte[] encode(byte[] chunk) {
+        if (this == NONE || chunk.length == 0) {
+            return chunk;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(chunk);
+        deflater.finish();
+        // Anything that would not fit in the raw chunk's space is incompressible
+        byte[] encoded = new byte[chunk.length + 1];
+        int length = deflater.deflate(encoded, 1, chunk.length - 1);
+        boolean compressed = deflater.finished();
+        deflater.end();
+
+        if (compressed) {
+            encoded[0] = DEFLATED;
+            return Arrays.copyOf(encoded, length + 1);
+        }
+        encoded[0] = RAW;
+        System.arraycopy(chunk, 0, encoded, 1, chunk.length);
+        return encoded;
+    }
+
+    public byte[] decode(byte[] stored) {
+        if (this == NONE || stored.length == 0) {
+            return stored;
+        }
+        if (stored[0] == RAW) {
+            return Arrays.copyOfRange(stored, 1, stored.length);
+        }
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(stored, 1, stored.length - 1);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(stored.length * 4);
+        byte[] buffer = new byte[8 * 1024];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Chunk ended before it was fully inflated");
+                }
+                chunk.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Chunk is not valid deflate data", e);
+        } finally {
+            inflater.end();
+        }
+        return chunk.toByteArray();
+    }
+}
@@ -0,0 +1,192 @@
+package foundationdb_fslayer.fdb.object;
+
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.ReadTransaction;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.directory.DirectoryLayer;
+import com.apple.foundationdb.directory.DirectorySubspace;
+import com.apple.foundationdb.tuple.Tuple;
+import foundationdb_fslayer.Util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stores the chunks of deduplicated files once per distinct content, keyed by the SHA-256 hash of
+ * the chunk as stored. Deduplicated files keep the hash of each chunk in their CHUNKS subspace instead
+ * of its data.
+ *
+ * Each hash has a DATA key with the chunk, a LENGTH key with its length, and a REFS key counting the file
+ * chunks pointing to it. References are added with atomic adds, so writers storing the same content do not
+ * conflict. Releasing the last reference clears the chunk.
+ *
+ * Two counters, kept up to date with atomic adds as references come and go, hold the bytes file chunks
+ * refer to (logical) and the bytes actually stored (physical), so usage is read without scanning the store.
+ * Chunks stored before the counters existed are not counted in them.
+ */
+public class ChunkStore {
+    private static final List<String> STORE_PATH = Arrays.asList(".", "CHUNK_STORE");
+    private static final String DATA = "DATA";
+    private static final String REFS = "REFS";
+    private static final String LENGTH = "LENGTH";
+    private static final Tuple LOGICAL_BYTES = Tuple.from("USAGE", "LOGICAL");
+    private static final Tuple PHYSICAL_BYTES = Tuple.from("USAGE", "PHYSICAL");
+
+    private static DirectorySubspace storeSpace;
+
+    /**
+     * Stores a chunk if it is not stored already, and adds a reference to it.
+     * Returns the hash to keep in place of the chunk.
+     */
+    public static byte[] put(DirectoryLayer directoryLayer, Transaction tr, byte[] storedChunk) throws Exception {
+        byte[] hash = hash(storedChunk);
+        DirectorySubspace store = getStoreSpace(directoryLayer, tr);
+        byte[] dataKey = store.pack(Tuple.from(hash, DATA));
+        byte[] refsKey = store.pack(Tuple.from(hash, REFS));
+
+        byte[] refs = tr.snapshot().get(refsKey).get();
+        if (refs != null && Util.decodeLittleEndian(refs) > 0) {
+            // Already stored, so only a reference is added. Conflict with anything clearing the
+            // chunk in the meantime, but not with other writers adding references to it.
+            tr.addReadConflictKey(dataKey);
+        } else {
+            // Conflict with another writer storing it first, so its bytes are only counted as stored once
+            tr.addReadConflictKey(refsKey);
+            tr.set(dataKey, storedChunk);
+            tr.set(store.pack(Tuple.from(hash, LENGTH)), Util.encodeLittleEndian(storedChunk.length));
+            tr.mutate(MutationType.ADD, store.pack(PHYSICAL_BYTES), Util.encodeLittleEndian(storedChunk.length));
+        }
+        tr.mutate(MutationType.ADD, refsKey, Util.encodeLittleEndian(1));
+        tr.mutate(MutationType.ADD, store.pack(LOGICAL_BYTES), Util.encodeLittleEndian(storedChunk.length));
+        return hash;
+    }
+
+    /**
+     * Adds a reference to a chunk that is already stored, for when a hash is copied
+     */
+    public static void retain(DirectoryLayer directoryLayer, Transaction tr, byte[] hash) throws Exception {
+        DirectorySubspace store = getStoreSpace(directoryLayer, tr);
+        // Conflict with anything clearing the chunk before we commit
+        tr.addReadConflictKey(store.pack(Tuple.from(hash, DATA)));
+        tr.mutate(MutationType.ADD, store.pack(Tuple.from(hash, REFS)), Util.encodeLittleEndian(1));
+        tr.mutate(MutationType.ADD, store.pack(LOGICAL_BYTES), Util.encodeLittleEndian(getLength(tr, store, hash).get()));
+    }
+
+    /**
+     * Removes a reference to the chunk with the given hash, clearing it once nothing refers to it.
+     */
+    public static void release(DirectoryLayer directoryLayer, Transaction tr, byte[] hash) throws Exception {
+        releaseAll(directoryLayer, tr, Collections.singletonList(hash));
+    }
+
+    /**
+     * Removes a reference for each of the given hashes, which may repeat, reading all their counts at once.
+     */
+    public static void releaseAll(DirectoryLayer directoryLayer, Transaction tr, List<byte[]> hashes) throws Exception {
+        DirectorySubspace store = getStoreSpace(directoryLayer, tr);
+        List<CompletableFuture<byte[]>> refs = new ArrayList<>();
+        List<CompletableFuture<Long>> lengths = new ArrayList<>();
+        for (byte[] hash : hashes) {
+            byte[] refsKey = store.pack(Tuple.from(hash, REFS));
+            tr.mutate(MutationType.ADD, refsKey, Util.encodeLittleEndian(-1));
+            // Reading the count back conflicts with writers adding a reference before we commit.
+            // Each read sees the references removed before it, so a repeated hash is only cleared once.
+            refs.add(tr.get(refsKey));
+            lengths.add(getLength(tr, store, hash));
+        }
+
+        long logicalBytes = 0;
+        long physicalBytes = 0;
+        for (int i = 0; i < hashes.size(); ++i) {
+            byte[] count = refs.get(i).get();
+            long length = lengths.get(i).get();
+            logicalBytes += length;
+            if (count == null || Util.decodeLittleEndian(count) <= 0) {
+                byte[] hash = hashes.get(i);
+                tr.clear(store.pack(Tuple.from(hash, REFS)));
+                tr.clear(store.pack(Tuple.from(hash, DATA)));
+                tr.clear(store.pack(Tuple.from(hash, LENGTH)));
+                physicalBytes += length;
+            }
+        }
+        tr.mutate(MutationType.ADD, store.pack(LOGICAL_BYTES), Util.encodeLittleEndian(-logicalBytes));
+        tr.mutate(MutationType.ADD, store.pack(PHYSICAL_BYTES), Util.encodeLittleEndian(-physicalBytes));
+    }
+
+    /**
+     * Loads the chunks with the given hashes, in order, reading them all at once.
+     * Chunks that are missing are returned as empty arrays.
+     */
+    public static List<byte[]> get(DirectoryLayer directoryLayer, ReadTransaction rt, List<byte[]> hashes) throws Exception {
+        DirectorySubspace store = getStoreSpace(directoryLayer, rt);
+        List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+        for (byte[] hash : hashes) {
+            // Files keep an empty value for chunks that have no data
+            reads.add(hash.length == 0
+                    ? CompletableFuture.completedFuture(hash)
+                    : rt.get(store.pack(Tuple.from(hash, DATA))));
+        }
+
+        List<byte[]> chunks = new ArrayList<>();
+        for (CompletableFuture<byte[]> read : reads) {
+            byte[] chunk = read.get();
+            chunks.add(chunk == null ? new byte[0] : chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the bytes file chunks refer to (logical) and the bytes actually stored (physical)
+     */
+    public static long[] getUsage(DirectoryLayer directoryLayer, ReadTransaction rt) throws Exception {
+        DirectorySubspace store = getStoreSpace(directoryLayer, rt);
+        // Snapshot reads, so reporting usage never conflicts with writers
+        CompletableFuture<byte[]> logical = rt.snapshot().get(store.pack(LOGICAL_BYTES));
+        CompletableFuture<byte[]> physical = rt.snapshot().get(store.pack(PHYSICAL_BYTES));
+        return new long[] {decodeCounter(logical.get()), decodeCounter(physical.get())};
+    }
+
+    /**
+     * Loads the length of a stored chunk, from the chunk itself if it was stored before lengths were kept.
+     * A snapshot read, since lengths never change while the chunk is stored.
+     */
+    private static CompletableFuture<Long> getLength(ReadTransaction rt, DirectorySubspace store, byte[] hash) {
+        return rt.snapshot().get(store.pack(Tuple.from(hash, LENGTH))).thenCompose(length -> length != null
+                ? CompletableFuture.completedFuture(Util.decodeLittleEndian(length))
+                : rt.snapshot().get(store.pack(Tuple.from(hash, DATA)))
+                        .thenApply(chunk -> chunk == null ? 0L : (long) chunk.length));
+    }
+
+    /** Counters start out unset */
+    private static long decodeCounter(byte[] counter) {
+        return counter == null ? 0 : Util.decodeLittleEndian(counter);
+    }
+
+    public static byte[] hash(byte[] storedChunk) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(storedChunk);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Creates the store's subspace, if it does not exist yet
+     */
+    public static void initIfNeeded(DirectoryLayer directoryLayer, Transaction tr) throws Exception {
+        directoryLayer.createOrOpen(tr, STORE_PATH).get();
+    }
+
+    private static DirectorySubspace getStoreSpace(DirectoryLayer directoryLayer, ReadTransaction rt) throws Exception {
+        // The store is created along with the root and never moved, so it is resolved only once
+        if (storeSpace == null) {
+            storeSpace = directoryLayer.open(rt, STORE_PATH).get();
+        }
+        return storeSpace;
+    }
+}
@@ -9,6 +9,7 @@ import com.apple.foundationdb.tuple.Tuple;
 import foundationdb_fslayer.Util;
 import foundationdb_fslayer.cache.DirectoryCacheEntry;
 import foundationdb_fslayer.cache.FsCacheSingleton;
+import foundationdb_fslayer.cache.SubspaceCache;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -23,8 +24,10 @@ public class DirectorySchema extends AbstractSchema{
     public static class Metadata {
         public final static String META_ROOT = ".";
         public final static String VERSION = "VERSION";
+        // Keys replaced by the INODE record, still read from directories that have not been migrated
         public final static String UID = "UID";
         public final static String MODE = "MODE";
+        public final static String CHUNK_SIZE = "CHUNK_SIZE";
     }
 
     public DirectorySchema(String path){
@@ -34,15 +37,34 @@ public class DirectorySchema extends AbstractSchema{
         metadataPath.add(Metadata.META_ROOT);
     }
 
+    @Override
     public Attr loadMetadata(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        try {
+            byte[] record = rt.snapshot().get(getNodeSpace(directoryLayer, rt).pack(INODE)).get();
+            if (record != null) {
+                return Attr.fromRecord(record);
+            }
+        } catch (Exception ignored) {}
+
+        // Directories created before INODE records existed keep one key per attribute
+        return loadLegacyMetadata(directoryLayer, rt);
+    }
+
+    @Override
+    protected Attr loadLegacyMetadata(DirectoryLayer directoryLayer, ReadTransaction rt) {
         Attr attr =  new Attr().setObjectType(ObjectType.DIRECTORY);
 
         try {
             DirectorySubspace metaSpace = getMetadataSpace(directoryLayer, rt);
-            List<KeyValue> metadata = rt.getRange(metaSpace.range()).asList().get();
+            // Snapshot read, since the VERSION key in this range is updated atomically by writers
+            List<KeyValue> metadata = rt.snapshot().getRange(metaSpace.range()).asList().get();
 
             for (KeyValue kv : metadata) {
                 String key = metaSpace.unpack(kv.getKey()).getString(0);
+                // Only the attribute keys are tuple encoded
+                if (!key.equals(Metadata.UID) && !key.equals(Metadata.MODE) && !key.equals(Metadata.CHUNK_SIZE)) {
+                    continue;
+                }
                 Tuple value = Tuple.fromBytes(kv.getValue());
                 switch (key) {
                     case Metadata.UID:
@@ -51,6 +73,9 @@ public class DirectorySchema extends AbstractSchema{
                     case Metadata.MODE:
                         attr = attr.setMode(value.getLong(0));
                         break;
+                    case Metadata.CHUNK_SIZE:
+                        attr = attr.setChunkSize((int) value.getLong(0));
+                        break;
                     default:
                         break;
                 }
@@ -60,34 +85,76 @@ public class DirectorySchema extends AbstractSchema{
         return attr;
     }
 
+    @Override
+    protected void clearLegacyMetadata(DirectoryLayer directoryLayer, Transaction tr, Attr legacy) {
+        DirectorySubspace metaSpace = getMetadataSpace(directoryLayer, tr);
+        tr.clear(metaSpace.pack(Metadata.UID));
+        tr.clear(metaSpace.pack(Metadata.MODE));
+        tr.clear(metaSpace.pack(Metadata.CHUNK_SIZE));
+    }
+
     @Override
     protected String getPath() {
         return rawPath;
     }
 
+    @Override
+    protected List<String> getMetadataPath() {
+        return metadataPath;
+    }
+
     @Override
     protected DirectorySubspace getMetadataSpace(DirectoryLayer directoryLayer, ReadTransaction rt) {
         try {
-            return directoryLayer.open(rt, metadataPath).get();
+            return SubspaceCache.open(directoryLayer, rt, metadataPath).get();
         } catch (Exception e) {
             throw new IllegalStateException("Ahhhh");
         }
     }
 
+    /**
+     * A directory's record is kept in its own subspace, so it can be read without knowing the path is a directory.
+     * The root's own subspace is the whole database, so its record is kept with its metadata instead.
+     */
+    @Override
+    protected DirectorySubspace getNodeSpace(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        if (paths.isEmpty()) {
+            return getMetadataSpace(directoryLayer, rt);
+        }
+        try {
+            return SubspaceCache.open(directoryLayer, rt, paths).get();
+        } catch (Exception e) {
+            throw new IllegalStateException("Directory " + rawPath + " does not exist");
+        }
+    }
+
     @Override
     protected String getVersionKey() {
         return Metadata.VERSION;
     }
 
+    // Name the directory was moved to in the trash by the last call to delete, if it was
+    private String trashedName;
+
     /**
      *  Attempts to delete this directory from the database.
+     *  Deduplicated files under it may hold more chunks than one transaction can release, so a directory with
+     *  anything under it is only moved into the trash, like a deduplicated file, named by getTrashedName.
      *  Will return false on failure.
      */
     public boolean delete(DirectoryLayer dir, Transaction transaction) {
+        trashedName = null;
         try {
-            transaction.clear(getMetadataSpace(dir, transaction).range());
-            dir.removeIfExists(transaction, metadataPath).get();
-            dir.removeIfExists(transaction, paths).get();
+            boolean isEmpty = dir.list(transaction, paths).get().stream().allMatch(Metadata.META_ROOT::equals);
+            if (isEmpty) {
+                transaction.clear(getMetadataSpace(dir, transaction).range());
+                SubspaceCache.invalidate(dir, transaction, rawPath);
+                dir.removeIfExists(transaction, metadataPath).get();
+                dir.removeIfExists(transaction, paths).get();
+            } else {
+                SubspaceCache.invalidate(dir, transaction, rawPath);
+                trashedName = FileSchema.moveToTrash(dir, transaction, paths);
+            }
             incrementParentVersion(dir, transaction);
             return true;
         } catch (Exception e) {
@@ -95,32 +162,48 @@ public class DirectorySchema extends AbstractSchema{
         }
     }
 
+    /**
+     * Name the last successful delete moved the directory to in the trash, or null if it deleted it outright
+     */
+    public String getTrashedName() {
+        return trashedName;
+    }
+
     public boolean setMode(DirectoryLayer directoryLayer, Transaction tr, long mode) {
-        try {
-            DirectorySubspace metaSpace = getMetadataSpace(directoryLayer, tr);
-            tr.set(metaSpace.pack(Metadata.MODE), Tuple.from(mode).pack());
-            incrementVersion(directoryLayer, tr);
-            return true;
-        } catch (Exception e) {
+        return updateRecord(directoryLayer, tr, attr -> attr.setMode(mode));
+    }
+
+    /**
+     * Set the chunk size given to files created in this directory
+     * Returns false if fails
+     */
+    public boolean setChunkSize(DirectoryLayer directoryLayer, Transaction tr, int chunkSize) {
+        if (!FileSchema.isValidChunkSize(chunkSize)) {
             return false;
         }
+
+        return updateRecord(directoryLayer, tr, attr -> attr.setChunkSize(chunkSize));
     }
 
     /**
      * Creates this directory in the database.
      * Will return the subspace created, or null if failure occurs.
      * Will silently succeed if the directory already exists.
+     * A null chunk size leaves the directory without a chunk size policy.
      */
-    public DirectorySubspace create(DirectoryLayer dir, Transaction transaction, long mode, long userId) {
+    public DirectorySubspace create(DirectoryLayer dir, Transaction transaction, long mode, long userId, Integer chunkSize) {
         try {
             // Create this directory
             DirectorySubspace subspace =  dir.createOrOpen(transaction, paths).get();
             // Initialize the metadata space
-            DirectorySubspace metaSpace = initMetadata(dir, transaction);
-            // Set the directory's owner
-            transaction.set(metaSpace.pack(Metadata.UID), Tuple.from(userId).pack());
-            // Set the directory's permissions
-            transaction.set(metaSpace.pack(Metadata.MODE), Tuple.from(mode).pack());
+            initMetadata(dir, transaction);
+            // Record the directory's owner, permissions, and the chunk size for files created inside it
+            Attr attr = new Attr()
+                    .setObjectType(ObjectType.DIRECTORY)
+                    .setMode(mode)
+                    .setUid(userId)
+                    .setChunkSize(chunkSize);
+            transaction.set(subspace.pack(INODE), attr.toRecord());
             // Invalidate the cache of the parent directory contents
             incrementParentVersion(dir, transaction);
             return subspace;
@@ -134,7 +217,7 @@ public class DirectorySchema extends AbstractSchema{
             // Create internal metadata subspace
             DirectorySubspace metaSpace = dir.createOrOpen(transaction, metadataPath).get();
             // Initialize the directory's write version
-            transaction.set(metaSpace.pack(Metadata.VERSION), Tuple.from(0).pack());
+            transaction.set(metaSpace.pack(Metadata.VERSION), initialVersion());
             return metaSpace;
         } catch (Exception e) {
             System.err.println("Failed to initialize metadata for directory " + rawPath);
@@ -1,18 +1,29 @@
 package foundationdb_fslayer.fdb.object;
 
 import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
 import com.apple.foundationdb.ReadTransaction;
 import com.apple.foundationdb.Transaction;
 import com.apple.foundationdb.directory.DirectoryLayer;
 import com.apple.foundationdb.directory.DirectorySubspace;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
 import com.apple.foundationdb.tuple.Tuple;
+import com.apple.foundationdb.tuple.Versionstamp;
 import foundationdb_fslayer.Util;
-import foundationdb_fslayer.cache.FileCacheEntry;
+import foundationdb_fslayer.cache.AttrCacheEntry;
+import foundationdb_fslayer.cache.CacheMetrics;
+import foundationdb_fslayer.cache.ChunkCacheEntry;
 import foundationdb_fslayer.cache.FsCacheSingleton;
+import foundationdb_fslayer.cache.SubspaceCache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 import static foundationdb_fslayer.Util.parsePath;
@@ -22,36 +33,71 @@ public class FileSchema extends AbstractSchema {
     private final List<String> path;
     private final List<String> chunksPath;
 
-    public final static int CHUNK_SIZE_BYTES = 1000;
+    /** Chunk size of files written before chunk sizes were stored per file */
+    public final static int LEGACY_CHUNK_SIZE_BYTES = 1000;
+    public final static int DEFAULT_CHUNK_SIZE_BYTES = 64 * 1024;
+    /** Kept below FoundationDB's 100,000 byte value limit */
+    public final static int MAX_CHUNK_SIZE_BYTES = 96 * 1024;
+
+    public static boolean isValidChunkSize(long chunkSize) {
+        return chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE_BYTES;
+    }
 
     @Override
     protected String getPath() {
         return rawPath;
     }
 
+    @Override
+    protected List<String> getMetadataPath() {
+        return path;
+    }
+
     @Override
     protected DirectorySubspace getMetadataSpace(DirectoryLayer directoryLayer, ReadTransaction rt) {
         try {
-            return directoryLayer.open(rt, path).get();
+            return SubspaceCache.open(directoryLayer, rt, path).get();
         } catch (Exception e) {
             throw new IllegalStateException("this dir dont exist");
         }
     }
 
+    @Override
+    protected DirectorySubspace getNodeSpace(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        return getMetadataSpace(directoryLayer, rt);
+    }
+
     @Override
     protected String getVersionKey() {
         return Metadata.VERSION;
     }
 
-    private static class Metadata {
+    static class Metadata {
         final static String CHUNKS = "CHUNKS";
+        // Keys replaced by the INODE record, still read from files that have not been migrated
         final static String TIMESTAMP = "TIMESTAMP";
         final static String MODE = "MODE";
         final static String USER = "UID";
         final static String GROUP = "GID";
         final static String VERSION = "VERSION";
+        final static String CHUNK_SIZE = "CHUNK_SIZE";
+        // Little-endian so it can be updated with atomic mutations
+        final static String SIZE = "SIZE";
+        // Data of files stored inline, which have no CHUNKS subspace
+        final static String INLINE = "INLINE";
+        // Prefixes the versionstamp of each chunk's last change, in the CHUNKS subspace. Tuple strings sort before
+        // the integer chunk keys, so these are never part of a range of chunks.
+        final static String STAMP = "STAMP";
+        // The staged write committed but not yet moved into CHUNKS: its stage, and the chunks left to move
+        final static String PENDING = "PENDING";
+        // When a stage was last written to, in milliseconds, in the stage itself
+        final static String TOUCHED = "TOUCHED";
     }
 
+    /** The one key per field attributes of files written before INODE records */
+    private static final List<String> LEGACY_KEYS = Arrays.asList(
+            Metadata.TIMESTAMP, Metadata.MODE, Metadata.USER, Metadata.GROUP, Metadata.CHUNK_SIZE);
+
     public FileSchema(String path) {
         this.rawPath = path;
         this.path = parsePath(path);
@@ -60,19 +106,36 @@ public class FileSchema extends AbstractSchema {
     }
 
     /**
-     * Create the subspace to store this file
+     * Create the subspace to store this file, with the owner, chunk size and chunk storage given in attributes
      * Returns false on error
      */
-    public boolean create(DirectoryLayer dir, Transaction transaction) {
+    public boolean create(DirectoryLayer dir, Transaction transaction, Attr attributes) {
+        if (!isValidChunkSize(attributes.getChunkSize())) {
+            System.err.println("Invalid chunk size " + attributes.getChunkSize());
+            return false;
+        }
+
         try {
             // Create the subspace
             DirectorySubspace fileSpace = dir.create(transaction, path).get();
-            // Create the subspace to store data chunks
-            DirectorySubspace chunkSpace = dir.create(transaction, chunksPath).get();
-            // Initialize empty first chunk
-            transaction.set(chunkSpace.pack(0), new byte[0]);
+            // Small files keep their data inline until they grow, so only need chunks after that
+            if (!isInline(attributes)) {
+                // Create the subspace to store data chunks
+                DirectorySubspace chunkSpace = dir.create(transaction, chunksPath).get();
+                // Initialize empty first chunk
+                transaction.set(chunkSpace.pack(0), new byte[0]);
+            }
             // Initialize Version counter
-            transaction.set(fileSpace.pack(Metadata.VERSION), Tuple.from(0L).pack());
+            transaction.set(fileSpace.pack(Metadata.VERSION), initialVersion());
+            // Record the file's attributes, including how its data is split and stored
+            Attr attr = attributes
+                    .setObjectType(ObjectType.FILE)
+                    .setMode(0)
+                    .setTimestamp(0)
+                    .setGid(0L);
+            transaction.set(fileSpace.pack(INODE), attr.toRecord());
+            // Initialize the file's length
+            transaction.set(fileSpace.pack(Metadata.SIZE), Util.encodeLittleEndian(0));
             // Invalidate the cache of the parent dir
             incrementParentVersion(dir, transaction);;
 
@@ -86,55 +149,201 @@ public class FileSchema extends AbstractSchema {
 
     /**
      * Reads the current value of the file.
+     * Ranges of the file that were never written, or that are past the end of a chunk, read as zeros.
      * Will return null on error.
      */
     public byte[] read(DirectoryLayer dir, ReadTransaction transaction, long offset, long size, long userId) {
-        if (!readPermitted(dir, transaction, userId)) {
+        try {
+            // Reads trust a watch on the file's version, or the staleness window, so a read served from the cache reads nothing
+            AttrCacheEntry.State trusted = getTrustedAttrs();
+            AttrCacheEntry.State attrs = trusted != null ? trusted : getAttrCache(dir, transaction);
+            if (!readPermitted(attrs.getMetadata(), userId)) {
+                return null;
+            }
+            List<byte[]> chunks = trusted != null ? getCachedChunks(dir, transaction, attrs, offset, size) : null;
+            if (chunks == null) {
+                // Chunks read from the database must be read with the attributes they were written under,
+                // which trusted ones may not be, so those are checked first
+                if (trusted != null) {
+                    attrs = getAttrCache(dir, transaction);
+                    if (!readPermitted(attrs.getMetadata(), userId)) {
+                        return null;
+                    }
+                }
+                chunks = loadCommittedChunks(dir, transaction, attrs, offset, size);
+            }
+            return copyRange(attrs.getMetadata(), chunks, offset, size);
+        } catch (Exception e) {
             return null;
         }
+    }
 
+    /**
+     * Like read, but chunks that are not cached are loaded in runs of about PARALLEL_READ_BYTES, all at once
+     * on the given executor, rather than one run after another.
+     * Completes with null on error.
+     */
+    public CompletableFuture<byte[]> readAsync(DirectoryLayer dir,
+                                               ReadTransaction transaction,
+                                               long offset,
+                                               long size,
+                                               long userId,
+                                               Executor executor) {
         try {
-            // Open the file's chunk space
-            DirectorySubspace chunkSpace = dir.open(transaction, chunksPath).get();
+            AttrCacheEntry.State trusted = getTrustedAttrs();
+            if (trusted != null) {
+                if (!readPermitted(trusted.getMetadata(), userId)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                List<byte[]> cached = getCachedChunks(dir, transaction, trusted, offset, size);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(copyRange(trusted.getMetadata(), cached, offset, size));
+                }
+            }
+            // Which chunks to load depends on the attributes, so they are read first
+            AttrCacheEntry.State attrs = getAttrCache(dir, transaction);
+            Attr metadata = attrs.getMetadata();
+            if (!readPermitted(metadata, userId)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            long length = getReadLength(metadata, offset, size);
+            if (length == 0) {
+                return CompletableFuture.completedFuture(new byte[0]);
+            }
 
-            // Grab all the relevant chunks of the file
-            int startChunk = (int) (offset / CHUNK_SIZE_BYTES);
-            int endChunk = (int) ((offset + size) / CHUNK_SIZE_BYTES);
-            List<byte[]> chunks = getCache(dir, transaction).getData(startChunk, endChunk);
+            int chunkSize = metadata.getChunkSize();
+            int startChunk = (int) (offset / chunkSize);
+            int endChunk = (int) ((offset + length - 1) / chunkSize);
+            int runChunks = Math.max(1, PARALLEL_READ_BYTES / chunkSize);
+            List<CompletableFuture<List<byte[]>>> runs = new ArrayList<>();
+            for (int start = startChunk; start <= endChunk; start += runChunks) {
+                int runStart = start;
+                int runEnd = Math.min(start + runChunks - 1, endChunk);
+                runs.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return loadCommittedChunks(dir, transaction, metadata, attrs.getVersion(), runStart, runEnd);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+            return CompletableFuture.allOf(runs.toArray(new CompletableFuture[0]))
+                    .thenApply(done -> {
+                        List<byte[]> chunks = new ArrayList<>();
+                        for (CompletableFuture<List<byte[]>> run : runs) {
+                            chunks.addAll(run.join());
+                        }
+                        return copyRange(metadata, chunks, offset, size);
+                    })
+                    .exceptionally(e -> null);
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
 
-            // Initialize buffer to store file
-            byte[] data = new byte[(int) Math.min(this.size(dir, transaction) - offset, size)];
-            int dataIndex = 0;
+    /**
+     * Copies size bytes at offset out of the chunks covering them, starting with the one holding offset.
+     * Never reads past the end of the file. Holes and the parts of chunks past what is stored read as zeros.
+     */
+    private static byte[] copyRange(Attr metadata, List<byte[]> chunks, long offset, long size) {
+        int chunkSize = metadata.getChunkSize();
+        long length = getReadLength(metadata, offset, size);
+        int startChunk = (int) (offset / chunkSize);
 
-            for (int i = 0; i < chunks.size(); ++i) {
-                int copyIndex = 0;
-                if (i == 0) {
-                    // If this is the first chunk, make sure we start at the offset
-                    copyIndex += offset % CHUNK_SIZE_BYTES;
-                }
-                byte[] chunkData = chunks.get(i);
-                // Copy the data from the chunk into the return buffer
-                for (; copyIndex < chunkData.length && dataIndex < data.length; copyIndex++){
-                    data[dataIndex++] = chunkData[copyIndex];
-                }
+        // Initialize buffer to store the requested range, which leaves holes zeroed
+        byte[] data = new byte[(int) length];
+
+        for (int i = 0; i < chunks.size(); ++i) {
+            long chunkStart = (long) (startChunk + i) * chunkSize;
+            // Find the part of this chunk that was requested, and how much of that is stored
+            int from = (int) (Math.max(offset, chunkStart) - chunkStart);
+            int to = (int) Math.min(offset + length - chunkStart, chunks.get(i).length);
+            if (from < to) {
+                System.arraycopy(chunks.get(i), from, data, (int) (chunkStart + from - offset), to - from);
             }
+        }
+        return data;
+    }
 
-            return data;
+    /**
+     * Loads the chunks covering the given range into the chunk cache, ahead of reads expected to need them.
+     * Returns how many bytes of chunks were loaded for the range, 0 if they were all found cached without reading.
+     * Returns -1 on error, or if the user may not read the file.
+     */
+    public long prefetch(DirectoryLayer dir, ReadTransaction transaction, long offset, long size, long userId) {
+        try {
+            AttrCacheEntry.State trusted = getTrustedAttrs();
+            AttrCacheEntry.State attrs = trusted != null ? trusted : getAttrCache(dir, transaction);
+            if (!readPermitted(attrs.getMetadata(), userId)) {
+                return -1;
+            }
+            if (trusted != null && getCachedChunks(dir, transaction, attrs, offset, size) != null) {
+                return 0;
+            }
+            if (trusted != null) {
+                attrs = getAttrCache(dir, transaction);
+            }
+            long loaded = 0;
+            for (byte[] chunk : loadCommittedChunks(dir, transaction, attrs, offset, size)) {
+                loaded += chunk.length;
+            }
+            return loaded;
         } catch (Exception e) {
-            return null;
+            return -1;
         }
     }
 
-    /** Calculate total size of the file */
-    public int size(DirectoryLayer dir, ReadTransaction transaction) {
+    /** Bytes of the file within size bytes at offset */
+    private static long getReadLength(Attr metadata, long offset, long size) {
+        return Math.max(Math.min(size, metadata.getSize() - offset), 0);
+    }
+
+    /** Get the total size of the file */
+    public long size(DirectoryLayer dir, ReadTransaction transaction) {
         try {
-            List<byte[]> chunks = getCache(dir, transaction).getData();
-            return ((chunks.size() - 1) * CHUNK_SIZE_BYTES) + (chunks.get(chunks.size() - 1).length);
+            return getAttrCache(dir, transaction, true).getMetadata().getSize();
         } catch (Exception e) {
             return -1;
         }
     }
 
+    /**
+     * Calculate the size of a file written before sizes were recorded from its chunk list.
+     * Those files were never sparse, so every chunk but the last is full.
+     */
+    private long legacySize(DirectoryLayer dir, ReadTransaction transaction, int chunkSize) {
+        List<byte[]> chunks;
+        try {
+            Attr legacy = new Attr();
+            chunks = loadChunks(dir, transaction, legacy, getChunkSpace(dir, transaction, legacy), 0, null);
+        } catch (Exception e) {
+            return 0;
+        }
+        if (chunks.isEmpty()) {
+            return 0;
+        }
+        return ((long) (chunks.size() - 1) * chunkSize) + (chunks.get(chunks.size() - 1).length);
+    }
+
+    /**
+     * Load a single chunk to be modified, from the chunk cache if it has not changed since it was cached.
+     * Either way the chunk's key is added to the read conflict range, so writers only conflict when they
+     * modify the same chunk.
+     * The cache must not be used once this transaction has stamped the chunk, since stamps cannot be read back.
+     */
+    private byte[] readChunk(DirectoryLayer dir,
+                             ReadTransaction transaction,
+                             Attr metadata,
+                             DirectorySubspace chunkSpace,
+                             int chunkNum,
+                             boolean useCache) throws Exception {
+        transaction.addReadConflictKeyIfNotSnapshot(getChunkKey(dir, transaction, chunkSpace, chunkNum));
+        List<byte[]> chunk = useCache
+                ? loadChunksCached(dir, transaction, metadata, -1, chunkSpace, chunkNum, chunkNum)
+                : loadChunks(dir, transaction, metadata, chunkSpace, chunkNum, chunkNum);
+        return chunk.isEmpty() ? new byte[0] : chunk.get(0);
+    }
+
     /**
      * Appends the given bytes to the file.
      * Returns false if an error occurs.
@@ -145,83 +354,569 @@ public class FileSchema extends AbstractSchema {
         }
 
         try {
-            DirectorySubspace chunkSpace = dir.open(transaction, chunksPath).get();
+            // Issued first, so it is read alongside everything else
+            CompletableFuture<byte[]> recordedSize = transaction.snapshot().get(getMetadataSpace(dir, transaction).pack(Metadata.SIZE));
+            Attr metadata = getMetadata(dir, transaction);
+            // How the data is stored, which changes if this write moves an inline file into chunks
+            Attr storage = metadata;
+            DirectorySubspace chunkSpace;
+            if (isInline(metadata) && offset + data.length > metadata.getInlineLimit()) {
+                storage = loadRecord(dir, transaction).setInlineLimit(null);
+                chunkSpace = promote(dir, transaction, storage);
+            } else {
+                chunkSpace = getChunkSpace(dir, transaction, metadata);
+            }
 
             // Grab existing chunks we will be writing to
-            int startChunk = (int) (offset / CHUNK_SIZE_BYTES);
-            int endChunk = (int) ((offset + data.length) / CHUNK_SIZE_BYTES);
-            // Grab the chunks we are not completely overwriting
-            byte[] startChunkData = getCache(dir, transaction).getData(startChunk);
-            byte[] endChunkData = getCache(dir, transaction).getData(endChunk);
-
-            // Keep track of what has been written
-            int bytesWritten = 0;
+            int chunkSize = metadata.getChunkSize();
+            int startChunk = (int) (offset / chunkSize);
+            int endChunk = (int) ((offset + data.length) / chunkSize);
+            // Grab the chunks we are not completely overwriting. A file promoted out of inline storage
+            // by this transaction has just stamped its first chunk, and has nothing cached anyway.
+            boolean useCache = storage == metadata;
+            byte[] startChunkData = readChunk(dir, transaction, storage, chunkSpace, startChunk, useCache);
+            byte[] endChunkData = endChunk == startChunk
+                    ? startChunkData
+                    : readChunk(dir, transaction, storage, chunkSpace, endChunk, useCache);
 
-            // I'm sorry for how gross this loop is.
             for (int chunkNum = startChunk; chunkNum <= endChunk; ++chunkNum) {
-                // This chunk will either be completely filled or be given
-                // the rest of the data
-                int newBufferSize = (int) Math.min(data.length - bytesWritten
-                        + (chunkNum == startChunk? offset : 0),
-                        CHUNK_SIZE_BYTES);
-                // If this is the last chunk, make room in the buffer
-                // for the data in this chunk that comes after the new data
-                if (chunkNum == endChunk) {
-                    newBufferSize = Math.max(endChunkData.length, newBufferSize);
+                // Find the part of this chunk covered by the new data
+                long chunkStart = (long) chunkNum * chunkSize;
+                int from = (int) (Math.max(offset, chunkStart) - chunkStart);
+                int to = (int) (Math.min(offset + data.length, chunkStart + chunkSize) - chunkStart);
+                if (from >= to) {
+                    continue;
                 }
-                // Initialize the buffer we will write to the database
-                byte[] newBuffer = new byte[newBufferSize];
-                // This index keeps track of where we are writing in the buffer
-                int newBufferIndex = 0;
-                // If this is the start chunk, we need to copy the old data up to where the offset actually
-                // begins
-                if (chunkNum == startChunk) {
-                    // Copy data from the start buffer up to the offset
-                    for (; newBufferIndex < Math.min(offset % CHUNK_SIZE_BYTES, startChunkData.length); ++newBufferIndex){
-                        newBuffer[newBufferIndex] = startChunkData[newBufferIndex];
-                    }
-                }
-                // Copy this chunk's fill of the new data
-                for(; newBufferIndex < newBufferSize; ++newBufferIndex) {
-                    newBuffer[newBufferIndex] = data[bytesWritten++];
+                // Only the first and last chunks can keep existing data around the new data
+                byte[] existingData = chunkNum == startChunk
+                        ? startChunkData
+                        : chunkNum == endChunk ? endChunkData : new byte[0];
+                byte[] newBuffer = new byte[Math.max(existingData.length, to)];
+                System.arraycopy(existingData, 0, newBuffer, 0, existingData.length);
+                System.arraycopy(data, (int) (chunkStart + from - offset), newBuffer, from, to - from);
+                // Write the chunk we just made to the database
+                storeChunk(dir, transaction, storage, chunkSpace, chunkNum, newBuffer);
+            }
+
+            // Grow the recorded size if we wrote past the end
+            growSize(dir, transaction, metadata, recordedSize, offset + data.length);
+
+            this.incrementVersion(dir, transaction);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Grows the recorded size to at least end, without conflicting with other writers.
+     * The size is only MAXed with end itself, since the cached size may predate a truncate it would undo.
+     * Files written before sizes were stored, with no SIZE key yet, have the size calculated for them
+     * recorded once, conflicting with anything else recording one first.
+     */
+    private void growSize(DirectoryLayer dir,
+                          Transaction transaction,
+                          Attr metadata,
+                          CompletableFuture<byte[]> recordedSize,
+                          long end) throws Exception {
+        byte[] sizeKey = getMetadataSpace(dir, transaction).pack(Metadata.SIZE);
+        if (recordedSize.get() == null) {
+            transaction.addReadConflictKey(sizeKey);
+            end = Math.max(end, metadata.getSize());
+        }
+        transaction.mutate(MutationType.MAX, sizeKey, Util.encodeLittleEndian(end));
+    }
+
+    /**
+     * Appends the given bytes to the end of the file (O_APPEND), reading only the file's size and last chunk,
+     * so appending costs the same however large the file is.
+     * Returns false if an error occurs.
+     */
+    public boolean append(DirectoryLayer dir, Transaction transaction, byte[] data, long userId) {
+        if (!modifyPermitted(dir, transaction, userId)) {
+            return false;
+        }
+
+        try {
+            Attr metadata = getMetadata(dir, transaction);
+            DirectorySubspace fileSpace = getMetadataSpace(dir, transaction);
+            // Appends take their offset from the size, so conflict with anything else changing it.
+            // Every write also updates the size, so the last chunk itself can be read without conflicts.
+            byte[] rawSize = transaction.get(fileSpace.pack(Metadata.SIZE)).get();
+            if (rawSize == null) {
+                // Files written before sizes were stored record theirs on their next write
+                return write(dir, transaction, data, metadata.getSize(), userId);
+            }
+            long size = Util.decodeLittleEndian(rawSize);
+            // Chunks that are compressed, deduplicated or inline cannot be appended to as they are stored
+            if (isInline(metadata) || isDeduplicated(metadata) || getCodec(metadata) != ChunkCodec.NONE) {
+                return write(dir, transaction, data, size, userId);
+            }
+
+            DirectorySubspace chunkSpace = SubspaceCache.open(dir, transaction, chunksPath).get();
+            int chunkSize = metadata.getChunkSize();
+            int lastChunk = (int) (size / chunkSize);
+            int lastChunkLength = (int) (size % chunkSize);
+            byte[] lastChunkData = transaction.snapshot().get(chunkSpace.pack(lastChunk)).get();
+            int storedLength = lastChunkData == null ? 0 : lastChunkData.length;
+
+            int dataIndex = 0;
+            int room = chunkSize - lastChunkLength;
+            if (data.length <= room && storedLength == lastChunkLength) {
+                // The common case only sends the new bytes
+                transaction.mutate(MutationType.APPEND_IF_FITS, chunkSpace.pack(lastChunk), data);
+                stampChunk(transaction, chunkSpace, lastChunk);
+                dataIndex = data.length;
+            } else if (room > 0) {
+                // Fill the rest of the last chunk, after any hole left at the end of the file
+                byte[] newChunk = new byte[lastChunkLength + Math.min(room, data.length)];
+                System.arraycopy(lastChunkData == null ? new byte[0] : lastChunkData, 0, newChunk, 0, Math.min(storedLength, lastChunkLength));
+                System.arraycopy(data, 0, newChunk, lastChunkLength, newChunk.length - lastChunkLength);
+                transaction.set(chunkSpace.pack(lastChunk), newChunk);
+                stampChunk(transaction, chunkSpace, lastChunk);
+                dataIndex = newChunk.length - lastChunkLength;
+            }
+            // Anything left starts new chunks, which have nothing to keep
+            for (int chunkNum = lastChunk + 1; dataIndex < data.length; ++chunkNum) {
+                int length = Math.min(chunkSize, data.length - dataIndex);
+                transaction.set(chunkSpace.pack(chunkNum), Arrays.copyOfRange(data, dataIndex, dataIndex + length));
+                stampChunk(transaction, chunkSpace, chunkNum);
+                dataIndex += length;
+            }
+
+            transaction.mutate(MutationType.ADD, fileSpace.pack(Metadata.SIZE), Util.encodeLittleEndian(data.length));
+            this.incrementVersion(dir, transaction);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Moves an inline file's data into chunks, recording the given attributes for it.
+     * Returns the new chunk subspace, which is created in this transaction, so must not be opened through
+     * the SubspaceCache until it commits.
+     */
+    private DirectorySubspace promote(DirectoryLayer directoryLayer, Transaction tr, Attr promoted) throws Exception {
+        DirectorySubspace fileSpace = getMetadataSpace(directoryLayer, tr);
+        byte[] inlineData = tr.get(fileSpace.pack(Metadata.INLINE)).get();
+
+        DirectorySubspace chunkSpace = directoryLayer.create(tr, chunksPath).get();
+        storeChunk(directoryLayer, tr, promoted, chunkSpace, 0, inlineData == null ? new byte[0] : inlineData);
+        tr.clear(fileSpace.pack(Metadata.INLINE));
+        tr.set(fileSpace.pack(INODE), promoted.toRecord());
+        return chunkSpace;
+    }
+
+    /**
+     * A write too large for one transaction, staged across several.
+     * Only the chunks it writes are built, in a staging subspace under the file which readers never look at
+     * until the write commits. Committing only records the stage as the file's pending write, so it costs the
+     * same however large the write is, and the staged chunks are then moved into the file's CHUNKS a batch at a
+     * time, with readers taking the chunks not moved yet from the stage, so they see all of the write or none of it.
+     */
+    public static class StagedWrite {
+        private final String stageName;
+        private final DirectorySubspace stagingSpace;
+        private final long version;
+        // The file's attributes when the write was staged, to read the data the write only partly covers
+        private final Attr original;
+        // The file's record, with how its chunks are stored once the write is committed
+        private final Attr storage;
+        private final long offset;
+        private final int length;
+
+        private StagedWrite(String stageName,
+                            DirectorySubspace stagingSpace,
+                            long version,
+                            Attr original,
+                            Attr storage,
+                            long offset,
+                            int length) {
+            this.stageName = stageName;
+            this.stagingSpace = stagingSpace;
+            this.version = version;
+            this.original = original;
+            this.storage = storage;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getFirstChunk() {
+            return (int) (offset / storage.getChunkSize());
+        }
+
+        public int getLastChunk() {
+            return (int) ((offset + length - 1) / storage.getChunkSize());
+        }
+
+        /** Enough chunks to keep each staging transaction to a few megabytes */
+        public int getChunksPerBatch() {
+            return Math.max(1, STAGED_BATCH_BYTES / storage.getChunkSize());
+        }
+
+        public String getStageName() {
+            return stageName;
+        }
+    }
+
+    /**
+     * The staged write a file's readers take chunks nextChunk to lastChunk, inclusive, from, while they are
+     * moved into its CHUNKS. Kept in the file's PENDING key.
+     */
+    public static class PendingWrite {
+        private final String stage;
+        private final int nextChunk;
+        private final int lastChunk;
+
+        private PendingWrite(String stage, int nextChunk, int lastChunk) {
+            this.stage = stage;
+            this.nextChunk = nextChunk;
+            this.lastChunk = lastChunk;
+        }
+
+        private byte[] toValue() {
+            return Tuple.from(stage, nextChunk, lastChunk).pack();
+        }
+
+        static PendingWrite fromValue(byte[] value) {
+            Tuple tuple = Tuple.fromBytes(value);
+            return new PendingWrite(tuple.getString(0), (int) tuple.getLong(1), (int) tuple.getLong(2));
+        }
+    }
+
+    /**
+     * Writes larger than this are staged across several transactions.
+     * FUSE hands writes over in pieces of at most a megabyte, so only callers of FoundationLayer.write
+     * with larger buffers ever stage them.
+     */
+    public final static int STAGED_WRITE_BYTES = 4 * 1024 * 1024;
+    /** Kept well below FoundationDB's 10MB transaction limit */
+    private final static int STAGED_BATCH_BYTES = 2 * 1024 * 1024;
+    /** Bytes of chunks each of readAsync's parallel loads covers, so reads of several default sized chunks load each at once */
+    private final static int PARALLEL_READ_BYTES = 64 * 1024;
+    private final static String STAGING_PREFIX = "STAGING-";
+    // Left under files by staged writes from before stages were moved in by key
+    private final static String REPLACED_PREFIX = "REPLACED-";
+
+    /**
+     * Starts staging a write of length bytes at offset, creating the subspace its chunks are staged in.
+     * Returns null if the write is not permitted, another staged write is still being moved into place,
+     * or an error occurs.
+     */
+    public StagedWrite beginStagedWrite(DirectoryLayer directoryLayer, Transaction tr, long offset, int length, long userId) {
+        if (!modifyPermitted(directoryLayer, tr, userId) || hasPendingWrite(directoryLayer, tr)) {
+            return null;
+        }
+
+        try {
+            Attr metadata = getMetadata(directoryLayer, tr);
+            Attr record = Optional.ofNullable(loadRecord(directoryLayer, tr))
+                    .orElseGet(() -> migrateLegacyMetadata(directoryLayer, tr));
+            String stageName = STAGING_PREFIX + UUID.randomUUID();
+            DirectorySubspace stagingSpace = directoryLayer.create(tr, getStagePath(stageName)).get();
+            touchStage(tr, stagingSpace);
+
+            return new StagedWrite(stageName,
+                    stagingSpace,
+                    getVersion(directoryLayer, tr),
+                    metadata,
+                    // Staged files always end up in chunks
+                    record.setInlineLimit(null),
+                    offset,
+                    length);
+        } catch (Exception e) {
+            System.err.println("Failed to start staged write to " + rawPath);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the staged write's data into chunks startChunk to endChunk, inclusive, of the stage.
+     * The file's data around the write in the first and last chunks is read as a snapshot, since the
+     * write is abandoned if the file changes before it is committed.
+     * Returns false if an error occurs.
+     */
+    public boolean writeToStage(DirectoryLayer directoryLayer,
+                                Transaction tr,
+                                StagedWrite staged,
+                                byte[] data,
+                                int startChunk,
+                                int endChunk) {
+        try {
+            // Conflicts with the file being deleted or the stage discarded meanwhile, but not with other batches
+            if (!directoryLayer.exists(tr, getStagePath(staged.stageName)).get()) {
+                System.err.println("Abandoning staged write to " + rawPath + ", whose stage is gone");
+                return false;
+            }
+            int chunkSize = staged.storage.getChunkSize();
+            for (int chunkNum = startChunk; chunkNum <= endChunk; ++chunkNum) {
+                // Find the part of this chunk covered by the new data
+                long chunkStart = (long) chunkNum * chunkSize;
+                int from = (int) (Math.max(staged.offset, chunkStart) - chunkStart);
+                int to = (int) (Math.min(staged.offset + data.length, chunkStart + chunkSize) - chunkStart);
+                // Only the first and last chunks can keep existing data around the new data
+                byte[] existingData = new byte[0];
+                if (from > 0 || to < chunkSize) {
+                    List<byte[]> chunk = loadChunks(directoryLayer,
+                            tr.snapshot(),
+                            staged.original,
+                            getChunkSpace(directoryLayer, tr.snapshot(), staged.original),
+                            chunkNum,
+                            chunkNum);
+                    existingData = chunk.isEmpty() ? existingData : chunk.get(0);
                 }
-                // If this is the last chunk we write to, don't forget to copy the existing data
-                // at the end of the chunk, if any
-                if (chunkNum == endChunk){
-                    // Fill the buffer with the remaining data from end chunk, if any
-                    for (; newBufferIndex < endChunkData.length; newBufferIndex++){
-                        newBuffer[newBufferIndex] = endChunkData[newBufferIndex];
+                byte[] newBuffer = new byte[Math.max(existingData.length, to)];
+                System.arraycopy(existingData, 0, newBuffer, 0, existingData.length);
+                System.arraycopy(data, (int) (chunkStart + from - staged.offset), newBuffer, from, to - from);
+                storeChunk(directoryLayer, tr, staged.storage, staged.stagingSpace, chunkNum, newBuffer);
+            }
+            touchStage(tr, staged.stagingSpace);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to stage chunks " + startChunk + "-" + endChunk + " of " + rawPath);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Commits the staged write by recording its stage as the file's pending write, which readers see at once.
+     * The staged chunks are then moved into place with rollForward.
+     * Returns false, leaving the file as it is, if it has changed since the write was staged.
+     */
+    public boolean commitStagedWrite(DirectoryLayer directoryLayer, Transaction tr, StagedWrite staged) {
+        try {
+            DirectorySubspace fileSpace = getMetadataSpace(directoryLayer, tr);
+            // Conflict with anything changing the file until we commit
+            tr.addReadConflictKey(fileSpace.pack(Metadata.VERSION));
+            if (getVersion(directoryLayer, tr) != staged.version) {
+                System.err.println("Abandoning staged write to " + rawPath + ", which changed while it was staged");
+                return false;
+            }
+            // Reading it conflicts with a sweep discarding the stage meanwhile
+            if (tr.get(staged.stagingSpace.pack(Metadata.TOUCHED)).get() == null) {
+                System.err.println("Abandoning staged write to " + rawPath + ", whose stage was discarded");
+                return false;
+            }
+
+            if (isInline(staged.original)) {
+                promote(directoryLayer, tr, staged.storage);
+            }
+            tr.set(fileSpace.pack(Metadata.PENDING),
+                    new PendingWrite(staged.stageName, staged.getFirstChunk(), staged.getLastChunk()).toValue());
+            tr.mutate(MutationType.MAX, fileSpace.pack(Metadata.SIZE), Util.encodeLittleEndian(staged.offset + staged.length));
+            this.incrementVersion(directoryLayer, tr);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to commit staged write to " + rawPath);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Moves a batch of the file's pending write's chunks from its stage into CHUNKS, replacing the chunks there,
+     * and removes the stage once they have all been moved. Deduplicated chunks keep the references they took
+     * when staged, and the ones they replace are released.
+     * Returns true once nothing is left to move, or if an error occurs.
+     */
+    public boolean rollForward(DirectoryLayer directoryLayer, Transaction tr) {
+        try {
+            DirectorySubspace fileSpace = getMetadataSpace(directoryLayer, tr);
+            byte[] pendingKey = fileSpace.pack(Metadata.PENDING);
+            // Conflicts with anyone else moving the same chunks
+            byte[] rawPending = tr.get(pendingKey).get();
+            if (rawPending == null) {
+                return true;
+            }
+            PendingWrite pending = PendingWrite.fromValue(rawPending);
+            Attr metadata = getMetadata(directoryLayer, tr);
+            DirectorySubspace chunkSpace = SubspaceCache.open(directoryLayer, tr, chunksPath).get();
+            List<String> stagePath = getStagePath(pending.stage);
+            DirectorySubspace stageSpace = directoryLayer.open(tr, stagePath).get();
+
+            // Each chunk is read and written once, like a batch of a staged write
+            int limit = Math.max(1, STAGED_BATCH_BYTES / metadata.getChunkSize());
+            int batchEnd = Math.min(pending.nextChunk + limit - 1, pending.lastChunk);
+            List<KeyValue> stagedChunks = tr.getRange(stageSpace.pack(pending.nextChunk), stageSpace.pack(batchEnd + 1))
+                    .asList().get();
+            if (isDeduplicated(metadata)) {
+                ChunkStore.releaseAll(directoryLayer, tr, tr.getRange(chunkSpace.pack(pending.nextChunk), chunkSpace.pack(batchEnd + 1))
+                        .asList().get().stream()
+                        .map(KeyValue::getValue)
+                        .filter(hash -> hash.length > 0)
+                        .collect(Collectors.toList()));
+            }
+            tr.clear(chunkSpace.pack(pending.nextChunk), chunkSpace.pack(batchEnd + 1));
+            tr.clear(getStampKey(chunkSpace, pending.nextChunk), getStampKey(chunkSpace, batchEnd + 1));
+            for (KeyValue kv : stagedChunks) {
+                int chunkNum = (int) stageSpace.unpack(kv.getKey()).getLong(0);
+                tr.set(chunkSpace.pack(chunkNum), kv.getValue());
+                stampChunk(tr, chunkSpace, chunkNum);
+            }
+
+            boolean done = batchEnd == pending.lastChunk;
+            if (done) {
+                // Stage names are never reused, so caches of the stage's path need not be invalidated
+                tr.clear(pendingKey);
+                directoryLayer.removeIfExists(tr, stagePath).get();
+            } else {
+                tr.clear(stageSpace.pack(pending.nextChunk), stageSpace.pack(batchEnd + 1));
+                tr.set(pendingKey, new PendingWrite(pending.stage, batchEnd + 1, pending.lastChunk).toValue());
+            }
+            // Readers must see where each chunk now is
+            this.incrementVersion(directoryLayer, tr);
+            return done;
+        } catch (Exception e) {
+            System.err.println("Failed to move staged chunks into " + rawPath);
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+    /**
+     * Whether a committed staged write still has chunks to be moved into place, which must happen before the
+     * file's chunks are modified. Conflicts with a staged write committing meanwhile.
+     */
+    public boolean hasPendingWrite(DirectoryLayer directoryLayer, Transaction tr) {
+        try {
+            tr.addReadConflictKey(getMetadataSpace(directoryLayer, tr).pack(Metadata.PENDING));
+            return getMetadata(directoryLayer, tr).getPendingWrite() != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Names the stages under the file that no write will commit: those not written to since touchedBefore,
+     * in milliseconds, other than the pending write's, and any left by writes staged before stages were moved
+     * in by key.
+     */
+    public List<String> findAbandonedStages(DirectoryLayer directoryLayer, ReadTransaction rt, long touchedBefore) {
+        List<String> abandoned = new ArrayList<>();
+        try {
+            if (!directoryLayer.exists(rt, path).get()) {
+                return abandoned;
+            }
+            PendingWrite pending = getMetadata(directoryLayer, rt).getPendingWrite();
+            for (String child : directoryLayer.list(rt, path).get()) {
+                if (child.startsWith(REPLACED_PREFIX)) {
+                    abandoned.add(child);
+                } else if (child.startsWith(STAGING_PREFIX) && (pending == null || !pending.stage.equals(child))) {
+                    byte[] touched = rt.snapshot().get(directoryLayer.open(rt, getStagePath(child)).get().pack(Metadata.TOUCHED)).get();
+                    if (touched == null || Util.decodeLittleEndian(touched) < touchedBefore) {
+                        abandoned.add(child);
                     }
                 }
-                // Write the chunk we just made to the database
-                transaction.set(chunkSpace.pack(chunkNum), newBuffer);
             }
+        } catch (Exception e) {
+            System.err.println("Failed to look for abandoned stages under " + rawPath);
+            e.printStackTrace();
+        }
+        return abandoned;
+    }
 
-            this.incrementVersion(dir, transaction);
+    /**
+     * Removes a stage no write will commit, releasing up to limit of its chunks from the ChunkStore at a time
+     * if the file is deduplicated. The stage of the pending write is never removed.
+     * Returns true once it is gone, or if an error occurs.
+     */
+    public boolean discardStage(DirectoryLayer directoryLayer, Transaction tr, String stageName, int limit) {
+        List<String> stagePath = getStagePath(stageName);
+        try {
+            if (!directoryLayer.exists(tr, stagePath).get()) {
+                return true;
+            }
+            // Conflicts with the write committing meanwhile
+            byte[] rawPending = tr.get(getMetadataSpace(directoryLayer, tr).pack(Metadata.PENDING)).get();
+            if (rawPending != null && PendingWrite.fromValue(rawPending).stage.equals(stageName)) {
+                return true;
+            }
+            if (isDeduplicated(getMetadata(directoryLayer, tr)) && releaseChunks(directoryLayer, tr, stagePath, limit)) {
+                return false;
+            }
+            directoryLayer.removeIfExists(tr, stagePath).get();
             return true;
         } catch (Exception e) {
+            System.err.println("Failed to discard " + stagePath);
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+    /**
+     * Releases up to limit of the deduplicated chunks in the subspace at the given path from the ChunkStore,
+     * all their counts read at once, and clears them. Their stamps are left to be removed with the subspace.
+     * Returns whether there were any.
+     */
+    private static boolean releaseChunks(DirectoryLayer directoryLayer, Transaction tr, List<String> chunksPath, int limit) throws Exception {
+        DirectorySubspace chunkSpace = directoryLayer.open(tr, chunksPath).get();
+        List<KeyValue> storedChunks = tr.getRange(chunkSpace.pack(0), chunkSpace.range().end, limit).asList().get();
+        if (storedChunks.isEmpty()) {
             return false;
         }
+        ChunkStore.releaseAll(directoryLayer, tr, storedChunks.stream()
+                .map(KeyValue::getValue)
+                .filter(hash -> hash.length > 0)
+                .collect(Collectors.toList()));
+        tr.clear(chunkSpace.pack(0), ByteArrayUtil.keyAfter(storedChunks.get(storedChunks.size() - 1).getKey()));
+        return true;
+    }
+
+    /** Records that a stage is still being written to, so it is not taken as abandoned */
+    private static void touchStage(Transaction tr, DirectorySubspace stagingSpace) {
+        tr.set(stagingSpace.pack(Metadata.TOUCHED), Util.encodeLittleEndian(System.currentTimeMillis()));
+    }
+
+    private List<String> getStagePath(String stageName) {
+        List<String> stagePath = new ArrayList<>(path);
+        stagePath.add(stageName);
+        return stagePath;
     }
 
+    /**
+     * Deduplicated files, and directories with anything under them, being deleted, moved out of the namespace
+     * until all their chunks are released
+     */
+    private static final List<String> TRASH_PATH = Arrays.asList(".", "TRASH");
+    /** Chunks released from the ChunkStore per transaction, when emptying the trash */
+    public final static int RELEASE_BATCH_CHUNKS = 1000;
+
+    // Name the file was moved to in the trash by the last call to delete, if it was
+    private String trashedName;
+
     /**
      * Clears the data of this file from the database.
+     * Deduplicated files may have more chunks to release than one transaction can, so they are only moved
+     * into the trash, leaving their chunks to be released with releaseTrashed, named by getTrashedName.
      * Returns false if an error occurs
      */
     public boolean delete(DirectoryLayer directoryLayer, Transaction transaction) {
+        trashedName = null;
         try {
-            // Load the chunk space to delete all the chunks
-            DirectorySubspace chunkSpace = directoryLayer.createOrOpen(transaction, chunksPath).get();
-            transaction.clear(chunkSpace.range());
-            // Delete the chunk space itself
-            directoryLayer.removeIfExists(transaction, chunksPath).get();
-            // Load the file space to delete the metadata entries
-            DirectorySubspace fileSpace = directoryLayer.createOrOpen(transaction, path).get();
-            transaction.clear(fileSpace.range());
-            // Delete the file space itself
-            directoryLayer.removeIfExists(transaction, path).get();
-            // Clear the cache for this file
+            // Inline files have no chunks, and their data is cleared with their metadata
+            Attr metadata = getMetadata(directoryLayer, transaction);
+            if (isDeduplicated(metadata) && !isInline(metadata)) {
+                trashedName = moveToTrash(directoryLayer, transaction, path);
+            } else {
+                if (!isInline(metadata)) {
+                    // Load the chunk space to delete all the chunks
+                    DirectorySubspace chunkSpace = directoryLayer.createOrOpen(transaction, chunksPath).get();
+                    clearChunks(directoryLayer, transaction, metadata, chunkSpace, 0, null);
+                    // Delete the chunk space itself
+                    directoryLayer.removeIfExists(transaction, chunksPath).get();
+                }
+                // Load the file space to delete the metadata entries
+                DirectorySubspace fileSpace = directoryLayer.createOrOpen(transaction, path).get();
+                transaction.clear(fileSpace.range());
+                // Delete the file space itself
+                directoryLayer.removeIfExists(transaction, path).get();
+            }
+            // Clear the cache for this file, here and on other clients
             FsCacheSingleton.removeFileFromCache(rawPath);
+            SubspaceCache.invalidate(directoryLayer, transaction, rawPath);
             // Invalidate the cache of the parent dir
             incrementParentVersion(directoryLayer, transaction);;
             return true;
@@ -231,15 +926,131 @@ public class FileSchema extends AbstractSchema {
         }
     }
 
+    /**
+     * Name the last successful delete moved the file to in the trash, or null if it deleted the file outright
+     */
+    public String getTrashedName() {
+        return trashedName;
+    }
+
+    /**
+     * Moves the node at the given path, and everything under it, into the trash, returning the name it is given there
+     */
+    static String moveToTrash(DirectoryLayer directoryLayer, Transaction tr, List<String> nodePath) throws Exception {
+        String name = UUID.randomUUID().toString();
+        directoryLayer.createOrOpen(tr, TRASH_PATH).get();
+        directoryLayer.move(tr, nodePath, getTrashedPath(name)).get();
+        return name;
+    }
+
+    /**
+     * Names of the nodes in the trash, including any left by clients that stopped before emptying it
+     */
+    public static List<String> listTrash(DirectoryLayer directoryLayer, ReadTransaction rt) throws Exception {
+        if (!directoryLayer.exists(rt, TRASH_PATH).get()) {
+            return new ArrayList<>();
+        }
+        return directoryLayer.list(rt, TRASH_PATH).get();
+    }
+
+    /**
+     * Releases up to limit chunks of a node in the trash from the ChunkStore: a deleted file's, from its CHUNKS or
+     * any stage under it, or those of the deduplicated files under a deleted directory. Each file is removed once
+     * none of its chunks are left, and the node once nothing is left under it.
+     * Returns true once it is gone, or if an error occurs.
+     */
+    public static boolean releaseTrashed(DirectoryLayer directoryLayer, Transaction tr, String name, int limit) {
+        List<String> trashedPath = getTrashedPath(name);
+        try {
+            return !directoryLayer.exists(tr, trashedPath).get()
+                    || releaseTree(directoryLayer, tr, trashedPath, limit);
+        } catch (Exception e) {
+            System.err.println("Failed to empty " + trashedPath + " from the trash");
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+    /**
+     * Releases up to limit chunks of the deduplicated files at or under the given path, depth first,
+     * removing each node once everything under it is released. Returns whether the node was removed.
+     */
+    private static boolean releaseTree(DirectoryLayer directoryLayer, Transaction tr, List<String> nodePath, int limit)
+            throws Exception {
+        List<String> children = directoryLayer.list(tr, nodePath).get();
+        // Directories keep their attributes in a child node, files in their own subspace
+        boolean isDirectory = children.contains(DirectorySchema.Metadata.META_ROOT);
+        if (isDirectory || isDeduplicatedNode(directoryLayer, tr, nodePath)) {
+            for (String child : children) {
+                if (child.equals(DirectorySchema.Metadata.META_ROOT)) {
+                    continue;
+                }
+                List<String> childPath = new ArrayList<>(nodePath);
+                childPath.add(child);
+                boolean released = isDirectory
+                        ? releaseTree(directoryLayer, tr, childPath, limit)
+                        : !releaseChunks(directoryLayer, tr, childPath, limit);
+                if (!released) {
+                    return false;
+                }
+            }
+        }
+        // Chunks of files that are not deduplicated are their own, so are removed along with the file
+        directoryLayer.removeIfExists(tr, nodePath).get();
+        return true;
+    }
+
+    /** Whether the file at the given path keeps its chunks in the ChunkStore */
+    private static boolean isDeduplicatedNode(DirectoryLayer directoryLayer, Transaction tr, List<String> filePath)
+            throws Exception {
+        byte[] record = tr.get(directoryLayer.open(tr, filePath).get().pack(INODE)).get();
+        return record != null && Boolean.TRUE.equals(Attr.fromRecord(record).getDeduplicated());
+    }
+
+    private static List<String> getTrashedPath(String name) {
+        List<String> trashedPath = new ArrayList<>(TRASH_PATH);
+        trashedPath.add(name);
+        return trashedPath;
+    }
+
+    @Override
     public Attr loadMetadata(DirectoryLayer directoryLayer, ReadTransaction readTransaction) {
+        try {
+            DirectorySubspace fileSpace = getMetadataSpace(directoryLayer, readTransaction);
+            // Snapshot reads, since the SIZE key next to the record is updated atomically by writers
+            CompletableFuture<byte[]> record = readTransaction.snapshot().get(fileSpace.pack(INODE));
+            CompletableFuture<byte[]> size = readTransaction.snapshot().get(fileSpace.pack(Metadata.SIZE));
+            // Changes with the version, like the record
+            CompletableFuture<byte[]> pending = readTransaction.snapshot().get(fileSpace.pack(Metadata.PENDING));
+            if (record.get() != null && size.get() != null) {
+                return Attr.fromRecord(record.get())
+                        .setSize(Util.decodeLittleEndian(size.get()))
+                        .setPendingWrite(pending.get() == null ? null : PendingWrite.fromValue(pending.get()));
+            }
+        } catch (Exception ignored) {}
+
+        // Files written before INODE records existed keep one key per attribute
+        return loadLegacyMetadata(directoryLayer, readTransaction);
+    }
+
+    @Override
+    protected Attr loadLegacyMetadata(DirectoryLayer directoryLayer, ReadTransaction readTransaction) {
         Attr attr = new Attr().setObjectType(ObjectType.FILE);
 
         try {
-            DirectorySubspace fileSpace = directoryLayer.open(readTransaction, path).get();
-            List<KeyValue> metadata = readTransaction.getRange(fileSpace.range()).asList().get();
+            DirectorySubspace fileSpace = getMetadataSpace(directoryLayer, readTransaction);
+            // Snapshot read, since the VERSION and SIZE keys in this range are updated atomically by writers
+            List<KeyValue> metadata = readTransaction.snapshot().getRange(fileSpace.range()).asList().get();
 
             for (KeyValue kv : metadata) {
                 String key = fileSpace.unpack(kv.getKey()).getString(0);
+                // Only the attribute keys are tuple encoded
+                if (key.equals(Metadata.SIZE)) {
+                    attr.setSize(Util.decodeLittleEndian(kv.getValue()));
+                    continue;
+                } else if (!LEGACY_KEYS.contains(key)) {
+                    continue;
+                }
                 Tuple value = Tuple.fromBytes(kv.getValue());
                 switch (key) {
                     case Metadata.TIMESTAMP:
@@ -254,17 +1065,149 @@ public class FileSchema extends AbstractSchema {
                         break;
                     case Metadata.USER:
                         attr.setUid(value.getLong(0));
+                        break;
+                    case Metadata.CHUNK_SIZE:
+                        attr.setChunkSize((int) value.getLong(0));
+                        break;
                     default:
                         break;
                 }
             }
         } catch (Exception ignored){}
 
+        // Files created before chunk sizes were recorded use the old fixed size
+        if (attr.getChunkSize() == null) {
+            attr.setChunkSize(LEGACY_CHUNK_SIZE_BYTES);
+        }
+        // ...and have their size calculated until their next write records it
+        if (attr.getSize() == null) {
+            attr.setSize(legacySize(directoryLayer, readTransaction, attr.getChunkSize()));
+        }
+
         return attr;
     }
 
+    @Override
+    protected void clearLegacyMetadata(DirectoryLayer directoryLayer, Transaction tr, Attr legacy) {
+        DirectorySubspace fileSpace = getMetadataSpace(directoryLayer, tr);
+        for (String key : LEGACY_KEYS) {
+            tr.clear(fileSpace.pack(key));
+        }
+        // Record the size of files written before sizes were stored, without overwriting a concurrent write's
+        tr.mutate(MutationType.MAX, fileSpace.pack(Metadata.SIZE), Util.encodeLittleEndian(legacy.getSize()));
+    }
+
     public Attr getMetadata(DirectoryLayer directoryLayer, ReadTransaction transaction) {
-        return getCache(directoryLayer, transaction).getMetadata();
+        return getAttrCache(directoryLayer, transaction).getMetadata();
+    }
+
+    private int getChunkSize(DirectoryLayer directoryLayer, ReadTransaction transaction) {
+        return getMetadata(directoryLayer, transaction).getChunkSize();
+    }
+
+    private static ChunkCodec getCodec(Attr metadata) {
+        return Optional.ofNullable(metadata.getCodec()).orElse(ChunkCodec.NONE);
+    }
+
+    private static boolean isDeduplicated(Attr metadata) {
+        return Boolean.TRUE.equals(metadata.getDeduplicated());
+    }
+
+    private static boolean isInline(Attr metadata) {
+        return metadata.getInlineLimit() != null;
+    }
+
+    /**
+     * Opens the subspace holding the file's chunks, or returns null if the file is stored inline
+     */
+    private DirectorySubspace getChunkSpace(DirectoryLayer directoryLayer, ReadTransaction rt, Attr metadata) throws Exception {
+        return isInline(metadata) ? null : SubspaceCache.open(directoryLayer, rt, chunksPath).get();
+    }
+
+    /**
+     * The key a chunk is stored under. Inline files only have a first chunk, stored in their INLINE key.
+     */
+    private byte[] getChunkKey(DirectoryLayer directoryLayer, ReadTransaction rt, DirectorySubspace chunkSpace, int chunkNum) {
+        return chunkSpace == null ? getMetadataSpace(directoryLayer, rt).pack(Metadata.INLINE) : chunkSpace.pack(chunkNum);
+    }
+
+    /**
+     * Encodes and stores a chunk. Deduplicated files store it in the ChunkStore and keep its hash,
+     * releasing the chunk it replaces. Inline files store their data as it is.
+     */
+    private void storeChunk(DirectoryLayer directoryLayer,
+                            Transaction tr,
+                            Attr metadata,
+                            DirectorySubspace chunkSpace,
+                            int chunkNum,
+                            byte[] chunk) throws Exception {
+        if (isInline(metadata)) {
+            tr.set(getChunkKey(directoryLayer, tr, chunkSpace, chunkNum), chunk);
+            return;
+        }
+
+        byte[] storedChunk = getCodec(metadata).encode(chunk);
+        if (!isDeduplicated(metadata)) {
+            tr.set(chunkSpace.pack(chunkNum), storedChunk);
+            stampChunk(tr, chunkSpace, chunkNum);
+            return;
+        }
+
+        byte[] oldHash = tr.get(chunkSpace.pack(chunkNum)).get();
+        if (Arrays.equals(oldHash, ChunkStore.hash(storedChunk))) {
+            return;
+        }
+        if (oldHash != null && oldHash.length > 0) {
+            ChunkStore.release(directoryLayer, tr, oldHash);
+        }
+        tr.set(chunkSpace.pack(chunkNum), ChunkStore.put(directoryLayer, tr, storedChunk));
+        stampChunk(tr, chunkSpace, chunkNum);
+    }
+
+    /**
+     * Records that a chunk changed, with the versionstamp of this transaction, so cached copies of it are
+     * no longer used. Other chunks of the file stay cached.
+     */
+    private static void stampChunk(Transaction tr, DirectorySubspace chunkSpace, int chunkNum) {
+        tr.mutate(MutationType.SET_VERSIONSTAMPED_VALUE,
+                getStampKey(chunkSpace, chunkNum),
+                Tuple.from(Versionstamp.incomplete()).packWithVersionstamp());
+    }
+
+    private static byte[] getStampKey(DirectorySubspace chunkSpace, int chunkNum) {
+        return chunkSpace.pack(Tuple.from(Metadata.STAMP, chunkNum));
+    }
+
+    /**
+     * Clears the chunks from startChunk to endChunk, inclusive, or to the end of the file if endChunk is null.
+     * Chunks are released from the ChunkStore if the file is deduplicated.
+     */
+    private void clearChunks(DirectoryLayer directoryLayer,
+                             Transaction tr,
+                             Attr metadata,
+                             DirectorySubspace chunkSpace,
+                             int startChunk,
+                             Integer endChunk) throws Exception {
+        if (isInline(metadata)) {
+            if (startChunk == 0) {
+                tr.clear(getChunkKey(directoryLayer, tr, chunkSpace, 0));
+            }
+            return;
+        }
+
+        byte[] begin = chunkSpace.pack(startChunk);
+        byte[] end = endChunk == null ? chunkSpace.range().end : chunkSpace.pack(endChunk + 1);
+        // Chunks without a stamp are never taken from the cache
+        tr.clear(getStampKey(chunkSpace, startChunk), endChunk == null
+                ? chunkSpace.range(Tuple.from(Metadata.STAMP)).end
+                : getStampKey(chunkSpace, endChunk + 1));
+        if (isDeduplicated(metadata)) {
+            ChunkStore.releaseAll(directoryLayer, tr, tr.getRange(begin, end).asList().get().stream()
+                    .map(KeyValue::getValue)
+                    .filter(hash -> hash.length > 0)
+                    .collect(Collectors.toList()));
+        }
+        tr.clear(begin, end);
     }
 
     /**
@@ -272,18 +1215,11 @@ public class FileSchema extends AbstractSchema {
      * Returns false if fails
      */
     public boolean setMode(DirectoryLayer directoryLayer, Transaction transaction, long mode, long userId) {
-        if (getCache(directoryLayer, transaction).getMetadata().getUid() != userId) {
+        if (getMetadata(directoryLayer, transaction).getUid() != userId) {
             return false;
         }
 
-        try {
-            DirectorySubspace filespace = directoryLayer.open(transaction, path).get();
-            transaction.set(filespace.pack(Metadata.MODE), Tuple.from(mode).pack());
-            this.incrementVersion(directoryLayer, transaction);
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        return updateRecord(directoryLayer, transaction, attr -> attr.setMode(mode));
     }
 
     /**
@@ -291,14 +1227,8 @@ public class FileSchema extends AbstractSchema {
      * Returns false if fails
      */
     public boolean setTimestamp(DirectoryLayer directoryLayer, Transaction transaction, long unixTimeSeconds) {
-        try {
-            DirectorySubspace fileSpace = directoryLayer.open(transaction, path).get();
-            System.err.println("Setting timestamp to " + unixTimeSeconds);
-            transaction.set(fileSpace.pack(Metadata.TIMESTAMP), Tuple.from(unixTimeSeconds).pack());
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        System.err.println("Setting timestamp to " + unixTimeSeconds);
+        return updateRecord(directoryLayer, transaction, attr -> attr.setTimestamp(unixTimeSeconds));
     }
 
     public boolean truncate(DirectoryLayer directoryLayer, Transaction transaction, long size, long userId) {
@@ -307,61 +1237,92 @@ public class FileSchema extends AbstractSchema {
             return false;
         }
 
-        // Calculate how much we need to delete
-        int currentSize = this.size(directoryLayer, transaction);
-        int bytesToDelete = currentSize - (int) size;
+        // Calculate how much we need to delete. The cached size is validated with a snapshot read,
+        // so conflict on the size key in case a concurrent write grows the file.
+        int chunkSize = getChunkSize(directoryLayer, transaction);
+        long currentSize = this.size(directoryLayer, transaction);
+        transaction.addReadConflictKey(getMetadataSpace(directoryLayer, transaction).pack(Metadata.SIZE));
 
-        // If new size is bigger, ignore
-        if (bytesToDelete < 0) {
-            return true;
+        // Growing the file only moves its end, leaving a hole that reads as zeros
+        if (size > currentSize) {
+            return resize(directoryLayer, transaction, size);
         }
 
         try {
             // Open chunk space
-            DirectorySubspace chunkSpace = directoryLayer.createOrOpen(transaction, chunksPath).get();
+            Attr metadata = getMetadata(directoryLayer, transaction);
+            DirectorySubspace chunkSpace = getChunkSpace(directoryLayer, transaction, metadata);
 
             // Calculate which chunks we need to delete
-            int lastChunk = currentSize / CHUNK_SIZE_BYTES;
-            int newLastChunk = (int) size / CHUNK_SIZE_BYTES;
+            int lastChunk = (int) (currentSize / chunkSize);
+            int newLastChunk = (int) (size / chunkSize);
 
-            if (newLastChunk + 1 < lastChunk) {
+            if (newLastChunk < lastChunk) {
                 // Clear out data at end of file
-                transaction.clear(chunkSpace.pack(newLastChunk + 1), chunkSpace.pack(lastChunk));
+                clearChunks(directoryLayer, transaction, metadata, chunkSpace, newLastChunk + 1, lastChunk);
             }
 
-            // Check how much data of the new last chunk we need to delete
-            currentSize = this.size(directoryLayer, transaction);
-            bytesToDelete = currentSize - (int) size;
+            // Check how much data of the new last chunk we need to keep
+            int newLastChunkLength = (int) (size - (long) newLastChunk * chunkSize);
 
             // Update the last chunk to have data removed
-            if (bytesToDelete > 0) {
-                byte[] chunkData = getCache(directoryLayer, transaction).getData(newLastChunk);
-                byte[] newChunkData = new byte[chunkData.length - bytesToDelete];
+            byte[] chunkData = readChunk(directoryLayer, transaction, metadata, chunkSpace, newLastChunk, true);
+            if (newLastChunkLength < chunkData.length) {
+                byte[] newChunkData = new byte[newLastChunkLength];
                 System.arraycopy(chunkData, 0, newChunkData, 0, newChunkData.length);
-                transaction.set(chunkSpace.pack(newLastChunk), newChunkData);
+                storeChunk(directoryLayer, transaction, metadata, chunkSpace, newLastChunk, newChunkData);
             }
-            this.incrementVersion(directoryLayer, transaction);
             System.out.println("Truncate successful");
-            return true;
+            // Record the new length
+            return resize(directoryLayer, transaction, size);
 
         } catch (Exception e) {
             return false;
         }
     }
 
+    private boolean resize(DirectoryLayer directoryLayer, Transaction transaction, long size) {
+        try {
+            transaction.set(getMetadataSpace(directoryLayer, transaction).pack(Metadata.SIZE), Util.encodeLittleEndian(size));
+            this.incrementVersion(directoryLayer, transaction);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Make sure the file is at least offset + length bytes long (fallocate).
+     * Storage is only used once data is written, so this just records the new size, and the file's
+     * new range reads as zeros until then.
+     * Returns false if fails
+     */
+    public boolean allocate(DirectoryLayer directoryLayer, Transaction transaction, long offset, long length, long userId) {
+        if (!modifyPermitted(directoryLayer, transaction, userId)) {
+            return false;
+        }
 
-    public boolean setOwnership(DirectoryLayer directoryLayer, Transaction tr, long uid, long gid) {
         try {
-            DirectorySubspace fileSpace = directoryLayer.open(tr, path).get();
-            tr.set(fileSpace.pack(Metadata.USER), Tuple.from(uid).pack());
-            tr.set(fileSpace.pack(Metadata.GROUP), Tuple.from(gid).pack());
-            incrementVersion(directoryLayer, tr);
+            // Nothing else is read, so conflict with a delete of the file rather than write under it
+            transaction.addReadConflictKey(getNodeSpace(directoryLayer, transaction).pack(INODE));
+            // Like writes, only ever grow the size, so allocating does not conflict with them
+            growSize(directoryLayer,
+                    transaction,
+                    getMetadata(directoryLayer, transaction),
+                    transaction.snapshot().get(getMetadataSpace(directoryLayer, transaction).pack(Metadata.SIZE)),
+                    offset + length);
+            this.incrementVersion(directoryLayer, transaction);
             return true;
         } catch (Exception e) {
             return false;
         }
     }
 
+
+    public boolean setOwnership(DirectoryLayer directoryLayer, Transaction tr, long uid, long gid) {
+        return updateRecord(directoryLayer, tr, attr -> attr.setUid(uid).setGid(gid));
+    }
+
     public int open(DirectoryLayer directoryLayer, Transaction tr, int flags) {
         return (int) getVersion(directoryLayer, tr);
     }
@@ -370,8 +1331,8 @@ public class FileSchema extends AbstractSchema {
         return checkPermission(directoryLayer, rt, userId, 0200, 0002);
     }
 
-    private boolean readPermitted(DirectoryLayer directoryLayer, ReadTransaction rt, long userId) {
-        return checkPermission(directoryLayer, rt, userId, 0400, 0004);
+    private static boolean readPermitted(Attr metadata, long userId) {
+        return Util.checkPermission(metadata.getMode(), metadata.getUid(), userId, 0400, 0004);
     }
 
     private boolean checkPermission(DirectoryLayer directoryLayer,
@@ -383,57 +1344,273 @@ public class FileSchema extends AbstractSchema {
         return Util.checkPermission(metadata.getMode(), metadata.getUid(), userId, userMask, otherMask);
     }
 
+    /**
+     * Loads every stored chunk of the file, indexed by chunk number.
+     * Holes in sparse files are returned as empty arrays.
+     */
     public List<byte[]> loadChunks(DirectoryLayer directoryLayer, ReadTransaction rt) {
         try {
-            DirectorySubspace chunkSpace = directoryLayer.open(rt, chunksPath).get();
+            Attr metadata = getMetadata(directoryLayer, rt);
+            if (metadata.getPendingWrite() != null) {
+                int chunkSize = metadata.getChunkSize();
+                return loadCommittedChunks(directoryLayer, rt, metadata, -1, 0, (int) ((metadata.getSize() + chunkSize - 1) / chunkSize) - 1);
+            }
+            return loadChunks(directoryLayer, rt, metadata, getChunkSpace(directoryLayer, rt, metadata), 0, null);
+        } catch (Exception e) {
+            return new ArrayList<>();
+        }
+    }
 
-            return rt.getRange(chunkSpace.range())
-                    .asList()
-                    .get()
-                    .stream()
-                    .map(KeyValue::getValue)
-                    .collect(Collectors.toList());
+    /**
+     * Loads only the chunks from startChunk to endChunk, inclusive, with a single bounded range read.
+     * Chunks missing from the database are returned as empty arrays.
+     */
+    public List<byte[]> loadChunks(DirectoryLayer directoryLayer, ReadTransaction rt, int startChunk, int endChunk) {
+        try {
+            Attr metadata = getMetadata(directoryLayer, rt);
+            if (metadata.getPendingWrite() != null) {
+                return loadCommittedChunks(directoryLayer, rt, metadata, -1, startChunk, endChunk);
+            }
+            return loadChunks(directoryLayer, rt, metadata, getChunkSpace(directoryLayer, rt, metadata), startChunk, endChunk);
         } catch (Exception e) {
+            System.err.println("Failed to load chunks " + startChunk + "-" + endChunk + " of " + rawPath);
             return new ArrayList<>();
         }
     }
 
-    private FileCacheEntry getCache(DirectoryLayer directoryLayer, ReadTransaction rt) {
-        ensureCacheEntryPresent(directoryLayer, rt);
+    /**
+     * Loads the chunks from startChunk to endChunk, inclusive, or to the end of the file if endChunk is null.
+     * Inline files have their data returned as their first chunk.
+     */
+    private List<byte[]> loadChunks(DirectoryLayer directoryLayer,
+                                    ReadTransaction rt,
+                                    Attr metadata,
+                                    DirectorySubspace chunkSpace,
+                                    int startChunk,
+                                    Integer endChunk) throws Exception {
+        List<byte[]> chunks = new ArrayList<>();
+        if (isInline(metadata)) {
+            if (startChunk == 0) {
+                byte[] inlineData = rt.get(getChunkKey(directoryLayer, rt, chunkSpace, 0)).get();
+                chunks.add(inlineData == null ? new byte[0] : inlineData);
+            }
+            return chunks;
+        }
+
+        byte[] end = endChunk == null ? chunkSpace.range().end : chunkSpace.pack(endChunk + 1);
+        return fillHoles(directoryLayer,
+                rt,
+                chunkSpace,
+                rt.getRange(chunkSpace.pack(startChunk), end).asList().get(),
+                startChunk,
+                metadata);
+    }
 
-        Optional<FileCacheEntry> cacheEntry = FsCacheSingleton.getFile(rawPath);
-        if (!cacheEntry.isPresent()) {
-            throw new IllegalStateException("Cache empty even after load! " + rawPath);
+    /**
+     * Takes the chunks covering size bytes at offset from the chunk cache, if they are all cached at the version of
+     * the given attributes, reading nothing but what opening the chunk subspace needs. Returns null otherwise,
+     * and for inline files and files with a staged write still being moved into place, which are read from the database.
+     */
+    private List<byte[]> getCachedChunks(DirectoryLayer directoryLayer,
+                                         ReadTransaction rt,
+                                         AttrCacheEntry.State attrs,
+                                         long offset,
+                                         long size) throws Exception {
+        Attr metadata = attrs.getMetadata();
+        long version = attrs.getVersion();
+        long length = getReadLength(metadata, offset, size);
+        if (length == 0) {
+            return new ArrayList<>();
+        }
+        if (isInline(metadata) || metadata.getPendingWrite() != null || version < 0) {
+            return null;
         }
 
-        return cacheEntry.get().reloadIfOutdated(directoryLayer, rt);
+        DirectorySubspace chunkSpace = getChunkSpace(directoryLayer, rt, metadata);
+        int chunkSize = metadata.getChunkSize();
+        List<byte[]> cached = new ArrayList<>();
+        for (int chunkNum = (int) (offset / chunkSize); chunkNum <= (offset + length - 1) / chunkSize; ++chunkNum) {
+            Optional<ChunkCacheEntry> entry = FsCacheSingleton.getChunk(rawPath, chunkNum)
+                    .filter(chunk -> chunk.isAtVersion(chunkSpace.getKey(), version));
+            if (!entry.isPresent()) {
+                return null;
+            }
+            cached.add(entry.get().getData());
+        }
+        CacheMetrics.CHUNKS.trustedHits(cached.size());
+        return cached;
     }
 
-    private void ensureCacheEntryPresent(DirectoryLayer directoryLayer, ReadTransaction rt) {
-        if (!FsCacheSingleton.fileInCache(rawPath)) {
-            FsCacheSingleton.loadFileToCache(rawPath, directoryLayer, rt);
+    /**
+     * Loads the chunks covering size bytes at offset, with the given attributes, which must be current
+     */
+    private List<byte[]> loadCommittedChunks(DirectoryLayer directoryLayer,
+                                             ReadTransaction rt,
+                                             AttrCacheEntry.State attrs,
+                                             long offset,
+                                             long size) throws Exception {
+        Attr metadata = attrs.getMetadata();
+        long length = getReadLength(metadata, offset, size);
+        if (length == 0) {
+            return new ArrayList<>();
         }
+        int chunkSize = metadata.getChunkSize();
+        return loadCommittedChunks(directoryLayer,
+                rt,
+                metadata,
+                attrs.getVersion(),
+                (int) (offset / chunkSize),
+                (int) ((offset + length - 1) / chunkSize));
     }
 
-    public FileSchema move(DirectoryLayer directoryLayer, Transaction transaction, String newPath) {
-        // Create the new file subspace
-        FileSchema newNode = new FileSchema(newPath);
-        newNode.create(directoryLayer, transaction);
+    /**
+     * Loads the chunks from startChunk to endChunk, inclusive, through the chunk cache. Chunks a committed staged
+     * write has not moved into place yet are taken from its stage, so the write is read whole from when it commits.
+     */
+    private List<byte[]> loadCommittedChunks(DirectoryLayer directoryLayer,
+                                             ReadTransaction rt,
+                                             Attr metadata,
+                                             long version,
+                                             int startChunk,
+                                             int endChunk) throws Exception {
+        DirectorySubspace chunkSpace = getChunkSpace(directoryLayer, rt, metadata);
+        PendingWrite pending = metadata.getPendingWrite();
+        if (pending == null || endChunk < pending.nextChunk || startChunk > pending.lastChunk) {
+            return loadChunksCached(directoryLayer, rt, metadata, version, chunkSpace, startChunk, endChunk);
+        }
 
-        // Copy the metadata to the new destination
-        Attr currentMetadata = this.getMetadata(directoryLayer, transaction);
-        newNode.setOwnership(directoryLayer, transaction, currentMetadata.getUid(), currentMetadata.getGid());
-        newNode.setMode(directoryLayer, transaction, currentMetadata.getMode(), currentMetadata.getUid());
-        newNode.setTimestamp(directoryLayer, transaction, currentMetadata.getTimestamp());
+        DirectorySubspace stageSpace = SubspaceCache.open(directoryLayer, rt, getStagePath(pending.stage)).get();
+        List<byte[]> chunks = new ArrayList<>();
+        if (startChunk < pending.nextChunk) {
+            chunks.addAll(loadChunksCached(directoryLayer, rt, metadata, version, chunkSpace, startChunk, pending.nextChunk - 1));
+        }
+        chunks.addAll(loadChunksCached(directoryLayer,
+                rt,
+                metadata,
+                version,
+                stageSpace,
+                Math.max(startChunk, pending.nextChunk),
+                Math.min(endChunk, pending.lastChunk)));
+        if (endChunk > pending.lastChunk) {
+            chunks.addAll(loadChunksCached(directoryLayer, rt, metadata, version, chunkSpace, pending.lastChunk + 1, endChunk));
+        }
+        return chunks;
+    }
 
-        // Copy the file's bytes to the new file
-        byte[] data = this.read(directoryLayer, transaction, 0, this.size(directoryLayer, transaction), currentMetadata.getUid());
-        newNode.write(directoryLayer, transaction, data, 0, currentMetadata.getUid());
+    /**
+     * Like loadChunks, but takes chunks whose stamps have not changed from the chunk cache, and caches the rest.
+     * Stamps are tiny next to chunks, so reading every stamp in the range is cheap, and only chunks that
+     * changed or were never cached are read, in runs of adjacent chunks. Chunks missing from memory can
+     * still be found in the mount's disk cache, under the same stamps.
+     * Chunks are tagged with the file version they were read at, or -1 when writers read them. While a watch or
+     * the staleness window vouches for the file's version, chunks tagged with that version need no stamps read at
+     * all, see getCachedChunks.
+     */
+    private List<byte[]> loadChunksCached(DirectoryLayer directoryLayer,
+                                          ReadTransaction rt,
+                                          Attr metadata,
+                                          long version,
+                                          DirectorySubspace chunkSpace,
+                                          int startChunk,
+                                          int endChunk) throws Exception {
+        if (chunkSpace == null) {
+            return loadChunks(directoryLayer, rt, metadata, chunkSpace, startChunk, endChunk);
+        }
 
-        // Remove this node
-        this.delete(directoryLayer, transaction);
+        byte[][] stamps = new byte[endChunk - startChunk + 1][];
+        List<KeyValue> storedStamps = rt.getRange(getStampKey(chunkSpace, startChunk), getStampKey(chunkSpace, endChunk + 1))
+                .asList().get();
+        CacheMetrics.CHUNKS.validated();
+        for (KeyValue kv : storedStamps) {
+            stamps[(int) chunkSpace.unpack(kv.getKey()).getLong(1) - startChunk] = kv.getValue();
+        }
+
+        byte[][] chunks = new byte[stamps.length][];
+        for (int i = 0; i < stamps.length; ++i) {
+            byte[] stamp = stamps[i];
+            int chunkNum = startChunk + i;
+            if (stamp != null) {
+                chunks[i] = FsCacheSingleton.getCurrentChunk(rawPath, chunkNum, chunkSpace.getKey(), stamp)
+                        .map(entry -> {
+                            if (version >= 0 && entry.getFileVersion() != version) {
+                                // Unchanged since an earlier version, so usable without stamps at this one too
+                                FsCacheSingleton.putChunk(rawPath, chunkNum, entry.atVersion(version));
+                            }
+                            return entry.getData();
+                        })
+                        .orElse(null);
+            }
+        }
+
+        for (int i = 0; i < chunks.length; ++i) {
+            if (chunks[i] != null) {
+                continue;
+            }
+            int runEnd = i;
+            while (runEnd + 1 < chunks.length && chunks[runEnd + 1] == null) {
+                ++runEnd;
+            }
+            List<byte[]> loaded = loadChunks(directoryLayer, rt, metadata, chunkSpace, startChunk + i, startChunk + runEnd);
+            for (int j = i; j <= runEnd; ++j) {
+                chunks[j] = j - i < loaded.size() ? loaded.get(j - i) : new byte[0];
+                // Chunks written before stamps existed are never cached, as nothing would say when they change
+                if (stamps[j] != null) {
+                    CacheMetrics.CHUNKS.loaded(false, chunks[j].length);
+                    FsCacheSingleton.putChunk(rawPath, startChunk + j, new ChunkCacheEntry(chunkSpace.getKey(), stamps[j], version, chunks[j]));
+                }
+            }
+            i = runEnd;
+        }
+        return Arrays.asList(chunks);
+    }
+
+    /**
+     * Decodes stored chunks and lines them up by their chunk number, starting at startChunk,
+     * with empty arrays for missing ones.
+     * The chunks of deduplicated files are loaded from the ChunkStore first.
+     */
+    private static List<byte[]> fillHoles(DirectoryLayer directoryLayer,
+                                          ReadTransaction rt,
+                                          DirectorySubspace chunkSpace,
+                                          List<KeyValue> storedChunks,
+                                          int startChunk,
+                                          Attr metadata) throws Exception {
+        List<byte[]> values = storedChunks.stream().map(KeyValue::getValue).collect(Collectors.toList());
+        if (isDeduplicated(metadata)) {
+            values = ChunkStore.get(directoryLayer, rt, values);
+        }
 
-        // Return the new file schema
-        return newNode;
+        List<byte[]> chunks = new ArrayList<>();
+        for (int i = 0; i < storedChunks.size(); ++i) {
+            int chunkNum = (int) chunkSpace.unpack(storedChunks.get(i).getKey()).getLong(0);
+            while (startChunk + chunks.size() < chunkNum) {
+                chunks.add(new byte[0]);
+            }
+            chunks.add(getCodec(metadata).decode(values.get(i)));
+        }
+        return chunks;
     }
-}
+
+    /**
+     * Attributes are cached apart from the file's data, so loading them never reads chunks.
+     * Returns them as current in the given transaction.
+     */
+    private AttrCacheEntry.State getAttrCache(DirectoryLayer directoryLayer, ReadTransaction rt) {
+        return FsCacheSingleton.getAttr(rawPath)
+                .map(entry -> entry.reloadIfOutdated(directoryLayer, rt))
+                .orElseGet(() -> FsCacheSingleton.loadAttrToCache(rawPath, directoryLayer, rt));
+    }
+
+    /**
+     * Reads may trust a watch on the file's version, or the mount's staleness window, instead of reading it.
+     * Writes never do, as another client's change can commit before its watch fires or the window ends.
+     */
+    private AttrCacheEntry.State getAttrCache(DirectoryLayer directoryLayer, ReadTransaction rt, boolean trustUnchecked) {
+        AttrCacheEntry.State trusted = trustUnchecked ? getTrustedAttrs() : null;
+        return trusted != null ? trusted : getAttrCache(directoryLayer, rt);
+    }
+
+    /** The cached attributes, if they can be trusted without reading anything, or null */
+    private AttrCacheEntry.State getTrustedAttrs() {
+        return FsCacheSingleton.getAttr(rawPath).map(AttrCacheEntry::getTrusted).orElse(null);
+    }}
@@ -1,7 +1,10 @@
 package foundationdb_fslayer.fuse;
 
-import foundationdb_fslayer.fdb.FoundationFileOperations;
+import foundationdb_fslayer.MountOptions;
+import foundationdb_fslayer.fdb.AsyncFoundationFileOperations;
 import foundationdb_fslayer.fdb.object.Attr;
+import foundationdb_fslayer.fdb.object.ObjectType;
+import jnr.constants.platform.OpenFlags;
 import jnr.ffi.Pointer;
 import ru.serce.jnrfuse.ErrorCodes;
 import ru.serce.jnrfuse.FuseFillDir;
@@ -15,12 +18,34 @@ import java.util.List;
 
 public class FuseLayer extends FuseStubFS {
 
-  private final FoundationFileOperations dbOps;
+  /** Extended attribute setting a directory's chunk size policy, e.g. setfattr -n user.fdb.chunk_size -v 65536 dir,
+   *  and reading back that policy or a file's chunk size */
+  private static final String CHUNK_SIZE_XATTR = "user.fdb.chunk_size";
+  /** Read-only extended attribute reporting logical and physical bytes of deduplicated chunks, on any path */
+  private static final String DEDUP_USAGE_XATTR = "user.fdb.dedup_usage";
+
+  /** fallocate mode flag that leaves the file size unchanged, from linux/falloc.h */
+  private static final int FALLOC_FL_KEEP_SIZE = 0x01;
+
+  private final AsyncFoundationFileOperations dbOps;
   private final long userId;
+  private final Readahead readahead;
+
+  /**
+   * FUSE expects each callback to answer before it returns, so operations that only have a blocking implementation
+   * are called directly, rather than queued behind other operations on another thread.
+   */
+  public FuseLayer(AsyncFoundationFileOperations dbOps, long userId) {
+    this(dbOps, userId, MountOptions.DEFAULT_READAHEAD_BYTES);
+  }
 
-  public FuseLayer(FoundationFileOperations dbOps, long userId) {
+  /**
+   * Prefetches up to readaheadBytes ahead of files being read sequentially, or nothing if it is 0
+   */
+  public FuseLayer(AsyncFoundationFileOperations dbOps, long userId, long readaheadBytes) {
     this.dbOps = dbOps;
     this.userId = userId;
+    this.readahead = new Readahead(dbOps, userId, readaheadBytes);
   }
 
   @Override
@@ -33,16 +58,18 @@ public class FuseLayer extends FuseStubFS {
       return 0;
     }
 
-    Attr attr = dbOps.getAttr(path);
+    // The most frequent call, answered by one pipelined read that only blocks this thread
+    Attr attr = dbOps.getAttrAsync(path).join();
 
     switch (attr.getObjectType()) {
       case FILE:
         stat.st_mode.set(FileStat.S_IFREG | attr.getMode());
-        stat.st_size.set(dbOps.getFileSize(path));
+        stat.st_size.set(attr.getSize());
         stat.st_uid.set(attr.getUid());
         stat.st_gid.set(attr.getGid());
         stat.st_mtim.tv_sec.set(attr.getTimestamp());
         stat.st_mtim.tv_nsec.set(0);
+        stat.st_blksize.set(attr.getChunkSize());
         break;
       case DIRECTORY:
         stat.st_mode.set(FileStat.S_IFDIR | attr.getMode());
@@ -58,7 +85,9 @@ public class FuseLayer extends FuseStubFS {
 
   @Override
   public int open(String path, FuseFileInfo fi) {
-    fi.fh.set(dbOps.open(path, fi.flags.intValue()));
+    dbOps.open(path, fi.flags.intValue());
+    // Each open gets a handle of its own, so reads through it can be told apart from other opens' for readahead
+    fi.fh.set(readahead.open());
     return 0;
   }
 
@@ -69,6 +98,7 @@ public class FuseLayer extends FuseStubFS {
 
   @Override
   public int release(String path, FuseFileInfo fi) {
+    readahead.release(fi.fh.get());
     return 0;
   }
 
@@ -100,7 +130,7 @@ public class FuseLayer extends FuseStubFS {
 
   @Override
   public int read(String path, Pointer buf, long size, long offset, FuseFileInfo fi) {
-    byte[] stored = dbOps.read(path, offset, size, userId);
+    byte[] stored = readahead.read(path, fi.fh.get(), offset, size);
 
     if (stored == null) {
       return -ErrorCodes.EACCES();
@@ -115,7 +145,11 @@ public class FuseLayer extends FuseStubFS {
     byte[] data = new byte[(int) size];
     buf.get(0, data, 0, (int) size);
 
-    if (dbOps.write(path, data, offset, userId)) {
+    // Files opened with O_APPEND always write to their end, whatever offset the kernel passes
+    boolean written = (fi.flags.intValue() & OpenFlags.O_APPEND.intValue()) != 0
+            ? dbOps.appendAsync(path, data, userId).join()
+            : dbOps.writeAsync(path, data, offset, userId).join();
+    if (written) {
       dbOps.setFileTime(System.currentTimeMillis(), path);
 
       return (int) size;
@@ -149,6 +183,19 @@ public class FuseLayer extends FuseStubFS {
     return dbOps.truncate(path,size, userId) ? 0 : -ErrorCodes.EACCES();
   }
 
+  @Override
+  public int fallocate(String path, int mode, long off, long length, FuseFileInfo fi) {
+    // Space is never reserved ahead of writes, so keeping the size leaves nothing to do
+    if (mode == FALLOC_FL_KEEP_SIZE) {
+      return 0;
+    }
+    // Hole punching and the other modes are not supported
+    if (mode != 0) {
+      return -ErrorCodes.EOPNOTSUPP();
+    }
+    return dbOps.allocate(path, off, length, userId) ? 0 : -ErrorCodes.EACCES();
+  }
+
   @Override
   public int chmod(String path, long mode) {
     return dbOps.chmod(path, mode, userId) ? 0 : -ErrorCodes.EACCES();
@@ -168,4 +215,61 @@ public class FuseLayer extends FuseStubFS {
   public int rename(String oldpath, String newpath) {
     return dbOps.move(oldpath, newpath, userId) ? 0 : -ErrorCodes.ENOENT();
   }
+
+  @Override
+  public int setxattr(String path, String name, Pointer value, long size, int flags) {
+    if (!name.equals(CHUNK_SIZE_XATTR)) {
+      return -ErrorCodes.ENOTSUP();
+    }
+
+    byte[] rawValue = new byte[(int) size];
+    value.get(0, rawValue, 0, (int) size);
+    try {
+      int chunkSize = Integer.parseInt(new String(rawValue).trim());
+      return dbOps.setChunkSize(path, chunkSize, userId) ? 0 : -ErrorCodes.EINVAL();
+    } catch (NumberFormatException e) {
+      return -ErrorCodes.EINVAL();
+    }
+  }
+
+  @Override
+  public int getxattr(String path, String name, Pointer value, long size) {
+    switch (name) {
+      case CHUNK_SIZE_XATTR:
+        Attr attr = dbOps.getAttr(path);
+        if (attr == null) {
+          return -ErrorCodes.EIO();
+        }
+        if (attr.getObjectType() == ObjectType.NOT_FOUND) {
+          return -ErrorCodes.ENOENT();
+        }
+        // Files report the chunk size they were created with, directories the policy they set, if any
+        if (attr.getChunkSize() == null) {
+          return -ErrorCodes.ENODATA();
+        }
+        return replyXattr(String.valueOf(attr.getChunkSize()).getBytes(), value, size);
+      case DEDUP_USAGE_XATTR:
+        long[] usage = dbOps.getDedupUsage();
+        if (usage == null) {
+          return -ErrorCodes.EIO();
+        }
+        return replyXattr(String.format("logical=%d physical=%d", usage[0], usage[1]).getBytes(), value, size);
+      default:
+        return -ErrorCodes.ENODATA();
+    }
+  }
+
+  /**
+   * Copies an extended attribute's value into the caller's buffer, or only reports its length if the size is 0
+   */
+  private static int replyXattr(byte[] report, Pointer value, long size) {
+    if (size == 0) {
+      return report.length;
+    }
+    if (size < report.length) {
+      return -ErrorCodes.ERANGE();
+    }
+    value.put(0, report, 0, report.length);
+    return report.length;
+  }
 }
@@ -0,0 +1,174 @@
+package foundationdb_fslayer.fuse;
+
+import foundationdb_fslayer.cache.CacheMetrics;
+import foundationdb_fslayer.fdb.AsyncFoundationFileOperations;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects sequential reads of each open file, and prefetches the chunks ahead of them into the chunk cache,
+ * so streaming a file waits on FoundationDB's bandwidth rather than on one round trip per read.
+ *
+ * A read that starts where the previous read of the same open file ended, or a first read at offset 0, is
+ * sequential. Whenever less than a window is left prefetched ahead of a sequential read, the next window past
+ * what was prefetched is loaded in the background. The window starts at twice the read's size and doubles each
+ * time, up to the mount's limit. Any other read is random access, which drops the window until reads are
+ * sequential again. Windows are loaded in pieces of at most MAX_PREFETCH_BYTES, side by side.
+ *
+ * A sequential read within what was prefetched waits for its pieces to land, then is served from the cache,
+ * and counts as a readahead hit if they all loaded. Bytes are counted as loaded once each piece has loaded them.
+ */
+public class Readahead {
+    // Largest range one prefetch transaction loads
+    static final long MAX_PREFETCH_BYTES = 1024 * 1024;
+    // How long a read waits for a prefetch before reading for itself, about as long as a transaction can last
+    private static final long PREFETCH_WAIT_SECONDS = 5;
+
+    private static final class Prefetch {
+        private final long start;
+        private final long end;
+        // Bytes loaded, or -1 if the prefetch failed
+        private final CompletableFuture<Long> future;
+
+        private Prefetch(long start, long end, CompletableFuture<Long> future) {
+            this.start = start;
+            this.end = end;
+            this.future = future;
+        }
+    }
+
+    /** What is known about how one open file is being read. Only used with its lock held. */
+    private static final class Stream {
+        private long nextOffset = 0;
+        private long window = 0;
+        // The range prefetched since reads last became sequential
+        private long prefetchedStart = 0;
+        private long prefetchedEnd = 0;
+        // Pieces that may still be loading, in order
+        private final List<Prefetch> inFlight = new ArrayList<>();
+    }
+
+    private final AsyncFoundationFileOperations dbOps;
+    private final long userId;
+    private final long maxWindow;
+    private final ConcurrentHashMap<Long, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicLong nextHandle = new AtomicLong(1);
+
+    /**
+     * Prefetches up to maxWindow bytes ahead of sequential reads, or nothing if it is 0
+     */
+    public Readahead(AsyncFoundationFileOperations dbOps, long userId, long maxWindow) {
+        this.dbOps = dbOps;
+        this.userId = userId;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Starts tracking reads of a newly opened file, returning the handle they are made through
+     */
+    public long open() {
+        long handle = nextHandle.getAndIncrement();
+        if (maxWindow > 0) {
+            streams.put(handle, new Stream());
+        }
+        return handle;
+    }
+
+    public void release(long handle) {
+        streams.remove(handle);
+    }
+
+    /**
+     * Reads the given range of the file open as the given handle, prefetching what is expected to be read next.
+     * Returns null on error, as the read itself does.
+     */
+    public byte[] read(String path, long handle, long offset, long size) {
+        Stream stream = streams.get(handle);
+        if (stream == null) {
+            return dbOps.readAsync(path, offset, size, userId).join();
+        }
+
+        List<CompletableFuture<Long>> awaited = new ArrayList<>();
+        // Whether the read lies within what was prefetched for it, so is a hit if the prefetches all load
+        boolean prefetched = false;
+        synchronized (stream) {
+            long end = offset + size;
+            boolean sequential = offset == stream.nextOffset;
+            stream.nextOffset = end;
+            if (!sequential) {
+                // Prefetches already running are left to finish, as they cannot be taken back
+                stream.window = 0;
+                stream.inFlight.clear();
+            } else {
+                if (stream.window > 0) {
+                    prefetched = offset >= stream.prefetchedStart && end <= stream.prefetchedEnd;
+                    if (!prefetched) {
+                        CacheMetrics.READAHEAD.miss();
+                    }
+                }
+                Iterator<Prefetch> pieces = stream.inFlight.iterator();
+                while (pieces.hasNext()) {
+                    Prefetch piece = pieces.next();
+                    if (piece.end <= offset) {
+                        pieces.remove();
+                    } else if (piece.start < end) {
+                        awaited.add(piece.future);
+                    }
+                }
+                if (stream.window == 0 || stream.prefetchedEnd - end < stream.window) {
+                    prefetchNext(path, stream, end, size);
+                }
+            }
+        }
+
+        boolean loaded = true;
+        for (CompletableFuture<Long> future : awaited) {
+            try {
+                loaded &= future.get(PREFETCH_WAIT_SECONDS, TimeUnit.SECONDS) >= 0;
+            } catch (Exception e) {
+                // The read loads whatever the prefetch did not
+                loaded = false;
+            }
+        }
+        if (prefetched) {
+            if (loaded) {
+                CacheMetrics.READAHEAD.hit();
+            } else {
+                CacheMetrics.READAHEAD.miss();
+            }
+        }
+        return dbOps.readAsync(path, offset, size, userId).join();
+    }
+
+    /**
+     * Grows the window and starts loading the next one, past both the read and what is already prefetched
+     */
+    private void prefetchNext(String path, Stream stream, long readEnd, long readSize) {
+        long start = readEnd;
+        if (stream.window == 0) {
+            stream.window = Math.min(2 * readSize, maxWindow);
+            stream.prefetchedStart = start;
+        } else {
+            stream.window = Math.min(2 * stream.window, maxWindow);
+            start = Math.max(start, stream.prefetchedEnd);
+        }
+        long end = start + stream.window;
+        for (long pieceStart = start; pieceStart < end; pieceStart += MAX_PREFETCH_BYTES) {
+            long pieceEnd = Math.min(pieceStart + MAX_PREFETCH_BYTES, end);
+            CompletableFuture<Long> future = dbOps.prefetchAsync(path, pieceStart, pieceEnd - pieceStart, userId);
+            future.thenAccept(bytes -> {
+                if (bytes > 0) {
+                    CacheMetrics.READAHEAD.loaded(false, bytes);
+                }
+            });
+            stream.inFlight.add(new Prefetch(pieceStart, pieceEnd, future));
+        }
+        stream.prefetchedEnd = end;
+    }
+}
@@ -0,0 +1,81 @@
+package foundationdb_fslayer;
+
+import com.apple.foundationdb.tuple.Tuple;
+import foundationdb_fslayer.fdb.object.Attr;
+import foundationdb_fslayer.fdb.object.ChunkCodec;
+import foundationdb_fslayer.fdb.object.ObjectType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks INODE records read back the attributes they were written with, and records written before
+ * the later fields existed still read.
+ *
+ * No database is needed: only the stored values are encoded and decoded.
+ */
+public class attrRecordTest {
+
+  @Test
+  public void fileRecordRoundTrips() {
+    Attr attr = Attr.fromRecord(new Attr()
+            .setObjectType(ObjectType.FILE)
+            .setMode(0644)
+            .setUid(1000L)
+            .setGid(100L)
+            .setTimestamp(1700000000L)
+            .setChunkSize(65536)
+            .setCodec(ChunkCodec.DEFLATE)
+            .setDeduplicated(true)
+            .setInlineLimit(4096)
+            .toRecord());
+
+    assertEquals(ObjectType.FILE, attr.getObjectType());
+    assertEquals(Long.valueOf(0644), attr.getMode());
+    assertEquals(Long.valueOf(1000), attr.getUid());
+    assertEquals(Long.valueOf(100), attr.getGid());
+    assertEquals(Long.valueOf(1700000000L), attr.getTimestamp());
+    assertEquals(Integer.valueOf(65536), attr.getChunkSize());
+    assertEquals(ChunkCodec.DEFLATE, attr.getCodec());
+    assertEquals(Boolean.TRUE, attr.getDeduplicated());
+    assertEquals(Integer.valueOf(4096), attr.getInlineLimit());
+    // Size is kept in its own key
+    assertNull(attr.getSize());
+  }
+
+  @Test
+  public void unsetFieldsStayUnset() {
+    Attr attr = Attr.fromRecord(new Attr().setObjectType(ObjectType.DIRECTORY).setMode(0755).toRecord());
+
+    assertEquals(ObjectType.DIRECTORY, attr.getObjectType());
+    assertEquals(Long.valueOf(0755), attr.getMode());
+    assertNull(attr.getUid());
+    assertNull(attr.getTimestamp());
+    assertNull(attr.getChunkSize());
+    assertNull(attr.getCodec());
+    assertNull(attr.getDeduplicated());
+    assertNull(attr.getInlineLimit());
+  }
+
+  @Test
+  public void olderRecordsRead() {
+    // Before codecs were recorded
+    Attr beforeCodecs = Attr.fromRecord(Tuple.from("FILE", 0644L, 1000L, 100L, 1L, 1000L).pack());
+    assertEquals(Integer.valueOf(1000), beforeCodecs.getChunkSize());
+    assertNull(beforeCodecs.getCodec());
+    assertNull(beforeCodecs.getDeduplicated());
+    assertNull(beforeCodecs.getInlineLimit());
+
+    // Before deduplication
+    Attr beforeDedup = Attr.fromRecord(Tuple.from("FILE", 0644L, 1000L, 100L, 1L, 65536L, "NONE").pack());
+    assertEquals(ChunkCodec.NONE, beforeDedup.getCodec());
+    assertNull(beforeDedup.getDeduplicated());
+    assertNull(beforeDedup.getInlineLimit());
+
+    // Before inline files
+    Attr beforeInline = Attr.fromRecord(Tuple.from("FILE", 0644L, 1000L, 100L, 1L, 65536L, "NONE", false).pack());
+    assertEquals(Boolean.FALSE, beforeInline.getDeduplicated());
+    assertNull(beforeInline.getInlineLimit());
+  }
+}
@@ -0,0 +1,62 @@
+package foundationdb_fslayer;
+
+import foundationdb_fslayer.cache.CacheMetrics;
+import foundationdb_fslayer.cache.CacheStats;
+import foundationdb_fslayer.cache.ChunkCacheEntry;
+import foundationdb_fslayer.cache.FsCacheSingleton;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the chunk cache's lookups, evictions and resident bytes are counted, and exported through JMX.
+ *
+ * No database is needed: chunks are put in and looked up directly.
+ */
+public class cacheMetricsTest {
+  private static final byte[] CHUNK_SPACE = "chunks".getBytes();
+  private static final byte[] STAMP = new byte[10];
+  private static final byte[] OTHER_STAMP = new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+  @After
+  public void tearDown() {
+    FsCacheSingleton.removeTreeFromCache("/");
+    FsCacheSingleton.setMaxBytes(FsCacheSingleton.DEFAULT_MAX_BYTES);
+  }
+
+  @Test
+  public void chunkLookupsAreCounted() throws Exception {
+    CacheStats chunks = CacheMetrics.CHUNKS;
+    long hits = chunks.getHits();
+    long misses = chunks.getMisses();
+    long evictions = chunks.getEvictions();
+
+    FsCacheSingleton.putChunk("/file", 0, new ChunkCacheEntry(CHUNK_SPACE, STAMP, 0, new byte[1000]));
+    assertTrue(FsCacheSingleton.getCurrentChunk("/file", 0, CHUNK_SPACE, STAMP).isPresent());
+    FsCacheSingleton.getCurrentChunk("/file", 0, CHUNK_SPACE, OTHER_STAMP);
+    FsCacheSingleton.getCurrentChunk("/file", 1, CHUNK_SPACE, STAMP);
+    assertEquals(hits + 1, chunks.getHits());
+    assertEquals(misses + 2, chunks.getMisses());
+    assertEquals(1, chunks.getEntries());
+    assertTrue(chunks.getResidentBytes() >= 1000);
+
+    // Each stripe only has room for a few chunks, so putting many evicts most of them
+    FsCacheSingleton.setMaxBytes(16 * 4096);
+    for (int i = 0; i < 100; ++i) {
+      FsCacheSingleton.putChunk("/file", i, new ChunkCacheEntry(CHUNK_SPACE, STAMP, 0, new byte[1000]));
+    }
+    assertEquals(100, chunks.getEntries() + chunks.getEvictions() - evictions);
+
+    CacheMetrics.start("strict", 0);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertEquals(chunks.getEvictions(),
+            server.getAttribute(new ObjectName("foundationdb_fslayer:type=Cache,name=chunks"), "Evictions"));
+    assertEquals("strict", server.getAttribute(new ObjectName("foundationdb_fslayer:type=Cache"), "Consistency"));
+  }
+}
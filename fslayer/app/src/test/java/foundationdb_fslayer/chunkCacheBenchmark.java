@@ -0,0 +1,158 @@
+package foundationdb_fslayer;
+
+import foundationdb_fslayer.cache.ChunkCacheEntry;
+import foundationdb_fslayer.cache.FsCacheSingleton;
+import foundationdb_fslayer.fdb.object.FileSchema;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares garbage collection and chunk read latency with the chunk cache on and off the heap.
+ * The cache is filled, then reader threads get chunks at random while a writer thread replaces some,
+ * as a mount's FUSE threads would while files are read and written.
+ *
+ * Runs with ./gradlew test -Dfslayer.bench=true
+ * Cache size can be set with -Dfslayer.bench.cacheBytes, the test JVM's heap and direct memory
+ * with -Dfslayer.bench.heap, how long each cache is read with -Dfslayer.bench.seconds, and the number of
+ * reader threads with -Dfslayer.bench.readers. Latencies only mean much with a core for each reader.
+ */
+public class chunkCacheBenchmark {
+  private static final long CACHE_BYTES = Long.getLong("fslayer.bench.cacheBytes", 2L * 1024 * 1024 * 1024);
+  private static final int SECONDS = Integer.getInteger("fslayer.bench.seconds", 10);
+  private static final int CHUNK_SIZE = FileSchema.DEFAULT_CHUNK_SIZE_BYTES;
+  private static final int CHUNKS_PER_FILE = 256;
+  private static final int READERS = Integer.getInteger("fslayer.bench.readers", 8);
+  // Latencies kept per reader, which is plenty to find the p99
+  private static final int SAMPLES = 1 << 20;
+  private static final byte[] STAMP = new byte[10];
+
+  @Before
+  public void setup() {
+    Assume.assumeTrue("Benchmarks run with -Dfslayer.bench=true", Boolean.getBoolean("fslayer.bench"));
+  }
+
+  @After
+  public void tearDown() {
+    FsCacheSingleton.removeTreeFromCache("/");
+    FsCacheSingleton.setOffHeap(false);
+    FsCacheSingleton.setMaxBytes(FsCacheSingleton.DEFAULT_MAX_BYTES);
+  }
+
+  @Test
+  public void onHeap() throws Exception {
+    runCache("on heap", false);
+  }
+
+  @Test
+  public void offHeap() throws Exception {
+    runCache("off heap", true);
+  }
+
+  private void runCache(String name, boolean offHeap) throws Exception {
+    FsCacheSingleton.setMaxBytes(CACHE_BYTES);
+    FsCacheSingleton.setOffHeap(offHeap);
+    // Leave room for the entries' overhead, so filling the cache evicts nothing
+    int chunks = (int) (CACHE_BYTES / (CHUNK_SIZE + 1024));
+    for (int i = 0; i < chunks; ++i) {
+      FsCacheSingleton.putChunk(pathOf(i), i % CHUNKS_PER_FILE, chunkOf(i));
+    }
+    System.gc();
+    long heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    long[] gcBefore = gcCountAndMillis();
+
+    long deadline = System.nanoTime() + SECONDS * 1_000_000_000L;
+    ExecutorService threads = Executors.newFixedThreadPool(READERS + 1);
+    List<Future<long[]>> readers = new ArrayList<>();
+    for (int t = 0; t < READERS; ++t) {
+      Random random = new Random(t);
+      readers.add(threads.submit(() -> {
+        long[] latencies = new long[SAMPLES];
+        int count = 0;
+        while (System.nanoTime() < deadline) {
+          int i = random.nextInt(chunks);
+          long start = System.nanoTime();
+          // Copied into a buffer of its own, as reads do
+          byte[] read = FsCacheSingleton.getChunk(pathOf(i), i % CHUNKS_PER_FILE)
+                  .map(chunk -> Arrays.copyOf(chunk.getData(), chunk.getData().length))
+                  .orElse(null);
+          latencies[count++ % SAMPLES] = System.nanoTime() - start;
+          // Replaced chunks can have been evicted, but a chunk read must be the one that was cached
+          if (read != null) {
+            assertEquals((byte) i, read[0]);
+          }
+        }
+        return Arrays.copyOf(latencies, Math.min(count, SAMPLES));
+      }));
+    }
+    // Chunks read from the database replace cached ones, which leaves the old ones as garbage
+    Future<?> writer = threads.submit(() -> {
+      Random random = new Random(-1);
+      while (System.nanoTime() < deadline) {
+        int i = random.nextInt(chunks);
+        FsCacheSingleton.putChunk(pathOf(i), i % CHUNKS_PER_FILE, chunkOf(i));
+      }
+      return null;
+    });
+
+    List<Long> latencies = new ArrayList<>();
+    for (Future<long[]> reader : readers) {
+      for (long latency : reader.get()) {
+        latencies.add(latency);
+      }
+    }
+    writer.get();
+    threads.shutdown();
+    long[] gcAfter = gcCountAndMillis();
+    latencies.sort(null);
+
+    System.out.printf("%-8s %d readers on %d cores, %,6d MB cached, %,6d MB heap, %,5d collections taking %,7d ms, "
+                    + "read p50 %,6d us, p99 %,6d us, max %,8d us%n",
+            name,
+            READERS,
+            Runtime.getRuntime().availableProcessors(),
+            FsCacheSingleton.getResidentBytes() >> 20,
+            heapBytes >> 20,
+            gcAfter[0] - gcBefore[0],
+            gcAfter[1] - gcBefore[1],
+            percentile(latencies, 0.5) / 1000,
+            percentile(latencies, 0.99) / 1000,
+            latencies.get(latencies.size() - 1) / 1000);
+  }
+
+  private static String pathOf(int i) {
+    return "/bench/file" + i / CHUNKS_PER_FILE;
+  }
+
+  private static ChunkCacheEntry chunkOf(int i) {
+    byte[] data = new byte[CHUNK_SIZE];
+    data[0] = (byte) i;
+    return new ChunkCacheEntry(pathOf(i).getBytes(), STAMP, 0, data);
+  }
+
+  private static long[] gcCountAndMillis() {
+    long[] countAndMillis = new long[2];
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      countAndMillis[0] += Math.max(collector.getCollectionCount(), 0);
+      countAndMillis[1] += Math.max(collector.getCollectionTime(), 0);
+    }
+    return countAndMillis;
+  }
+
+  private static long percentile(List<Long> sorted, double percentile) {
+    return sorted.get((int) Math.min(sorted.size() - 1, percentile * sorted.size()));
+  }
+}
@@ -0,0 +1,125 @@
+package foundationdb_fslayer;
+
+import foundationdb_fslayer.fdb.object.ChunkCodec;
+import foundationdb_fslayer.fdb.object.FileSchema;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Measures encode and decode throughput and the stored size of each chunk codec on sample corpora.
+ * Every chunk is also checked to decode back to what was written.
+ *
+ * Runs with ./gradlew test -Dfslayer.bench=true
+ * Corpus size can be set with -Dfslayer.bench.corpusBytes
+ */
+public class chunkCodecBenchmark {
+  private static final int CORPUS_BYTES = Integer.getInteger("fslayer.bench.corpusBytes", 16 * 1024 * 1024);
+  private static final int CHUNK_SIZE = FileSchema.DEFAULT_CHUNK_SIZE_BYTES;
+
+  @Before
+  public void setup() {
+    Assume.assumeTrue("Benchmarks run with -Dfslayer.bench=true", Boolean.getBoolean("fslayer.bench"));
+  }
+
+  @Test
+  public void logs() {
+    // Repetitive lines that differ in their timestamps, ids and latencies
+    Random random = new Random(1);
+    StringBuilder corpus = new StringBuilder();
+    String[] levels = {"INFO", "INFO", "INFO", "WARN", "DEBUG", "ERROR"};
+    while (corpus.length() < CORPUS_BYTES) {
+      corpus.append(String.format("2021-12-06T%02d:%02d:%02d.%03dZ %-5s [worker-%d] request %08x served in %d ms%n",
+              random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+              levels[random.nextInt(levels.length)], random.nextInt(16), random.nextInt(), random.nextInt(500)));
+    }
+    runCodecs("logs", corpus.toString().getBytes());
+  }
+
+  @Test
+  public void sourceCode() throws IOException {
+    // This project's own sources, repeated to fill the corpus
+    List<Path> sources;
+    try (Stream<Path> files = Files.walk(Paths.get("src"))) {
+      sources = files.filter(path -> path.toString().endsWith(".java")).collect(Collectors.toList());
+    }
+    Assume.assumeFalse("No sources found from " + Paths.get("").toAbsolutePath(), sources.isEmpty());
+
+    ByteArrayOutputStream corpus = new ByteArrayOutputStream();
+    while (corpus.size() < CORPUS_BYTES) {
+      for (Path source : sources) {
+        corpus.write(Files.readAllBytes(source));
+      }
+    }
+    runCodecs("source code", Arrays.copyOf(corpus.toByteArray(), CORPUS_BYTES));
+  }
+
+  @Test
+  public void randomBytes() {
+    // Stands in for already compressed media and archives, which should be stored raw
+    byte[] corpus = new byte[CORPUS_BYTES];
+    new Random(2).nextBytes(corpus);
+    runCodecs("random bytes", corpus);
+  }
+
+  @Test
+  public void zeros() {
+    runCodecs("zeros", new byte[CORPUS_BYTES]);
+  }
+
+  private void runCodecs(String corpusName, byte[] corpus) {
+    List<byte[]> chunks = new ArrayList<>();
+    for (int offset = 0; offset < corpus.length; offset += CHUNK_SIZE) {
+      chunks.add(Arrays.copyOfRange(corpus, offset, Math.min(offset + CHUNK_SIZE, corpus.length)));
+    }
+
+    for (ChunkCodec codec : ChunkCodec.values()) {
+      // Warm up once so the timed pass is not measuring the JIT
+      encodeAll(codec, chunks);
+
+      long encodeStart = System.nanoTime();
+      List<byte[]> stored = encodeAll(codec, chunks);
+      long encodeNanos = System.nanoTime() - encodeStart;
+
+      long decodeStart = System.nanoTime();
+      List<byte[]> decoded = stored.stream().map(codec::decode).collect(Collectors.toList());
+      long decodeNanos = System.nanoTime() - decodeStart;
+
+      long storedBytes = 0;
+      for (int i = 0; i < chunks.size(); ++i) {
+        assertArrayEquals(chunks.get(i), decoded.get(i));
+        storedBytes += stored.get(i).length;
+      }
+
+      System.out.printf("%-12s %-8s stored %6.1f%% of %d bytes, encode %8.1f MB/s, decode %8.1f MB/s%n",
+              corpusName,
+              codec,
+              storedBytes * 100.0 / corpus.length,
+              corpus.length,
+              throughput(corpus.length, encodeNanos),
+              throughput(corpus.length, decodeNanos));
+    }
+  }
+
+  private static List<byte[]> encodeAll(ChunkCodec codec, List<byte[]> chunks) {
+    return chunks.stream().map(codec::encode).collect(Collectors.toList());
+  }
+
+  private static double throughput(long bytes, long nanos) {
+    return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+  }
+}
@@ -0,0 +1,134 @@
+package foundationdb_fslayer;
+
+import foundationdb_fslayer.cache.ChunkCacheEntry;
+import foundationdb_fslayer.cache.FsCacheSingleton;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks chunks cached on disk are found again by a later mount, only under the stamp they were cached with,
+ * that the disk cache survives torn writes and stays within its size, and that only its owner can read it.
+ *
+ * No database is needed: chunks are put in and looked up by their subspace key and stamp directly.
+ */
+public class diskCacheTest {
+  private static final long SEGMENT_BYTES = 16 * 1024 * 1024;
+  private static final String PATH = "/file";
+  private static final byte[] CHUNK_SPACE = "chunks".getBytes();
+  private static final byte[] STAMP = new byte[10];
+  private static final byte[] OTHER_STAMP = new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    FsCacheSingleton.setDiskCache(null, 0);
+    FsCacheSingleton.removeTreeFromCache("/");
+  }
+
+  @Test
+  public void chunksSurviveRemount() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    byte[] data = dataOf(1, 4096);
+    assertTrue(FsCacheSingleton.setDiskCache(directory, SEGMENT_BYTES * 4));
+    FsCacheSingleton.putChunk(PATH, 0, new ChunkCacheEntry(CHUNK_SPACE, STAMP, 7, data));
+
+    remount(directory, SEGMENT_BYTES * 4);
+
+    Optional<ChunkCacheEntry> found = FsCacheSingleton.getCurrentChunk(PATH, 0, CHUNK_SPACE, STAMP);
+    assertTrue(found.isPresent());
+    assertArrayEquals(data, found.get().getData());
+    // Versions read by an earlier mount are not trusted
+    assertEquals(-1, found.get().getFileVersion());
+    // Kept in memory once found
+    assertTrue(FsCacheSingleton.getChunk(PATH, 0).isPresent());
+
+    assertFalse(FsCacheSingleton.getCurrentChunk(PATH, 0, CHUNK_SPACE, OTHER_STAMP).isPresent());
+    assertFalse(FsCacheSingleton.getCurrentChunk(PATH, 0, "other".getBytes(), STAMP).isPresent());
+    assertFalse(FsCacheSingleton.getCurrentChunk(PATH, 1, CHUNK_SPACE, STAMP).isPresent());
+  }
+
+  @Test
+  public void tornRecordsAreDropped() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    assertTrue(FsCacheSingleton.setDiskCache(directory, SEGMENT_BYTES * 4));
+    FsCacheSingleton.putChunk(PATH, 0, new ChunkCacheEntry(CHUNK_SPACE, STAMP, 0, dataOf(1, 1000)));
+    FsCacheSingleton.putChunk(PATH, 1, new ChunkCacheEntry(CHUNK_SPACE, STAMP, 0, dataOf(2, 1000)));
+    FsCacheSingleton.setDiskCache(null, 0);
+
+    // Flip a byte of the second chunk, as a crash part way through writing it might leave it
+    try (RandomAccessFile segment = new RandomAccessFile(directory.resolve("segment-0").toFile(), "rw")) {
+      long offset = 1500;
+      segment.seek(offset);
+      int value = segment.read();
+      segment.seek(offset);
+      segment.write(value ^ 0xff);
+    }
+
+    remount(directory, SEGMENT_BYTES * 4);
+    assertTrue(FsCacheSingleton.getCurrentChunk(PATH, 0, CHUNK_SPACE, STAMP).isPresent());
+    assertFalse(FsCacheSingleton.getCurrentChunk(PATH, 1, CHUNK_SPACE, STAMP).isPresent());
+  }
+
+  @Test
+  public void oldestChunksAreDroppedOnceFull() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    assertTrue(FsCacheSingleton.setDiskCache(directory, SEGMENT_BYTES * 2));
+    int chunkSize = 64 * 1024;
+    // Three segments' worth
+    int chunks = (int) (SEGMENT_BYTES * 3 / chunkSize);
+    for (int i = 0; i < chunks; ++i) {
+      FsCacheSingleton.putChunk(PATH, i, new ChunkCacheEntry(CHUNK_SPACE, STAMP, 0, dataOf(i, chunkSize)));
+    }
+    assertTrue(FsCacheSingleton.getDiskBytes() <= SEGMENT_BYTES * 2);
+
+    remount(directory, SEGMENT_BYTES * 2);
+    assertFalse(FsCacheSingleton.getCurrentChunk(PATH, 0, CHUNK_SPACE, STAMP).isPresent());
+    Optional<ChunkCacheEntry> last = FsCacheSingleton.getCurrentChunk(PATH, chunks - 1, CHUNK_SPACE, STAMP);
+    assertTrue(last.isPresent());
+    assertArrayEquals(dataOf(chunks - 1, chunkSize), last.get().getData());
+  }
+
+  @Test
+  public void onlyTheOwnerCanRead() throws Exception {
+    Path directory = folder.getRoot().toPath().resolve("cache");
+    Assume.assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+    assertTrue(FsCacheSingleton.setDiskCache(directory, SEGMENT_BYTES * 4));
+    FsCacheSingleton.putChunk(PATH, 0, new ChunkCacheEntry(CHUNK_SPACE, STAMP, 0, dataOf(1, 1000)));
+    // Waits for the chunk to be written
+    FsCacheSingleton.setDiskCache(null, 0);
+
+    assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+    assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.resolve("lock"))));
+    assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.resolve("segment-0"))));
+  }
+
+  /** Starts over as a new mount would, with nothing in memory */
+  private static void remount(Path directory, long maxBytes) {
+    FsCacheSingleton.setDiskCache(null, 0);
+    FsCacheSingleton.removeTreeFromCache("/");
+    assertTrue(FsCacheSingleton.setDiskCache(directory, maxBytes));
+  }
+
+  private static byte[] dataOf(int i, int length) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) i);
+    return data;
+  }
+}
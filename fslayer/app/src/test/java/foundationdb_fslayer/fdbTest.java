@@ -2,13 +2,15 @@ package foundationdb_fslayer;
 
 import foundationdb_fslayer.fdb.FoundationFileOperations;
 import foundationdb_fslayer.fdb.FoundationLayer;
+import foundationdb_fslayer.fdb.object.ChunkCodec;
+import foundationdb_fslayer.fdb.object.FileSchema;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.junit.jupiter.api.AfterEach;
-import org.junit.jupiter.api.BeforeEach;
 
 import static org.junit.Assert.*;
 
@@ -16,111 +18,113 @@ public class fdbTest {
 
   private FoundationFileOperations fsLayer;
   private static final String testPath = "/junit_test";
+  private static final long USER = 1000;
 
   @Before
   public void setup() {
     fsLayer = new FoundationLayer(630);
+    fsLayer.initRootIfNeeded();
+    fsLayer.rmdir(testPath, USER);
+    fsLayer.mkdir(testPath, 0755, USER);
   }
 
-  @BeforeEach
-  public void prepareTest() {
-    fsLayer.rmdir(testPath);
-    fsLayer.mkdir(testPath);
+  @After
+  public void cleanup() {
+    fsLayer.rmdir(testPath, USER);
   }
 
-  @AfterEach
-  public void cleanup() {
-    fsLayer.rmdir(testPath);
+  /** Creates a file the test user can read and write, as mknod does */
+  private void createFile(String path) {
+    assertTrue(fsLayer.createFile(path, USER));
+    assertTrue(fsLayer.chmod(path, 0644, USER));
   }
 
   @Test
   public void testRead() {
     // Write some data to test read
-    fsLayer.createFile("/junit_test/hello", );
-    fsLayer.write("/junit_test/hello", "world".getBytes());
+    createFile("/junit_test/hello");
+    fsLayer.write("/junit_test/hello", "world".getBytes(), 0, USER);
 
     // Assert the read is correct
-    assertEquals("world", new String(fsLayer.read("/junit_test/hello")));
+    assertEquals("world", new String(fsLayer.read("/junit_test/hello", USER)));
 
     // Clean up the file
-    fsLayer.clearFileContent("/junit_test/hello");
+    fsLayer.clearFileContent("/junit_test/hello", USER);
   }
 
 
   @Test
   public void testClearFileContent() {
     // Create a file to delete
-    fsLayer.createFile("/junit_test/delete_me", );
-    fsLayer.write("/junit_test/delete_me", new byte[1], 0);
+    createFile("/junit_test/delete_me");
+    fsLayer.write("/junit_test/delete_me", new byte[1], 0, USER);
 
     // Delete the file
-    fsLayer.clearFileContent("/junit_test/delete_me");
+    fsLayer.clearFileContent("/junit_test/delete_me", USER);
 
     // Verify the file no longer exists
-    assertNull(fsLayer.read("/junit_test/delete_me"));
+    assertNull(fsLayer.read("/junit_test/delete_me", 0, 1, USER));
   }
 
   @Test
   public void testWrite() {
     // create new file
     String filePath = "/junit_test/file";
-    fsLayer.createFile(filePath, );
+    createFile(filePath);
 
     // Write to file
     String startPhrase = "start writing to file";
     byte[] startPhraseBytes = startPhrase.getBytes(StandardCharsets.UTF_8);
-    fsLayer.write(filePath, startPhraseBytes, 0);
+    fsLayer.write(filePath, startPhraseBytes, 0, USER);
     // Verify the output
-    assertEquals(startPhrase, new String(fsLayer.read(filePath)));
+    assertEquals(startPhrase, new String(fsLayer.read(filePath, USER)));
 
     // continue writing to file
     String continuePhrase = " Continue writing to file";
-    fsLayer.write(filePath, continuePhrase.getBytes(StandardCharsets.UTF_8), startPhraseBytes.length);
+    fsLayer.write(filePath, continuePhrase.getBytes(StandardCharsets.UTF_8), startPhraseBytes.length, USER);
     String fileContent = startPhrase + continuePhrase;
     // Verify the new string has been appended
-    assertEquals(fileContent, new String(fsLayer.read(filePath)));
+    assertEquals(fileContent, new String(fsLayer.read(filePath, USER)));
 
 
     //Cleanup file
-    fsLayer.clearFileContent(filePath);
+    fsLayer.clearFileContent(filePath, USER);
   }
 
   @Test
   public void testReadOffsetSize(){
     // create new file
-    String filepath = "/file";
-    fsLayer.createFile(filepath, );
+    String filepath = testPath + "/file";
+    createFile(filepath);
 
     // Write to the file
     String data = "We want to read just THIS, not anything else";
-    fsLayer.write(filepath, data.getBytes(StandardCharsets.UTF_8));
-
-    System.out.println(new String(fsLayer.read(filepath)));
+    fsLayer.write(filepath, data.getBytes(StandardCharsets.UTF_8), 0, USER);
 
     // Read just THIS
-    //assertEquals(new String("THIS".getBytes(StandardCharsets.UTF_8)), new String(fsLayer.read(filepath, 21, 4)));
+    assertEquals("THIS", new String(fsLayer.read(filepath, 21, 4, USER), StandardCharsets.UTF_8));
 
     // cleanup
-    //fsLayer.clearFileContent(filepath);
+    fsLayer.clearFileContent(filepath, USER);
   }
 
 
   @Test
   public void testRmdir() {
     // Verify deletion is successful
-    assertTrue(fsLayer.rmdir(testPath));
+    assertTrue(fsLayer.rmdir(testPath, USER));
     // Verify the directory is actually deleted
-    assertNull(fsLayer.ls(testPath));
+    assertNull(fsLayer.ls(testPath, USER));
   }
 
   @Test
   public void testMkdir() {
     // Create a new directory
     String newPath = testPath + "/mkdir";
-    fsLayer.mkdir(newPath);
+    fsLayer.mkdir(newPath, 0755, USER);
 
     // Verify the new directory exists
-    assertNotNull(fsLayer.ls(newPath));
+    assertNotNull(fsLayer.ls(newPath, USER));
   }
 
   @Test
@@ -128,22 +132,214 @@ public class fdbTest {
     // Create some subdirectories
     List<String> subDirNames = Arrays.asList("alpha", "bravo", "charlie");
     for (String subDirName : subDirNames){
-      fsLayer.mkdir(testPath + "/" + subDirName);
+      fsLayer.mkdir(testPath + "/" + subDirName, 0755, USER);
     }
 
     // Create some files
     List<String> filenames = Arrays.asList("a.txt", "b.png", "c.mp4");
     for (String filename : filenames) {
       String filepath = testPath + "/" + filename;
-      fsLayer.createFile(filepath, );
-      fsLayer.write(filepath, new byte[1],0);
+      createFile(filepath);
+      fsLayer.write(filepath, new byte[1], 0, USER);
     }
 
     // Call ls
-    List<String> lsOut = fsLayer.ls(testPath);
+    List<String> lsOut = fsLayer.ls(testPath, USER);
 
     // Verify all the created items are present
     filenames.forEach(filename -> assertTrue(lsOut.contains(filename)));
     subDirNames.forEach(subDirName -> assertTrue(lsOut.contains(subDirName)));
   }
+
+  @Test
+  public void testTruncateGrowReadsZeros() {
+    String filePath = testPath + "/sparse";
+    createFile(filePath);
+    assertTrue(fsLayer.write(filePath, "abc".getBytes(StandardCharsets.UTF_8), 0, USER));
+
+    // Growing past several chunks leaves a hole after the data
+    long grownSize = 3L * FileSchema.DEFAULT_CHUNK_SIZE_BYTES + 17;
+    assertTrue(fsLayer.truncate(filePath, grownSize, USER));
+    assertEquals(grownSize, fsLayer.getFileSize(filePath));
+    byte[] grown = fsLayer.read(filePath, 0, grownSize, USER);
+    assertEquals(grownSize, grown.length);
+    assertEquals("abc", new String(grown, 0, 3, StandardCharsets.UTF_8));
+    for (int i = 3; i < grown.length; ++i) {
+      assertEquals(0, grown[i]);
+    }
+
+    // Shrinking drops the data past the new end, so growing again reads zeros there
+    assertTrue(fsLayer.truncate(filePath, 2, USER));
+    assertTrue(fsLayer.truncate(filePath, 10, USER));
+    byte[] regrown = fsLayer.read(filePath, USER);
+    assertArrayEquals(new byte[] {'a', 'b', 0, 0, 0, 0, 0, 0, 0, 0}, regrown);
+  }
+
+  @Test
+  public void testWritePastEndReadsZeros() {
+    String filePath = testPath + "/hole";
+    createFile(filePath);
+    assertTrue(fsLayer.write(filePath, "head".getBytes(StandardCharsets.UTF_8), 0, USER));
+
+    // Writing chunks past the end leaves the chunks in between unwritten
+    long offset = 5L * FileSchema.DEFAULT_CHUNK_SIZE_BYTES + 100;
+    assertTrue(fsLayer.write(filePath, "tail".getBytes(StandardCharsets.UTF_8), offset, USER));
+    assertEquals(offset + 4, fsLayer.getFileSize(filePath));
+
+    byte[] hole = fsLayer.read(filePath, 4, offset - 4, USER);
+    assertEquals(offset - 4, hole.length);
+    for (byte b : hole) {
+      assertEquals(0, b);
+    }
+    assertEquals("tail", new String(fsLayer.read(filePath, offset, 4, USER), StandardCharsets.UTF_8));
+    // Reads past the end are cut short at the end
+    assertEquals(4, fsLayer.read(filePath, offset, 100, USER).length);
+  }
+
+  @Test
+  public void testDedupRefcountsReachZero() throws InterruptedException {
+    FoundationFileOperations dedupLayer = new FoundationLayer(630, new MountOptions()
+            .setDeduplicated(true)
+            .setCodec(ChunkCodec.NONE)
+            .setInlineThreshold(0));
+    long[] before = dedupLayer.getDedupUsage();
+
+    // Two files with the same two chunks of content no other test stores
+    byte[] data = new byte[2 * FileSchema.DEFAULT_CHUNK_SIZE_BYTES];
+    new Random().nextBytes(data);
+    String first = testPath + "/dedup_a";
+    String second = testPath + "/dedup_b";
+    for (String path : Arrays.asList(first, second)) {
+      assertTrue(dedupLayer.createFile(path, USER));
+      assertTrue(dedupLayer.chmod(path, 0644, USER));
+      assertTrue(dedupLayer.write(path, data, 0, USER));
+    }
+    // Both files count as logical bytes, but the chunks are stored once
+    assertUsage(dedupLayer, before, 2L * data.length, data.length);
+
+    // Chunks are released in the background once a file is deleted
+    assertTrue(dedupLayer.clearFileContent(first, USER));
+    assertArrayEquals(data, dedupLayer.read(second, USER));
+    assertUsage(dedupLayer, before, data.length, data.length);
+
+    assertTrue(dedupLayer.clearFileContent(second, USER));
+    assertUsage(dedupLayer, before, 0, 0);
+  }
+
+  @Test
+  public void testRmdirReleasesDedupChunks() throws InterruptedException {
+    FoundationFileOperations dedupLayer = new FoundationLayer(630, new MountOptions()
+            .setDeduplicated(true)
+            .setCodec(ChunkCodec.NONE)
+            .setInlineThreshold(0));
+    long[] before = dedupLayer.getDedupUsage();
+
+    // A deduplicated file two directories down, with content no other test stores
+    byte[] data = new byte[2 * FileSchema.DEFAULT_CHUNK_SIZE_BYTES];
+    new Random().nextBytes(data);
+    String dir = testPath + "/dedup_dir";
+    assertNotNull(dedupLayer.mkdir(dir, 0755, USER));
+    assertNotNull(dedupLayer.mkdir(dir + "/sub", 0755, USER));
+    String path = dir + "/sub/dedup";
+    assertTrue(dedupLayer.createFile(path, USER));
+    assertTrue(dedupLayer.chmod(path, 0644, USER));
+    assertTrue(dedupLayer.write(path, data, 0, USER));
+    assertUsage(dedupLayer, before, data.length, data.length);
+
+    // Removing the directory releases the chunks of everything under it, in the background
+    assertTrue(dedupLayer.rmdir(dir, USER));
+    assertNull(dedupLayer.ls(dir, USER));
+    assertUsage(dedupLayer, before, 0, 0);
+  }
+
+  /** Waits for the dedup usage to move by the given bytes since before, failing if it never does */
+  private static void assertUsage(FoundationFileOperations layer, long[] before, long logical, long physical)
+          throws InterruptedException {
+    long[] expected = {before[0] + logical, before[1] + physical};
+    long[] usage = layer.getDedupUsage();
+    for (int attempt = 0; attempt < 100 && !Arrays.equals(expected, usage); ++attempt) {
+      Thread.sleep(50);
+      usage = layer.getDedupUsage();
+    }
+    assertArrayEquals(expected, usage);
+  }
+
+  @Test
+  public void testInlinePromotedAtThreshold() {
+    int threshold = 4096;
+    FoundationFileOperations inlineLayer = new FoundationLayer(630, new MountOptions()
+            .setCodec(ChunkCodec.NONE)
+            .setInlineThreshold(threshold));
+    String filePath = testPath + "/inline";
+    assertTrue(inlineLayer.createFile(filePath, USER));
+    assertTrue(inlineLayer.chmod(filePath, 0644, USER));
+
+    // Data up to the threshold stays inline
+    byte[] data = new byte[threshold + 1];
+    new Random().nextBytes(data);
+    assertTrue(inlineLayer.write(filePath, Arrays.copyOf(data, threshold), 0, USER));
+    assertEquals(Integer.valueOf(threshold), inlineLayer.getAttr(filePath).getInlineLimit());
+    assertArrayEquals(Arrays.copyOf(data, threshold), inlineLayer.read(filePath, USER));
+
+    // One byte more moves it into chunks, keeping what was inline
+    assertTrue(inlineLayer.write(filePath, new byte[] {data[threshold]}, threshold, USER));
+    assertNull(inlineLayer.getAttr(filePath).getInlineLimit());
+    assertEquals(threshold + 1, inlineLayer.getFileSize(filePath));
+    assertArrayEquals(data, inlineLayer.read(filePath, USER));
+  }
+
+  @Test
+  public void testAppendWritesAtEnd() {
+    String filePath = testPath + "/append";
+    createFile(filePath);
+    assertTrue(fsLayer.write(filePath, "head".getBytes(StandardCharsets.UTF_8), 0, USER));
+
+    assertTrue(fsLayer.append(filePath, "-one".getBytes(StandardCharsets.UTF_8), USER));
+    assertTrue(fsLayer.append(filePath, "-two".getBytes(StandardCharsets.UTF_8), USER));
+    assertEquals(12, fsLayer.getFileSize(filePath));
+    assertEquals("head-one-two", new String(fsLayer.read(filePath, USER), StandardCharsets.UTF_8));
+
+    // Appends running past the end of a chunk continue in the next one
+    byte[] tail = new byte[FileSchema.DEFAULT_CHUNK_SIZE_BYTES + 10];
+    new Random().nextBytes(tail);
+    assertTrue(fsLayer.append(filePath, tail, USER));
+    assertEquals(12 + tail.length, fsLayer.getFileSize(filePath));
+    assertArrayEquals(tail, fsLayer.read(filePath, 12, tail.length, USER));
+    assertEquals("head-one-two", new String(fsLayer.read(filePath, 0, 12, USER), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testStagedWriteReadsWhole() {
+    String filePath = testPath + "/staged";
+    createFile(filePath);
+    assertTrue(fsLayer.write(filePath, "head".getBytes(StandardCharsets.UTF_8), 0, USER));
+
+    // Too large for one transaction, and starting inside the first chunk, so its data is merged with the file's
+    byte[] data = new byte[FileSchema.STAGED_WRITE_BYTES + 12345];
+    new Random().nextBytes(data);
+    assertTrue(fsLayer.write(filePath, data, 2, USER));
+    assertEquals(2 + data.length, fsLayer.getFileSize(filePath));
+    assertEquals("he", new String(fsLayer.read(filePath, 0, 2, USER), StandardCharsets.UTF_8));
+    assertArrayEquals(data, fsLayer.read(filePath, 2, data.length, USER));
+
+    // Small writes go on as usual once the stage has been moved into place
+    assertTrue(fsLayer.write(filePath, "tail".getBytes(StandardCharsets.UTF_8), 2 + data.length, USER));
+    assertEquals("tail", new String(fsLayer.read(filePath, 2 + data.length, 4, USER), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testReadAsyncSpansChunks() {
+    String filePath = testPath + "/parallel";
+    createFile(filePath);
+    byte[] data = new byte[5 * FileSchema.DEFAULT_CHUNK_SIZE_BYTES + 123];
+    new Random().nextBytes(data);
+    assertTrue(fsLayer.write(filePath, data, 0, USER));
+
+    // Starts and ends inside chunks, so each run is cut at the read's edges
+    FoundationLayer asyncLayer = (FoundationLayer) fsLayer;
+    assertArrayEquals(Arrays.copyOfRange(data, 100, data.length - 50),
+            asyncLayer.readAsync(filePath, 100, data.length - 150, USER).join());
+    assertArrayEquals(fsLayer.read(filePath, 0, data.length + 10, USER),
+            asyncLayer.readAsync(filePath, 0, data.length + 10, USER).join());
+  }
 }
@@ -0,0 +1,124 @@
+package foundationdb_fslayer;
+
+import com.apple.foundationdb.directory.DirectoryLayer;
+import foundationdb_fslayer.cache.ChunkCacheEntry;
+import foundationdb_fslayer.cache.DirectoryCacheEntry;
+import foundationdb_fslayer.cache.FsCacheSingleton;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs many threads against the FsCacheSingleton at once, with a budget small enough that entries are
+ * evicted constantly, to check the cache stays consistent and within its budget.
+ *
+ * No database is needed: without a transaction, entries load with version -1 and empty attributes.
+ */
+public class fsCacheConcurrencyTest {
+  private static final int THREADS = 32;
+  private static final int OPERATIONS_PER_THREAD = 5000;
+  private static final int PATHS = 256;
+  private static final int CHUNKS = 8;
+  private static final long MAX_BYTES = 64 * 1024;
+  private static final byte[] STAMP = new byte[10];
+
+  private final DirectoryLayer directoryLayer = new DirectoryLayer();
+
+  @After
+  public void tearDown() {
+    FsCacheSingleton.removeTreeFromCache("/");
+    FsCacheSingleton.setMaxBytes(FsCacheSingleton.DEFAULT_MAX_BYTES);
+  }
+
+  @Test
+  public void manyThreadsStayConsistentAndWithinBudget() throws Exception {
+    FsCacheSingleton.setMaxBytes(MAX_BYTES);
+    ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> results = new ArrayList<>();
+
+    for (int t = 0; t < THREADS; ++t) {
+      Random random = new Random(t);
+      results.add(threads.submit(() -> {
+        start.await();
+        for (int i = 0; i < OPERATIONS_PER_THREAD; ++i) {
+          String path = pathOf(random.nextInt(PATHS));
+          switch (random.nextInt(8)) {
+            case 0:
+              FsCacheSingleton.putChunk(path, random.nextInt(CHUNKS), chunkOf(path, random.nextInt(2048)));
+              break;
+            case 1:
+              int chunkNum = random.nextInt(CHUNKS);
+              FsCacheSingleton.getChunk(path, chunkNum).ifPresent(entry ->
+                      // A chunk must never be mixed up with another path's
+                      assertTrue(path + " chunk " + chunkNum, entry.isCurrent(path.getBytes(), STAMP)));
+              break;
+            case 2:
+              FsCacheSingleton.loadAttrToCache(path, directoryLayer, null);
+              break;
+            case 3:
+              FsCacheSingleton.getAttr(path).ifPresent(entry -> entry.reloadIfOutdated(directoryLayer, null));
+              break;
+            case 4:
+              // Listings of different lengths make the entries change weight as they are reloaded
+              FsCacheSingleton.loadDirToCache(path, directoryLayer, null, listingOf(path, random.nextInt(16)));
+              break;
+            case 5:
+              Optional<DirectoryCacheEntry> dir = FsCacheSingleton.getDir(path);
+              if (dir.isPresent()) {
+                DirectoryCacheEntry.State loaded = dir.get().reload(directoryLayer, null, listingOf(path, random.nextInt(16)));
+                // A listing must never be mixed up with another path's
+                for (String child : loaded.getChildren()) {
+                  assertTrue(child + " listed under " + path, child.startsWith(path + "/"));
+                }
+              }
+              break;
+            case 6:
+              FsCacheSingleton.removeFileFromCache(path);
+              break;
+            default:
+              FsCacheSingleton.removeTreeFromCache(path.substring(0, path.lastIndexOf("/")));
+              break;
+          }
+        }
+        return null;
+      }));
+    }
+
+    start.countDown();
+    for (Future<?> result : results) {
+      // Rethrows anything a thread failed with
+      result.get();
+    }
+    threads.shutdown();
+
+    assertTrue("Cache holds " + FsCacheSingleton.getResidentBytes() + " bytes",
+            FsCacheSingleton.getResidentBytes() <= MAX_BYTES);
+    FsCacheSingleton.removeTreeFromCache("/");
+    assertEquals(0, FsCacheSingleton.getResidentBytes());
+  }
+
+  private static String pathOf(int i) {
+    return "/dir" + (i % 16) + "/file" + i;
+  }
+
+  private static ChunkCacheEntry chunkOf(String path, int length) {
+    return new ChunkCacheEntry(path.getBytes(), STAMP, 0, new byte[length]);
+  }
+
+  private static List<String> listingOf(String path, int length) {
+    return new ArrayList<>(Collections.nCopies(length, path + "/child"));
+  }
+}
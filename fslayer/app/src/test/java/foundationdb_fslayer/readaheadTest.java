@@ -0,0 +1,140 @@
+package foundationdb_fslayer;
+
+import foundationdb_fslayer.cache.CacheMetrics;
+import foundationdb_fslayer.cache.CacheStats;
+import foundationdb_fslayer.fdb.AsyncFoundationFileOperations;
+import foundationdb_fslayer.fuse.Readahead;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks sequential reads are prefetched ahead of, in growing windows, and random reads are not.
+ * Only reads whose prefetches loaded count as hits, and only bytes prefetches report loading count as loaded.
+ *
+ * No database is needed: the file operations are faked, recording the ranges prefetched.
+ */
+public class readaheadTest {
+  private static final int READ_SIZE = 4096;
+  private static final long MAX_WINDOW = 64 * 1024;
+
+  // Start and length of each range prefetched
+  private final List<long[]> prefetched = new ArrayList<>();
+  // Whether prefetches fail, rather than loading what they are asked to
+  private volatile boolean prefetchesFail = false;
+  private AsyncFoundationFileOperations dbOps;
+  private Readahead readahead;
+
+  @Before
+  public void setUp() {
+    dbOps = (AsyncFoundationFileOperations) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {AsyncFoundationFileOperations.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "prefetchAsync":
+                  synchronized (prefetched) {
+                    prefetched.add(new long[] {(long) args[1], (long) args[2]});
+                  }
+                  return CompletableFuture.completedFuture(prefetchesFail ? -1L : (long) args[2]);
+                case "readAsync":
+                  return CompletableFuture.completedFuture(new byte[(int) (long) args[2]]);
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+    readahead = new Readahead(dbOps, 0, MAX_WINDOW);
+  }
+
+  @Test
+  public void sequentialReadsArePrefetchedInGrowingWindows() {
+    CacheStats stats = CacheMetrics.READAHEAD;
+    long hits = stats.getHits();
+    long misses = stats.getMisses();
+    long loadedBytes = stats.getLoadedBytes();
+
+    long handle = readahead.open();
+    for (int i = 0; i < 64; ++i) {
+      assertEquals(READ_SIZE, readahead.read("/file", handle, (long) i * READ_SIZE, READ_SIZE).length);
+    }
+
+    // Windows are contiguous, start right after the first read, and double up to the limit
+    long expectedStart = READ_SIZE;
+    long window = 0;
+    for (long[] range : prefetched) {
+      assertEquals(expectedStart, range[0]);
+      assertTrue(range[1] >= window);
+      assertTrue(range[1] <= MAX_WINDOW);
+      window = range[1];
+      expectedStart += range[1];
+    }
+    assertEquals(2 * READ_SIZE, prefetched.get(0)[1]);
+    assertEquals(MAX_WINDOW, window);
+    // Everything read after the first read was prefetched
+    assertTrue(expectedStart >= 64 * READ_SIZE);
+    assertEquals(hits + 63, stats.getHits());
+    assertEquals(misses, stats.getMisses());
+    assertEquals(loadedBytes + expectedStart - READ_SIZE, stats.getLoadedBytes());
+    readahead.release(handle);
+  }
+
+  @Test
+  public void failedPrefetchesAreMisses() {
+    prefetchesFail = true;
+    CacheStats stats = CacheMetrics.READAHEAD;
+    long hits = stats.getHits();
+    long misses = stats.getMisses();
+    long loadedBytes = stats.getLoadedBytes();
+
+    long handle = readahead.open();
+    for (int i = 0; i < 16; ++i) {
+      assertEquals(READ_SIZE, readahead.read("/file", handle, (long) i * READ_SIZE, READ_SIZE).length);
+    }
+
+    // Reads still prefetch ahead, but nothing was loaded for them
+    assertTrue(prefetched.size() > 0);
+    assertEquals(hits, stats.getHits());
+    assertEquals(misses + 15, stats.getMisses());
+    assertEquals(loadedBytes, stats.getLoadedBytes());
+    readahead.release(handle);
+  }
+
+  @Test
+  public void randomReadsStopPrefetching() {
+    long handle = readahead.open();
+    readahead.read("/file", handle, 0, READ_SIZE);
+    readahead.read("/file", handle, READ_SIZE, READ_SIZE);
+    int sequentialPrefetches = prefetched.size();
+    assertTrue(sequentialPrefetches > 0);
+
+    for (long offset : new long[] {1 << 20, 7 * READ_SIZE, 3 << 20, 0}) {
+      readahead.read("/file", handle, offset, READ_SIZE);
+    }
+    assertEquals(sequentialPrefetches, prefetched.size());
+
+    // Reads of another open of the same file are followed on their own
+    long other = readahead.open();
+    readahead.read("/file", other, 0, READ_SIZE);
+    assertEquals(sequentialPrefetches + 1, prefetched.size());
+    readahead.release(other);
+    readahead.release(handle);
+  }
+
+  @Test
+  public void noWindowPrefetchesNothing() {
+    Readahead disabled = new Readahead(dbOps, 0, 0);
+    long handle = disabled.open();
+    for (int i = 0; i < 16; ++i) {
+      assertEquals(READ_SIZE, disabled.read("/file", handle, (long) i * READ_SIZE, READ_SIZE).length);
+    }
+    assertEquals(0, prefetched.size());
+    disabled.release(handle);
+  }
+}
@@ -0,0 +1,148 @@
+package foundationdb_fslayer;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.directory.DirectoryLayer;
+import foundationdb_fslayer.fdb.FoundationLayer;
+import foundationdb_fslayer.fdb.object.AbstractSchema;
+import foundationdb_fslayer.fdb.object.Attr;
+import foundationdb_fslayer.fdb.object.DirectorySchema;
+import foundationdb_fslayer.fdb.object.FileSchema;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares commit throughput of concurrent writers going through the schema's own write paths, which bump
+ * versions with AbstractSchema.incrementVersion. Each test runs the writers twice: as they are (atomic add),
+ * and with a read of the version key added to each transaction, which puts back the read conflict the
+ * read-then-set increment had (before).
+ *
+ * Needs a running cluster, so it only runs with ./gradlew test -Dfslayer.bench=true
+ * Writer count and duration can be set with -Dfslayer.bench.writers and -Dfslayer.bench.millis
+ */
+public class versionCounterBenchmark {
+  private static final int WRITERS = Integer.getInteger("fslayer.bench.writers", 8);
+  private static final long DURATION_MILLIS = Long.getLong("fslayer.bench.millis", 5000);
+  private static final long USER = 1000;
+
+  private FoundationLayer layer;
+  private Database db;
+  private DirectoryLayer directoryLayer;
+  private String benchPath;
+
+  private interface Operation {
+    /** Runs one write through the schema, returning the node whose version it bumps */
+    AbstractSchema apply(Transaction tr, int writer, long iteration);
+  }
+
+  @Before
+  public void setup() {
+    Assume.assumeTrue("Benchmarks run with -Dfslayer.bench=true", Boolean.getBoolean("fslayer.bench"));
+    layer = new FoundationLayer(630);
+    layer.initRootIfNeeded();
+    db = FDB.selectAPIVersion(630).open();
+    directoryLayer = new DirectoryLayer();
+    benchPath = "/fslayer-bench-" + UUID.randomUUID();
+    layer.mkdir(benchPath, 0777, USER);
+  }
+
+  @After
+  public void cleanup() {
+    if (db != null) {
+      directoryLayer.removeIfExists(db, Util.parsePath(benchPath)).join();
+    }
+  }
+
+  @Test
+  public void directoryWriters() {
+    // Each writer creates files in the same directory, bumping its version every time
+    DirectorySchema dir = new DirectorySchema(benchPath);
+    for (boolean readConflict : new boolean[] {true, false}) {
+      String run = readConflict ? "read" : "add";
+      Operation createFile = (tr, writer, i) -> {
+        FileSchema file = new FileSchema(benchPath + "/" + run + "-" + writer + "-" + i);
+        file.create(directoryLayer, tr, new Attr().setUid(USER).setChunkSize(FileSchema.DEFAULT_CHUNK_SIZE_BYTES));
+        return dir;
+      };
+      report(readConflict ? "directory, read-then-set" : "directory, atomic add",
+              runWriters(readConflict, createFile));
+    }
+  }
+
+  @Test
+  public void fileWriters() {
+    // Each writer fills its own chunk of the same file, bumping the file's version and size every time
+    String path = benchPath + "/file";
+    layer.createFile(path, USER);
+    layer.chmod(path, 0644, USER);
+    FileSchema file = new FileSchema(path);
+    byte[] data = new byte[1000];
+    Operation writeChunk = (tr, writer, i) -> {
+      if (!file.write(directoryLayer, tr, data, (long) writer * FileSchema.DEFAULT_CHUNK_SIZE_BYTES, USER)) {
+        throw new IllegalStateException("Write failed");
+      }
+      return file;
+    };
+
+    report("file, read-then-set", runWriters(true, writeChunk));
+    report("file, atomic add", runWriters(false, writeChunk));
+  }
+
+  /** Returns {commits, attempts} after running the writers for the configured duration */
+  private long[] runWriters(boolean readConflict, Operation operation) {
+    AtomicLong commits = new AtomicLong();
+    AtomicLong attempts = new AtomicLong();
+    long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+
+    ExecutorService pool = Executors.newFixedThreadPool(WRITERS);
+    List<Future<?>> writers = new ArrayList<>();
+    for (int writer = 0; writer < WRITERS; ++writer) {
+      int writerId = writer;
+      writers.add(pool.submit(() -> {
+        for (long i = 0; System.currentTimeMillis() < deadline; ++i) {
+          long iteration = i;
+          db.run(tr -> {
+            attempts.incrementAndGet();
+            AbstractSchema node = operation.apply(tr, writerId, iteration);
+            if (readConflict) {
+              // What the read-then-set increment read, conflicting with every other writer's increment
+              tr.get(node.getVersionKey(directoryLayer, tr)).join();
+            }
+            return null;
+          });
+          commits.incrementAndGet();
+        }
+      }));
+    }
+
+    try {
+      for (Future<?> writer : writers) {
+        writer.get();
+      }
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    } finally {
+      pool.shutdown();
+    }
+    return new long[]{commits.get(), attempts.get()};
+  }
+
+  private void report(String label, long[] result) {
+    System.out.printf("%-28s %d writers: %8.1f commits/s, %5.2f attempts per commit%n",
+            label,
+            WRITERS,
+            result[0] * 1000.0 / DURATION_MILLIS,
+            result[0] == 0 ? 0.0 : (double) result[1] / result[0]);
+  }
+}
@@ -0,0 +1,29 @@
+package foundationdb_fslayer;
+
+import com.apple.foundationdb.tuple.Tuple;
+import foundationdb_fslayer.fdb.object.AbstractSchema;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks versions read back the same whether they are atomic counters or were written before atomic increments.
+ *
+ * No database is needed: only the stored values are decoded.
+ */
+public class versionDecodingTest {
+
+  @Test
+  public void countersDecodeLittleEndian() {
+    assertEquals(0, AbstractSchema.decodeVersion(AbstractSchema.initialVersion()));
+    assertEquals(42, AbstractSchema.decodeVersion(Util.encodeLittleEndian(42)));
+    assertEquals(1L << 40, AbstractSchema.decodeVersion(Util.encodeLittleEndian(1L << 40)));
+  }
+
+  @Test
+  public void legacyTupleVersionsDecode() {
+    assertEquals(0, AbstractSchema.decodeVersion(Tuple.from(0L).pack()));
+    assertEquals(7, AbstractSchema.decodeVersion(Tuple.from(7L).pack()));
+    assertEquals(100000, AbstractSchema.decodeVersion(Tuple.from(100000L).pack()));
+  }
+}
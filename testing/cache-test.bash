@@ -25,6 +25,21 @@ execdir=${codedir}/app/build/install/app/bin/
 
 trap "kill 0" EXIT
 
+# Watches are on by default, so a client may still read what it cached until the watch on
+# the file fires, a moment after another client's write commits. Clients are given this
+# long to agree. Mount with JAVA_OPTS=-Dfslayer.maxWatches=0 for strict consistency,
+# where they must agree at once.
+watch_window=${WATCH_WINDOW_SECONDS:-5}
+
+# Whether the two clients read the same file, within the watch window
+agree() {
+	for ((waited = 0; waited < watch_window * 10; waited++)); do
+		cmp -s $1/$testfile $2/$testfile && return 0
+		sleep 0.1
+	done
+	diff $1/$testfile $2/$testfile
+}
+
 # Mount our 3 concurrent clients
 echo "Mounting clients."
 for dir in $client1 $client2 $client3; do
@@ -54,14 +69,14 @@ for i in {0..100}; do
 done;
 
 # Validate that the clients all agree on what the file is
-diff ${client1}/$testfile $client2/$testfile
+agree $client1 $client2
 if [ $? -ne 0 ]; then
-	echo Client 1 does not match client 2! 1>2
+	echo Client 1 does not match client 2 after ${watch_window}s! 1>&2
 	exit 1;
 fi
-diff ${client2}/$testfile $client3/$testfile
+agree $client2 $client3
 if [ $? -ne 0 ]; then
-	echo Client 2 does not match client 3! 1>2
+	echo Client 2 does not match client 3 after ${watch_window}s! 1>&2
 	exit 1;
 fi
 